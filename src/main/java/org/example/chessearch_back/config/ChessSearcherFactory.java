@@ -0,0 +1,116 @@
+package org.example.chessearch_back.config;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.similarities.Similarity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Creates the searchers of every index generation: ChessSimilarity plus, when configured, a dedicated thread pool
+ * that searches the slices of one query concurrently. Segments become slices of at most maxDocsPerSlice documents
+ * and maxSegmentsPerSlice segments, so big merged segments are searched on their own thread while the small ones
+ * written by live indexing are grouped into one task.
+ * The pool is bounded; when all threads are busy and the queue is full, the searching thread runs the slice itself.
+ * Slices are only searched concurrently through IndexSearcher.search(Query, CollectorManager).
+ */
+public class ChessSearcherFactory extends SearcherFactory implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ChessSearcherFactory.class);
+
+    private final Similarity similarity;
+    /** null to search all slices on the calling thread */
+    private final ThreadPoolExecutor executor;
+    private final int maxDocsPerSlice;
+    private final int maxSegmentsPerSlice;
+    private final LongAdder callerRuns = new LongAdder();
+
+    /**
+     * @param similarity similarity of the searchers
+     * @param threads search threads, 0 for one per core, negative to search on the calling thread only
+     * @param queueCapacity slice tasks waiting for a thread before the caller runs them
+     * @param maxDocsPerSlice documents per slice before a new slice starts
+     * @param maxSegmentsPerSlice segments per slice before a new slice starts
+     */
+    public ChessSearcherFactory(Similarity similarity, int threads, int queueCapacity, int maxDocsPerSlice, int maxSegmentsPerSlice) {
+        if (maxDocsPerSlice <= 0 || maxSegmentsPerSlice <= 0) {
+            throw new IllegalArgumentException("Slice limits must be positive, got " + maxDocsPerSlice + " docs / " + maxSegmentsPerSlice + " segments");
+        }
+        this.similarity = similarity;
+        this.maxDocsPerSlice = maxDocsPerSlice;
+        this.maxSegmentsPerSlice = maxSegmentsPerSlice;
+        if (threads < 0) {
+            this.executor = null;
+            log.info("Searching segments on the calling thread");
+        } else {
+            int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "index-search-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    (runnable, pool) -> {
+                        // run even after shutdown, the searching thread waits for every slice task
+                        callerRuns.increment();
+                        runnable.run();
+                    });
+            this.executor.allowCoreThreadTimeOut(true);
+            log.info("Searching segments on {} threads, slices of max {} docs / {} segments", poolSize, maxDocsPerSlice, maxSegmentsPerSlice);
+        }
+    }
+
+    @Override
+    public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+        IndexSearcher searcher = new IndexSearcher(reader, executor) {
+            @Override
+            protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+                return slices(leaves, maxDocsPerSlice, maxSegmentsPerSlice);
+            }
+        };
+        searcher.setSimilarity(similarity);
+        return searcher;
+    }
+
+    /**
+     * Get search pool statistics
+     * @return Map with thread and task counters of the pool
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", executor != null);
+        stats.put("maxDocsPerSlice", maxDocsPerSlice);
+        stats.put("maxSegmentsPerSlice", maxSegmentsPerSlice);
+        if (executor != null) {
+            stats.put("poolSize", executor.getPoolSize());
+            stats.put("maxPoolSize", executor.getMaximumPoolSize());
+            stats.put("activeThreads", executor.getActiveCount());
+            stats.put("largestPoolSize", executor.getLargestPoolSize());
+            stats.put("queuedTasks", executor.getQueue().size());
+            stats.put("completedTasks", executor.getCompletedTaskCount());
+            stats.put("callerRunsTasks", callerRuns.sum());
+        }
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.example.chessearch_back.config;
+
+import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.Similarity;
+import org.example.chessearch_back.parser.TermCodes;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Similarity for the position term vocabulary. A position either has a term or not, so a matching term scores a
+ * constant: its BM25 idf times the weight of its family (true position, attack, defense, ray attack), times the
+ * query boost. Term frequency and field length are ignored, crowded positions are not penalized for having more
+ * terms. Norms are written as the constant 1, the score never reads them, so indexes written with BM25 norms
+ * score the same. Constant per-term scores give block-max WAND / MaxScore exact upper bounds to skip on.
+ * Reachable squares are FeatureFields scored by their own query, their family weight is applied there.
+ */
+public class ChessSimilarity extends Similarity {
+
+    private final float[] familyWeights;
+
+    /**
+     * @param familyWeights weight per term family, indexed by TermCodes.FAMILY_*
+     */
+    public ChessSimilarity(float[] familyWeights) {
+        if (familyWeights.length != TermCodes.FAMILY_RAY_ATTACK + 1) {
+            throw new IllegalArgumentException("Expected " + (TermCodes.FAMILY_RAY_ATTACK + 1) + " family weights, got " + familyWeights.length);
+        }
+        for (float weight : familyWeights) {
+            if (!(weight >= 0) || Float.isInfinite(weight)) {
+                throw new IllegalArgumentException("Family weights must be finite and non-negative, got " + weight);
+            }
+        }
+        this.familyWeights = familyWeights.clone();
+    }
+
+    /**
+     * @param family TermCodes.FAMILY_* constant
+     * @return weight of the family
+     */
+    public float getFamilyWeight(int family) {
+        return familyWeights[family];
+    }
+
+    @Override
+    public long computeNorm(FieldInvertState state) {
+        return 1;
+    }
+
+    @Override
+    public SimScorer scorer(float boost, CollectionStatistics collectionStats, TermStatistics... termStats) {
+        float idf = 0;
+        for (TermStatistics termStat : termStats) {
+            idf += idf(termStat.docFreq(), collectionStats.docCount());
+        }
+        float familyWeight = termStats.length == 0 ? 1f : familyWeights[family(termStats[0])];
+        return new PresenceScorer(boost * familyWeight * idf, boost, familyWeight, idf);
+    }
+
+    private static float idf(long docFreq, long docCount) {
+        return (float) Math.log(1 + (docCount - docFreq + 0.5D) / (docFreq + 0.5D));
+    }
+
+    private static int family(TermStatistics termStat) {
+        try {
+            return TermCodes.family(TermCodes.parse(termStat.term().utf8ToString()));
+        } catch (IllegalArgumentException e) {
+            return TermCodes.FAMILY_TRUE_POSITION;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ChessSimilarity(familyWeights=" + Arrays.toString(familyWeights) + ")";
+    }
+
+    /**
+     * Scores boost * familyWeight * idf for any matching document
+     */
+    private static final class PresenceScorer extends SimScorer {
+        private final float weight;
+        private final float boost;
+        private final float familyWeight;
+        private final float idf;
+
+        PresenceScorer(float weight, float boost, float familyWeight, float idf) {
+            this.weight = weight;
+            this.boost = boost;
+            this.familyWeight = familyWeight;
+            this.idf = idf;
+        }
+
+        @Override
+        public float score(float freq, long norm) {
+            return freq > 0 ? weight : 0;
+        }
+
+        @Override
+        public Explanation explain(Explanation freq, long norm) {
+            return Explanation.match(score(freq.getValue().floatValue(), norm), "presence score, product of:",
+                    List.of(Explanation.match(boost, "boost"),
+                            Explanation.match(familyWeight, "family weight"),
+                            Explanation.match(idf, "idf, computed as log(1 + (N - n + 0.5) / (n + 0.5))")));
+        }
+    }
+}
@@ -1,17 +1,11 @@
 package org.example.chessearch_back.config;
 
-import jakarta.annotation.PreDestroy;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.search.SearcherFactory;
-import org.apache.lucene.search.SearcherManager;
-import org.apache.lucene.search.similarities.BM25Similarity;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.example.chessearch_back.parser.TermCodes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Scope;
@@ -26,25 +20,6 @@ public class LuceneConfig {
 
     private static final String LUCENE_INDEX_PATH = "./lucene-index/";
 
-    private Directory directory;
-    private IndexWriter indexWriter;
-    private SearcherManager searcherManager;
-
-    /**
-     * Creates the Lucene Directory bean, representing the index storage location
-     * @return directory
-     * @throws IOException if there's an error opening the directory
-     */
-    @Bean(destroyMethod = "close")
-    @Scope("singleton")
-    public Directory directory() throws IOException {
-        if (this.directory == null) {
-            log.info("Initializing Lucene Directory at path: {}", LUCENE_INDEX_PATH);
-            this.directory = FSDirectory.open(Paths.get(LUCENE_INDEX_PATH));
-        }
-        return this.directory;
-    }
-
     /**
      * creates the Analyzer bean
      * @return analyzer
@@ -56,88 +31,72 @@ public class LuceneConfig {
     }
 
     /**
-     * Creates the IndexWriterConfig bean (configures how documents are indexed)
-     * sets BM25Similarity.
-     * @param analyzer Analyzer bean
-     * @return IndexWriterConfig instance
+     * Creates the similarity bean shared by index writers and searchers
+     * @return ChessSimilarity with the configured term family weights
      */
     @Bean
     @Scope("singleton")
-    public IndexWriterConfig indexWriterConfig(Analyzer analyzer) {
-        IndexWriterConfig config = new IndexWriterConfig(analyzer);
-        config.setSimilarity(new BM25Similarity());
-        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
-        return config;
+    public ChessSimilarity chessSimilarity(@Value("${search.weight.true-position:1.0}") float truePositionWeight,
+                                           @Value("${search.weight.reachable:1.0}") float reachableWeight,
+                                           @Value("${search.weight.attack:1.0}") float attackWeight,
+                                           @Value("${search.weight.defense:1.0}") float defenseWeight,
+                                           @Value("${search.weight.ray-attack:1.0}") float rayAttackWeight) {
+        float[] familyWeights = new float[TermCodes.FAMILY_RAY_ATTACK + 1];
+        familyWeights[TermCodes.FAMILY_TRUE_POSITION] = truePositionWeight;
+        familyWeights[TermCodes.FAMILY_REACHABLE] = reachableWeight;
+        familyWeights[TermCodes.FAMILY_ATTACK] = attackWeight;
+        familyWeights[TermCodes.FAMILY_DEFENSE] = defenseWeight;
+        familyWeights[TermCodes.FAMILY_RAY_ATTACK] = rayAttackWeight;
+        ChessSimilarity similarity = new ChessSimilarity(familyWeights);
+        log.info("Using {}", similarity);
+        return similarity;
     }
 
     /**
-     * Creates the IndexWriter bean to add/update documents in the index
-     * @param directory Directory bean
-     * @param config IndexWriterConfig bean
-     * @return IndexWriter instance
-     * @throws IOException if there's an error creating the writer
+     * Creates the searcher factory bean: ChessSimilarity and the thread pool searching the slices of a query concurrently
+     * @param similarity ChessSimilarity bean
+     * @param threads search threads (0 = one per core, -1 = search on the request thread)
+     * @param queueCapacity slice tasks queued before the request thread runs them itself
+     * @param maxDocsPerSlice documents per slice
+     * @param maxSegmentsPerSlice segments per slice
+     * @return ChessSearcherFactory, its pool is shut down with the application context
      */
-    @Bean
+    @Bean(destroyMethod = "close")
     @Scope("singleton")
-    public IndexWriter indexWriter(Directory directory, IndexWriterConfig config) throws IOException {
-        if (this.indexWriter == null) {
-            log.info("Initializing Lucene IndexWriter...");
-            this.indexWriter = new IndexWriter(directory, config);
-        }
-        return this.indexWriter;
+    public ChessSearcherFactory chessSearcherFactory(ChessSimilarity similarity,
+                                                     @Value("${search.executor.threads:0}") int threads,
+                                                     @Value("${search.executor.queue-capacity:1024}") int queueCapacity,
+                                                     @Value("${search.slice.max-docs:500000}") int maxDocsPerSlice,
+                                                     @Value("${search.slice.max-segments:8}") int maxSegmentsPerSlice) {
+        return new ChessSearcherFactory(similarity, threads, queueCapacity, maxDocsPerSlice, maxSegmentsPerSlice);
     }
 
     /**
-     * Creates the SearcherManager bean
-     * @param writer The IndexWriter bean
-     * @return SearcherManager instance
-     * @throws IOException if there's an error creating the manager
+     * Creates the index manager bean holding the live Directory, IndexWriter and SearcherManager, both on ChessSimilarity.
+     * Rebuilds write into a fresh directory under the same root and are swapped in through the manager.
+     * @param analyzer Analyzer bean
+     * @param similarity ChessSimilarity bean
+     * @param searcherFactory ChessSearcherFactory bean
+     * @param ramBufferMb RAM shared by the indexing threads before segments are flushed
+     * @param deletesPctAllowed share of deleted documents the merge policy tolerates before reclaiming them
+     * @param maxStaleSec max seconds before searches see index changes nobody waits for
+     * @param minStaleSec min seconds between searcher reopens when a writer waits for its changes
+     * @param cursorMaxAgeSec seconds a searcher of a search cursor is kept after the index moved on
+     * @return LuceneIndexManager instance, closed when the application context shuts down
+     * @throws IOException if there's an error opening the index
      */
-    @Bean
+    @Bean(destroyMethod = "close")
     @Scope("singleton")
-    public SearcherManager searcherManager(IndexWriter writer) throws IOException {
-        if (this.searcherManager == null) {
-            log.info("Initializing Lucene SearcherManager...");
-            boolean applyAllDeletes = true;
-            this.searcherManager = new SearcherManager(writer, applyAllDeletes, false, new SearcherFactory());
-        }
-        return this.searcherManager;
-    }
-
-
-    /**
-     * Ensures Lucene resources are closed when the Spring application context shuts down
-     */
-    @PreDestroy
-    public void closeLuceneResources() {
-        log.info("Closing Lucene resources...");
-        if (this.searcherManager != null) {
-            try {
-                this.searcherManager.close();
-                log.info("SearcherManager closed.");
-            } catch (IOException e) {
-                log.error("Error closing SearcherManager", e);
-            }
-        }
-        if (this.indexWriter != null) {
-            try {
-                 if (indexWriter.hasUncommittedChanges()) {
-                     log.info("Committing changes before closing IndexWriter...");
-                     indexWriter.commit();
-                }
-                this.indexWriter.close();
-                log.info("IndexWriter closed.");
-            } catch (IOException e) {
-                log.error("Error closing IndexWriter", e);
-            }
-        }
-        if (this.directory != null) {
-            try {
-                this.directory.close();
-                log.info("Directory closed.");
-            } catch (IOException e) {
-                log.error("Error closing Directory", e);
-            }
-        }
+    public LuceneIndexManager luceneIndexManager(Analyzer analyzer,
+                                                 ChessSimilarity similarity,
+                                                 ChessSearcherFactory searcherFactory,
+                                                 @Value("${lucene.ram-buffer-mb:128}") double ramBufferMb,
+                                                 @Value("${lucene.merge.deletes-pct-allowed:20}") double deletesPctAllowed,
+                                                 @Value("${lucene.reopen.max-stale-sec:5.0}") double maxStaleSec,
+                                                 @Value("${lucene.reopen.min-stale-sec:0.025}") double minStaleSec,
+                                                 @Value("${search.cursor.max-age-sec:600}") double cursorMaxAgeSec) throws IOException {
+        log.info("Initializing Lucene index at path: {}", LUCENE_INDEX_PATH);
+        return new LuceneIndexManager(Paths.get(LUCENE_INDEX_PATH), analyzer, similarity, searcherFactory, ramBufferMb, deletesPctAllowed,
+                maxStaleSec, minStaleSec, cursorMaxAgeSec);
     }
 }
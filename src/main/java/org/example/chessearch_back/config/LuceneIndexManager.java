@@ -0,0 +1,586 @@
+package org.example.chessearch_back.config;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherLifetimeManager;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Owns the live Lucene index (Directory + IndexWriter + SearcherManager) and lets a rebuild be written aside
+ * into a fresh directory, then published with an atomic switch.
+ * Generations live in subdirectories of the index root ("index-&lt;millis&gt;"); the file LIVE_INDEX records the live
+ * one on its first line and the one kept for rollback on its second. An index written before generations existed
+ * lives in the root itself and is addressed by the empty name.
+ * Callers read the live writer on each operation and must not keep it across operations; searches go through
+ * {@link #acquireSearcher()}, which pins the generation until the searcher is released.
+ * Each published generation has a reopen thread refreshing its searchers within the configured staleness bounds,
+ * so searches only acquire; writers that need their changes visible call {@link #waitForGeneration(long)}.
+ * Searchers handed out for paging are recorded per generation and kept for cursorMaxAgeSec after a newer searcher
+ * replaced them, so later pages run on the same point-in-time view of the index.
+ * Generations are reference counted: a generation retired by a publish stays open, and its cursors resumable, for
+ * cursorMaxAgeSec, and is closed and deleted once that window passed and its last acquired searcher was released.
+ */
+public class LuceneIndexManager implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(LuceneIndexManager.class);
+
+    static final String LIVE_INDEX_FILE = "LIVE_INDEX";
+    private static final String GENERATION_PREFIX = "index-";
+
+    private final Path rootPath;
+    private final Analyzer analyzer;
+    private final Similarity similarity;
+    private final ChessSearcherFactory searcherFactory;
+    private final double ramBufferMb;
+    private final double deletesPctAllowed;
+    private final double maxStaleSec;
+    private final double minStaleSec;
+    private final double cursorMaxAgeSec;
+
+    private volatile IndexGeneration live;
+    /** previous live generation, kept open for rollback */
+    private IndexGeneration previous;
+    /** generations replaced by a publish, oldest first, released by the manager after cursorMaxAgeSec */
+    private final Deque<IndexGeneration> retired = new ConcurrentLinkedDeque<>();
+
+    /**
+     * @param rootPath directory holding the index generations
+     * @param analyzer analyzer of the writers
+     * @param similarity similarity of the writers
+     * @param searcherFactory creates the searchers of every generation
+     * @param ramBufferMb IndexWriter RAM buffer
+     * @param deletesPctAllowed share of deleted documents (5-50%) at which merges start reclaiming them
+     * @param maxStaleSec longest time searches may miss committed or added documents when nobody waits for them
+     * @param minStaleSec shortest time between reopens while a writer waits for its changes
+     * @param cursorMaxAgeSec how long a searcher recorded for paging is kept after it stopped being current
+     * @throws IOException if the live index cannot be opened
+     */
+    public LuceneIndexManager(Path rootPath, Analyzer analyzer, Similarity similarity, ChessSearcherFactory searcherFactory, double ramBufferMb,
+                              double deletesPctAllowed, double maxStaleSec, double minStaleSec,
+                              double cursorMaxAgeSec) throws IOException {
+        this.rootPath = rootPath;
+        this.analyzer = analyzer;
+        this.similarity = similarity;
+        this.searcherFactory = searcherFactory;
+        this.ramBufferMb = ramBufferMb;
+        this.deletesPctAllowed = deletesPctAllowed;
+        this.maxStaleSec = maxStaleSec;
+        this.minStaleSec = minStaleSec;
+        this.cursorMaxAgeSec = cursorMaxAgeSec;
+        Files.createDirectories(rootPath);
+
+        List<String> names = readLiveIndexFile();
+        deleteUnlistedGenerations(names);
+        String liveName = names.isEmpty() ? "" : names.get(0);
+        log.info("Opening live Lucene index '{}' at {}", liveName, rootPath);
+        this.live = openGeneration(liveName, IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        this.live.publish(maxStaleSec, minStaleSec);
+        if (names.size() > 1 && Files.isDirectory(resolve(names.get(1)))) {
+            try {
+                this.previous = openGeneration(names.get(1), IndexWriterConfig.OpenMode.APPEND);
+                this.previous.publish(maxStaleSec, minStaleSec);
+            } catch (IOException e) {
+                log.warn("Could not open previous index '{}', rollback will not be available: {}", names.get(1), e.getMessage());
+                this.previous = null;
+            }
+        }
+    }
+
+    public IndexWriter getIndexWriter() {
+        return live.writer;
+    }
+
+    public String getLiveIndexName() {
+        return live.name;
+    }
+
+    /**
+     * @return statistics of the search thread pool
+     */
+    public Map<String, Object> getSearcherStats() {
+        return searcherFactory.getStats();
+    }
+
+    /**
+     * Acquires a searcher of the live index; its generation stays open until the searcher is released, even when a
+     * publish retires it meanwhile. Release it with {@link #release(AcquiredSearcher)}.
+     * @return acquired searcher
+     * @throws IOException if the searcher cannot be acquired
+     */
+    public AcquiredSearcher acquireSearcher() throws IOException {
+        closeExpiredGenerations();
+        IndexGeneration generation = acquireLive();
+        try {
+            return new AcquiredSearcher(generation, generation.searcherManager.acquire());
+        } catch (IOException | RuntimeException e) {
+            generation.decRef();
+            throw e;
+        }
+    }
+
+    /**
+     * Acquires a searcher for a paged search. With a cursor from an earlier page the searcher recorded then is
+     * returned if its generation is still open and it was not pruned, otherwise the current live searcher is acquired
+     * and recorded. Release it with {@link #release(AcquiredSearcher)}.
+     * @param generationName generation of the cursor, or null for a first page
+     * @param version reader version of the cursor
+     * @return acquired searcher with the generation and version to put in the next cursor
+     * @throws IOException if the live searcher cannot be acquired
+     */
+    public RecordedSearcher acquireRecorded(String generationName, long version) throws IOException {
+        closeExpiredGenerations();
+        if (generationName != null) {
+            IndexGeneration generation = findGeneration(generationName);
+            if (generation != null && generation.tryIncRef()) {
+                IndexSearcher searcher = null;
+                try {
+                    searcher = generation.searcherLifetimes.acquire(version);
+                } catch (AlreadyClosedException e) {
+                    log.debug("Generation '{}' was closed while resuming a cursor", generationName);
+                }
+                if (searcher != null) {
+                    return new RecordedSearcher(generation, version, searcher, true);
+                }
+                generation.decRef();
+            }
+            log.info("Searcher of cursor (generation '{}', version {}) is gone, resuming on the live index", generationName, version);
+        }
+        IndexGeneration generation = acquireLive();
+        IndexSearcher searcher = null;
+        try {
+            searcher = generation.searcherManager.acquire();
+            generation.searcherLifetimes.prune(new SearcherLifetimeManager.PruneByAge(cursorMaxAgeSec));
+            long recordedVersion = generation.searcherLifetimes.record(searcher);
+            return new RecordedSearcher(generation, recordedVersion, searcher, false);
+        } catch (IOException | RuntimeException e) {
+            try {
+                if (searcher != null) {
+                    generation.searcherManager.release(searcher);
+                }
+            } finally {
+                generation.decRef();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Releases a searcher from {@link #acquireSearcher()} or {@link #acquireRecorded(String, long)}; a recorded
+     * searcher stays recorded until pruned
+     * @param acquired acquired searcher
+     * @throws IOException if closing the last reference fails
+     */
+    public void release(AcquiredSearcher acquired) throws IOException {
+        acquired.close();
+    }
+
+    /**
+     * @return the live generation with a reference taken, release it with decRef
+     */
+    private IndexGeneration acquireLive() {
+        while (true) {
+            IndexGeneration generation = live;
+            if (generation.tryIncRef()) {
+                return generation;
+            }
+            if (generation == live) {
+                throw new AlreadyClosedException("Index generation '" + generation.name + "' is closed");
+            }
+            // a publish replaced it meanwhile, retry on the new live generation
+        }
+    }
+
+    private synchronized IndexGeneration findGeneration(String name) {
+        if (live.name.equals(name)) {
+            return live;
+        }
+        if (previous != null && previous.name.equals(name)) {
+            return previous;
+        }
+        for (IndexGeneration generation : retired) {
+            if (generation.name.equals(name)) {
+                return generation;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops the manager's reference of generations retired longer than cursorMaxAgeSec ago; each is closed and
+     * deleted once its last acquired searcher is released
+     */
+    private void closeExpiredGenerations() {
+        long maxAgeNanos = (long) (cursorMaxAgeSec * 1_000_000_000L);
+        IndexGeneration oldest;
+        while ((oldest = retired.peekFirst()) != null && System.nanoTime() - oldest.retiredNanos > maxAgeNanos) {
+            if (retired.remove(oldest)) {
+                log.info("Releasing retired index generation '{}'", oldest.name);
+                oldest.decRef();
+            }
+        }
+    }
+
+    /**
+     * Blocks until searchers of the live index see the change with the given sequence number
+     * @param sequenceNumber sequence number returned by an IndexWriter operation (addDocument, deleteDocuments, commit)
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void waitForGeneration(long sequenceNumber) throws InterruptedException {
+        live.reopenThread.waitForGeneration(sequenceNumber);
+    }
+
+    /**
+     * Creates an empty index in a fresh directory next to the live one, for a rebuild
+     * @return generation that is not searchable until {@link #publish(IndexGeneration)}
+     * @throws IOException if the directory or writer cannot be created
+     */
+    public IndexGeneration createGeneration() throws IOException {
+        String name = GENERATION_PREFIX + System.currentTimeMillis();
+        log.info("Creating index generation '{}'", name);
+        return openGeneration(name, IndexWriterConfig.OpenMode.CREATE);
+    }
+
+    /**
+     * Makes a committed generation the live index. The old live index is kept open for {@link #rollback()},
+     * the one kept before it is retired: searches and cursors still using it keep working, and it is closed and
+     * deleted after cursorMaxAgeSec once they released it.
+     * @param generation generation from {@link #createGeneration()}, with all changes committed
+     * @throws IOException if the searcher cannot be opened or the switch cannot be recorded
+     */
+    public synchronized void publish(IndexGeneration generation) throws IOException {
+        generation.publish(maxStaleSec, minStaleSec);
+        IndexGeneration retiring = previous;
+        previous = live;
+        live = generation;
+        writeLiveIndexFile();
+        log.info("Index generation '{}' is live, '{}' kept for rollback", live.name, previous.name);
+        if (retiring != null) {
+            retiring.retire(!retiring.name.isEmpty() ? resolve(retiring.name) : null);
+            retired.addLast(retiring);
+            log.info("Index generation '{}' retired, closed once released and {} s old", retiring.name, cursorMaxAgeSec);
+        }
+        closeExpiredGenerations();
+    }
+
+    /**
+     * Drops a generation that was not published, deleting its directory
+     * @param generation generation from {@link #createGeneration()}
+     */
+    public void discard(IndexGeneration generation) {
+        log.warn("Discarding index generation '{}'", generation.name);
+        try {
+            generation.writer.rollback();
+        } catch (IOException e) {
+            log.error("Error rolling back writer of generation '{}'", generation.name, e);
+        }
+        generation.close();
+        deleteGenerationDirectory(generation.name.isEmpty() ? null : resolve(generation.name));
+    }
+
+    /**
+     * Switches back to the index that was live before the last publish. Changes written to the current live index
+     * since then are not carried over.
+     * @return false if there is no previous index to go back to
+     * @throws IOException if the switch cannot be recorded
+     */
+    public synchronized boolean rollback() throws IOException {
+        if (previous == null) {
+            return false;
+        }
+        IndexGeneration current = live;
+        live = previous;
+        previous = current;
+        writeLiveIndexFile();
+        log.warn("Rolled back to index generation '{}', '{}' kept", live.name, previous.name);
+        return true;
+    }
+
+    /**
+     * Closes all open generations, committing pending changes of the live one
+     */
+    @Override
+    public synchronized void close() {
+        log.info("Closing Lucene resources...");
+        try {
+            if (live.writer.hasUncommittedChanges()) {
+                log.info("Committing changes before closing IndexWriter...");
+                live.writer.commit();
+            }
+        } catch (IOException e) {
+            log.error("Error committing IndexWriter", e);
+        }
+        live.close();
+        if (previous != null) {
+            previous.close();
+        }
+        IndexGeneration generation;
+        while ((generation = retired.pollFirst()) != null) {
+            generation.close();
+            deleteGenerationDirectory(generation.deletePath);
+        }
+    }
+
+    private IndexGeneration openGeneration(String name, IndexWriterConfig.OpenMode openMode) throws IOException {
+        Directory directory = FSDirectory.open(resolve(name));
+        try {
+            IndexWriterConfig config = new IndexWriterConfig(analyzer);
+            config.setSimilarity(similarity);
+            config.setOpenMode(openMode);
+            config.setRAMBufferSizeMB(ramBufferMb);
+            TieredMergePolicy mergePolicy = new TieredMergePolicy();
+            mergePolicy.setDeletesPctAllowed(deletesPctAllowed);
+            config.setMergePolicy(mergePolicy);
+            return new IndexGeneration(name, directory, new IndexWriter(directory, config), searcherFactory);
+        } catch (IOException | RuntimeException e) {
+            directory.close();
+            throw e;
+        }
+    }
+
+    private Path resolve(String name) {
+        return name.isEmpty() ? rootPath : rootPath.resolve(name);
+    }
+
+    private List<String> readLiveIndexFile() throws IOException {
+        Path file = rootPath.resolve(LIVE_INDEX_FILE);
+        if (!Files.exists(file)) {
+            return List.of();
+        }
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            return lines.map(String::trim).toList();
+        }
+    }
+
+    private void writeLiveIndexFile() throws IOException {
+        Path tmp = rootPath.resolve(LIVE_INDEX_FILE + ".tmp");
+        String content = live.name + "\n" + (previous != null ? previous.name + "\n" : "");
+        Files.writeString(tmp, content, StandardCharsets.UTF_8);
+        Files.move(tmp, rootPath.resolve(LIVE_INDEX_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Deletes generation directories that are neither live nor kept for rollback, e.g. retired generations whose
+     * deletion a shutdown cut short
+     */
+    private void deleteUnlistedGenerations(List<String> names) throws IOException {
+        try (Stream<Path> paths = Files.list(rootPath)) {
+            paths.filter(path -> Files.isDirectory(path) && path.getFileName().toString().startsWith(GENERATION_PREFIX))
+                    .filter(path -> !names.contains(path.getFileName().toString()))
+                    .forEach(path -> {
+                        log.info("Deleting unused index generation directory {}", path);
+                        deleteGenerationDirectory(path);
+                    });
+        }
+    }
+
+    /**
+     * @param path generation directory, null for the index root whose old files are left in place
+     */
+    private static void deleteGenerationDirectory(Path path) {
+        if (path == null) {
+            log.info("Old index files in the index root are left in place");
+            return;
+        }
+        try {
+            IOUtils.rm(path);
+        } catch (IOException e) {
+            log.error("Could not delete index generation directory {}", path, e);
+        }
+    }
+
+    /**
+     * Searcher acquired from the manager, holding a reference to its generation until released
+     */
+    public static class AcquiredSearcher implements Closeable {
+        private final IndexGeneration generation;
+        private final IndexSearcher searcher;
+
+        private AcquiredSearcher(IndexGeneration generation, IndexSearcher searcher) {
+            this.generation = generation;
+            this.searcher = searcher;
+        }
+
+        public IndexSearcher getSearcher() {
+            return searcher;
+        }
+
+        /**
+         * Releases the searcher and the generation reference
+         * @throws IOException if closing the last reader reference fails
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                searcher.getIndexReader().decRef();
+            } finally {
+                generation.decRef();
+            }
+        }
+    }
+
+    /**
+     * Searcher acquired for paging, with the generation and reader version that find it again
+     */
+    public static final class RecordedSearcher extends AcquiredSearcher {
+        private final String generationName;
+        private final long version;
+        private final boolean resumed;
+
+        private RecordedSearcher(IndexGeneration generation, long version, IndexSearcher searcher, boolean resumed) {
+            super(generation, searcher);
+            this.generationName = generation.name;
+            this.version = version;
+            this.resumed = resumed;
+        }
+
+        public String getGenerationName() {
+            return generationName;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return true if this is the searcher the cursor was created on
+         */
+        public boolean isResumed() {
+            return resumed;
+        }
+    }
+
+    /**
+     * One index directory with its writer, and its searcher manager once published.
+     * The manager holds one reference while the generation is live, kept for rollback or recently retired,
+     * every acquired searcher holds another; the last decRef closes it.
+     */
+    public static final class IndexGeneration {
+        private final String name;
+        private final Directory directory;
+        private final IndexWriter writer;
+        private final SearcherFactory searcherFactory;
+        private SearcherManager searcherManager;
+        /** searchers of paged searches, by reader version */
+        private SearcherLifetimeManager searcherLifetimes;
+        private ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+        private final AtomicBoolean closed = new AtomicBoolean();
+        /** System.nanoTime() of the publish that retired it */
+        private volatile long retiredNanos;
+        /** directory deleted with the last reference, null to keep it */
+        private volatile Path deletePath;
+
+        private IndexGeneration(String name, Directory directory, IndexWriter writer, SearcherFactory searcherFactory) {
+            this.name = name;
+            this.directory = directory;
+            this.writer = writer;
+            this.searcherFactory = searcherFactory;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public IndexWriter getIndexWriter() {
+            return writer;
+        }
+
+        private void publish(double maxStaleSec, double minStaleSec) throws IOException {
+            if (searcherManager == null) {
+                boolean applyAllDeletes = true;
+                searcherManager = new SearcherManager(writer, applyAllDeletes, false, searcherFactory);
+                searcherLifetimes = new SearcherLifetimeManager();
+                reopenThread = new ControlledRealTimeReopenThread<>(writer, searcherManager, maxStaleSec, minStaleSec);
+                reopenThread.setName("index-reopen-" + (name.isEmpty() ? "root" : name));
+                reopenThread.setDaemon(true);
+                reopenThread.start();
+            }
+        }
+
+        private boolean tryIncRef() {
+            int count;
+            while ((count = refCount.get()) > 0) {
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void decRef() {
+            if (refCount.decrementAndGet() == 0) {
+                close();
+                deleteGenerationDirectory(deletePath);
+            }
+        }
+
+        /**
+         * @param deletePath directory to delete once closed, null to keep it
+         */
+        private void retire(Path deletePath) {
+            this.retiredNanos = System.nanoTime();
+            this.deletePath = deletePath;
+        }
+
+        private void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (reopenThread != null) {
+                reopenThread.close();
+            }
+            if (searcherLifetimes != null) {
+                try {
+                    searcherLifetimes.close();
+                } catch (IOException e) {
+                    log.error("Error closing recorded searchers of '{}'", name, e);
+                }
+            }
+            if (searcherManager != null) {
+                try {
+                    searcherManager.close();
+                } catch (IOException e) {
+                    log.error("Error closing SearcherManager of '{}'", name, e);
+                }
+            }
+            try {
+                if (writer.isOpen()) {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                log.error("Error closing IndexWriter of '{}'", name, e);
+            }
+            try {
+                directory.close();
+            } catch (IOException e) {
+                log.error("Error closing Directory of '{}'", name, e);
+            }
+        }
+    }
+}
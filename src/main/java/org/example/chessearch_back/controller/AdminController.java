@@ -2,6 +2,7 @@ package org.example.chessearch_back.controller;
 
 import org.example.chessearch_back.service.GameManagementService;
 import org.example.chessearch_back.service.IndexingService;
+import org.example.chessearch_back.service.PositionSearchService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -26,11 +27,14 @@ public class AdminController {
     private static final Logger log = LoggerFactory.getLogger(AdminController.class);
     private final IndexingService indexingService;
     private final GameManagementService gameManagementService;
+    private final PositionSearchService positionSearchService;
 
     @Autowired
-    public AdminController(IndexingService indexingService, GameManagementService gameManagementService) {
+    public AdminController(IndexingService indexingService, GameManagementService gameManagementService,
+                           PositionSearchService positionSearchService) {
         this.indexingService = indexingService;
         this.gameManagementService = gameManagementService;
+        this.positionSearchService = positionSearchService;
     }
 
     /**
@@ -61,6 +65,46 @@ public class AdminController {
         }
     }
 
+    /**
+     * Handles POST requests to switch back to the index that was live before the last rebuild
+     * @return ResponseEntity indicating success or failure
+     */
+    @PostMapping("/rollback")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<String> rollbackIndex() {
+        log.warn("Received request to roll back Lucene index");
+        try {
+            if (!indexingService.rollbackIndex()) {
+                return ResponseEntity.status(HttpStatus.CONFLICT).body("No previous index to roll back to");
+            }
+            String message = "Lucene index rolled back to the previous build";
+            log.info(message);
+            return ResponseEntity.ok(message);
+        } catch (Exception e) {
+            log.error("Error during index rollback: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Failed to roll back index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handles POST requests to compute the position hash of FEN rows stored before the column existed
+     * @return ResponseEntity with the number of rows updated
+     */
+    @PostMapping("/position-hashes/backfill")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<String> backfillPositionHashes() {
+        log.warn("Received request to backfill position hashes");
+        try {
+            long updated = gameManagementService.backfillPositionHashes();
+            return ResponseEntity.ok(String.format("%d position hashes backfilled", updated));
+        } catch (Exception e) {
+            log.error("Error during position hash backfill: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body("Failed to backfill position hashes: " + e.getMessage());
+        }
+    }
+
     /**
      * SSE endpoint for index rebuild progress
      */
@@ -198,6 +242,23 @@ public class AdminController {
         }
     }
 
+    /**
+     * Deletes several games from both database and index
+     * @param gameIds ids of the games to delete
+     * @return ResponseEntity with success or error message
+     */
+    @PostMapping("/games/delete")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<?> deleteGames(@RequestBody List<Integer> gameIds) {
+        try {
+            int deleted = gameManagementService.deleteGames(gameIds);
+            return ResponseEntity.ok().body(String.format("%d games deleted successfully", deleted));
+        } catch (Exception e) {
+            log.error("Error deleting games {}: {}", gameIds, e.getMessage());
+            return ResponseEntity.badRequest().body("Failed to delete games: " + e.getMessage());
+        }
+    }
+
     /**
      * Clears all games from both database and index
      * @return ResponseEntity with success or error message
@@ -231,5 +292,20 @@ public class AdminController {
                     .body(Map.of("error", e.getMessage()));
         }
     }
-}
 
+    /**
+     * Get search statistics
+     * @return ResponseEntity with search statistics
+     */
+    @GetMapping("/search-stats")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Map<String, Object>> getSearchStats() {
+        try {
+            return ResponseEntity.ok(positionSearchService.getSearchStats());
+        } catch (Exception e) {
+            log.error("Error getting search stats: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", e.getMessage()));
+        }
+    }
+}
@@ -1,17 +1,32 @@
 package org.example.chessearch_back.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.example.chessearch_back.dto.BatchSearchRequest;
+import org.example.chessearch_back.dto.BatchSearchResultDto;
+import org.example.chessearch_back.dto.SearchFilter;
+import org.example.chessearch_back.dto.SearchResponseDto;
 import org.example.chessearch_back.dto.SearchResultDto;
 import org.example.chessearch_back.service.PositionSearchService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.Collections;
 import java.util.List;
 
@@ -25,25 +40,52 @@ public class SearchController {
     private static final Logger log = LoggerFactory.getLogger(SearchController.class);
 
     private final PositionSearchService positionSearchService;
+    private final ObjectMapper objectMapper;
     private static final int DEFAULT_SEARCH_LIMIT = 10;
     private static final int MAX_SEARCH_LIMIT = 50;
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final int MAX_PATTERN_TERMS = 64;
+    private static final String NDJSON = "application/x-ndjson";
+    /** response headers of GET /api/search, whose body stays a plain result list */
+    private static final String PARTIAL_HEADER = "X-Search-Partial";
+    private static final String ELAPSED_HEADER = "X-Search-Elapsed-Ms";
 
     @Autowired
-    public SearchController(PositionSearchService positionSearchService) {
+    public SearchController(PositionSearchService positionSearchService, ObjectMapper objectMapper) {
         this.positionSearchService = positionSearchService;
+        this.objectMapper = objectMapper;
     }
 
     /**
      * Handles GET requests to search for similar positions based on a FEN string.
-     * /api/search?fen=...&limit=20
+     * /api/search?fen=...&limit=20&minElo=2200&dateFrom=2015-01-01&result=1-0&eco=B9&symmetric=true&mode=knn
      * @param fen FEN string representing the query position
      * @param limit The maximum number of unique game results to return (default 10)
-     * @return A ResponseEntity containing a List of SearchResultDto or an error response
+     * @param eco ECO code or part of it
+     * @param dateFromString Earliest game date (YYYY-MM-DD)
+     * @param dateToString Latest game date (YYYY-MM-DD)
+     * @param result Game result ("1-0", "0-1", "1/2-1/2")
+     * @param minElo Minimum Elo of either player
+     * @param maxElo Maximum Elo of either player
+     * @param budgetMs Time budget in milliseconds, can only lower search.time-budget-ms
+     * @param symmetric Also find the color-flipped and mirrored position (default false)
+     * @param mode Retrieval engine: full, two_phase or knn (default search.mode); knn cannot be symmetric
+     * @return A ResponseEntity containing a List of SearchResultDto or an error response; the headers
+     * X-Search-Partial (true if the time budget cut the search short) and X-Search-Elapsed-Ms describe the search
      */
     @GetMapping
     public ResponseEntity<?> performSearch(
             @RequestParam(name = "fen", required = true) String fen,
-            @RequestParam(name = "limit", required = false, defaultValue = "" + DEFAULT_SEARCH_LIMIT) int limit) {
+            @RequestParam(name = "limit", required = false, defaultValue = "" + DEFAULT_SEARCH_LIMIT) int limit,
+            @RequestParam(required = false) String eco,
+            @RequestParam(name = "dateFrom", required = false) String dateFromString,
+            @RequestParam(name = "dateTo", required = false) String dateToString,
+            @RequestParam(required = false) String result,
+            @RequestParam(required = false) Integer minElo,
+            @RequestParam(required = false) Integer maxElo,
+            @RequestParam(required = false) Long budgetMs,
+            @RequestParam(required = false, defaultValue = "false") boolean symmetric,
+            @RequestParam(required = false) String mode) {
 
         log.info("Received search request for FEN: '{}', limit: {}", fen, limit);
 
@@ -53,24 +95,42 @@ public class SearchController {
         }
         String trimmedFen = fen.trim();
 
-        int effectiveLimit = limit;
-        if (effectiveLimit <= 0) {
-            log.warn("Invalid limit '{}' requested, using default {}.", limit, DEFAULT_SEARCH_LIMIT);
-            effectiveLimit = DEFAULT_SEARCH_LIMIT;
-        } else if (effectiveLimit > MAX_SEARCH_LIMIT) {
-            log.warn("Requested limit {} exceeds maximum {}, using {}.", limit, MAX_SEARCH_LIMIT, MAX_SEARCH_LIMIT);
-            effectiveLimit = MAX_SEARCH_LIMIT;
+        int effectiveLimit = effectiveLimit(limit);
+
+        PositionSearchService.SearchMode searchMode = null;
+        if (mode != null && !mode.isBlank()) {
+            try {
+                searchMode = PositionSearchService.SearchMode.valueOf(mode.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body("mode must be 'full', 'two_phase' or 'knn'.");
+            }
+            if (symmetric && searchMode == PositionSearchService.SearchMode.KNN) {
+                return ResponseEntity.badRequest().body("symmetric search is not supported in knn mode.");
+            }
         }
 
+        SearchFilter filter;
         try {
-            List<SearchResultDto> results = positionSearchService.searchSimilar(trimmedFen, effectiveLimit);
+            filter = new SearchFilter(eco, parseDate(dateFromString), parseDate(dateToString), result, minElo, maxElo);
+            filter.validate();
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            log.warn("Invalid search filter: {}", e.getMessage());
+            return ResponseEntity.badRequest().body("Invalid filter: " + e.getMessage());
+        }
+
+        try {
+            SearchResponseDto response = positionSearchService.searchSimilar(trimmedFen, effectiveLimit, filter, budgetMs, symmetric, searchMode);
+            List<SearchResultDto> results = response.getResults();
+            ResponseEntity.BodyBuilder ok = ResponseEntity.ok()
+                    .header(PARTIAL_HEADER, Boolean.toString(response.isPartial()))
+                    .header(ELAPSED_HEADER, Long.toString(response.getElapsedMs()));
 
             if (results.isEmpty()) {
                 log.info("No similar positions found for FEN: '{}'", trimmedFen);
-                return ResponseEntity.ok(Collections.emptyList());
+                return ok.body(Collections.emptyList());
             } else {
                 log.info("Returning {} search results for FEN: '{}'", results.size(), trimmedFen);
-                return ResponseEntity.ok(results);
+                return ok.body(results);
             }
 
         } catch (IllegalArgumentException e) {
@@ -81,4 +141,236 @@ public class SearchController {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("An internal error occurred during search.");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Handles GET requests for one page of similar positions, for paging deeper than the limit allows.
+     * /api/search/page?fen=...&limit=20 for the first page, then the same parameters plus cursor=&lt;nextCursor&gt;
+     * Takes the same filters as /api/search. Deeper pages cost more: page N scores and holds the games of all N
+     * pages, the cursor keeps the page boundaries stable on one index state.
+     * @param fen FEN string representing the query position
+     * @param limit The maximum number of unique games per page (default 10)
+     * @param cursor nextCursor of the previous page, absent for the first page
+     * @param budgetMs Time budget in milliseconds, can only lower search.time-budget-ms
+     * @return A ResponseEntity containing a SearchPageDto or an error response
+     */
+    @GetMapping("/page")
+    public ResponseEntity<?> performPagedSearch(
+            @RequestParam(name = "fen") String fen,
+            @RequestParam(name = "limit", required = false, defaultValue = "" + DEFAULT_SEARCH_LIMIT) int limit,
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @RequestParam(required = false) String eco,
+            @RequestParam(name = "dateFrom", required = false) String dateFromString,
+            @RequestParam(name = "dateTo", required = false) String dateToString,
+            @RequestParam(required = false) String result,
+            @RequestParam(required = false) Integer minElo,
+            @RequestParam(required = false) Integer maxElo,
+            @RequestParam(required = false) Long budgetMs) {
+        if (fen == null || fen.trim().isEmpty()) {
+            log.warn("Paged search request received with empty FEN parameter.");
+            return ResponseEntity.badRequest().body("FEN parameter cannot be empty.");
+        }
+        String trimmedFen = fen.trim();
+        int effectiveLimit = effectiveLimit(limit);
+        log.info("Received paged search request for FEN: '{}', limit: {}, cursor: {}", trimmedFen, effectiveLimit, cursor != null);
+
+        SearchFilter filter;
+        try {
+            filter = new SearchFilter(eco, parseDate(dateFromString), parseDate(dateToString), result, minElo, maxElo);
+            filter.validate();
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            log.warn("Invalid search filter: {}", e.getMessage());
+            return ResponseEntity.badRequest().body("Invalid filter: " + e.getMessage());
+        }
+
+        try {
+            return ResponseEntity.ok(positionSearchService.searchPage(trimmedFen, effectiveLimit, filter, cursor, budgetMs));
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid paged search for FEN '{}': {}", trimmedFen, e.getMessage());
+            return ResponseEntity.badRequest().body("Invalid request: " + e.getMessage());
+        } catch (Exception e) {
+            log.error("Unexpected error during paged search for FEN '{}': {}", trimmedFen, e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("An internal error occurred during search.");
+        }
+    }
+
+    /**
+     * Handles GET requests to search for a partial-board pattern instead of a full position.
+     * /api/search/pattern?must=Nd5,P%3CNd5,qd8&should=N%3Eqd8&limit=20
+     * Terms are piece placements (Nd5) and relations: attack (N&gt;qd5), defense (P&lt;Nd5) and ray attack (R=qd8),
+     * separated by commas or spaces. Takes the same filters as /api/search.
+     * @param must Terms every result must contain
+     * @param should Terms that raise the score of a result
+     * @param limit The maximum number of unique game results to return (default 10)
+     * @param budgetMs Time budget in milliseconds, can only lower search.time-budget-ms
+     * @return A ResponseEntity containing a SearchResponseDto or an error response
+     */
+    @GetMapping("/pattern")
+    public ResponseEntity<?> performPatternSearch(
+            @RequestParam(required = false) String must,
+            @RequestParam(required = false) String should,
+            @RequestParam(name = "limit", required = false, defaultValue = "" + DEFAULT_SEARCH_LIMIT) int limit,
+            @RequestParam(required = false) String eco,
+            @RequestParam(name = "dateFrom", required = false) String dateFromString,
+            @RequestParam(name = "dateTo", required = false) String dateToString,
+            @RequestParam(required = false) String result,
+            @RequestParam(required = false) Integer minElo,
+            @RequestParam(required = false) Integer maxElo,
+            @RequestParam(required = false) Long budgetMs) {
+        List<String> requiredTerms = splitTerms(must);
+        List<String> optionalTerms = splitTerms(should);
+        if (requiredTerms.isEmpty() && optionalTerms.isEmpty()) {
+            log.warn("Pattern search request received without terms.");
+            return ResponseEntity.badRequest().body("must or should parameter is required.");
+        }
+        if (requiredTerms.size() + optionalTerms.size() > MAX_PATTERN_TERMS) {
+            return ResponseEntity.badRequest().body("At most " + MAX_PATTERN_TERMS + " pattern terms.");
+        }
+        int effectiveLimit = effectiveLimit(limit);
+        log.info("Received pattern search request, must: {}, should: {}, limit: {}", requiredTerms, optionalTerms, effectiveLimit);
+
+        SearchFilter filter;
+        try {
+            filter = new SearchFilter(eco, parseDate(dateFromString), parseDate(dateToString), result, minElo, maxElo);
+            filter.validate();
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            log.warn("Invalid search filter: {}", e.getMessage());
+            return ResponseEntity.badRequest().body("Invalid filter: " + e.getMessage());
+        }
+
+        try {
+            return ResponseEntity.ok(positionSearchService.searchPattern(requiredTerms, optionalTerms, effectiveLimit, filter, budgetMs));
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid pattern: {}", e.getMessage());
+            return ResponseEntity.badRequest().body("Invalid pattern: " + e.getMessage());
+        } catch (Exception e) {
+            log.error("Unexpected error during pattern search: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("An internal error occurred during search.");
+        }
+    }
+
+    /**
+     * Handles GET requests for games reaching exactly the given position.
+     * /api/search/exact?fen=...&limit=20&source=index
+     * @param fen FEN string of the position
+     * @param limit The maximum number of games to return (default 10)
+     * @param source "index" to look the position hash up in Lucene, "database" to use the fen_position hash index
+     * @return A ResponseEntity containing a List of SearchResultDto or an error response
+     */
+    @GetMapping("/exact")
+    public ResponseEntity<?> performExactSearch(
+            @RequestParam(name = "fen") String fen,
+            @RequestParam(name = "limit", required = false, defaultValue = "" + DEFAULT_SEARCH_LIMIT) int limit,
+            @RequestParam(name = "source", required = false, defaultValue = "index") String source) {
+        if (fen == null || fen.trim().isEmpty()) {
+            log.warn("Exact search request received with empty FEN parameter.");
+            return ResponseEntity.badRequest().body("FEN parameter cannot be empty.");
+        }
+        String trimmedFen = fen.trim();
+        int effectiveLimit = effectiveLimit(limit);
+        log.info("Received exact search request for FEN: '{}', limit: {}, source: {}", trimmedFen, effectiveLimit, source);
+
+        try {
+            List<SearchResultDto> results = switch (source) {
+                case "index" -> positionSearchService.searchExact(trimmedFen, effectiveLimit);
+                case "database" -> positionSearchService.searchExactInDatabase(trimmedFen, effectiveLimit);
+                default -> null;
+            };
+            if (results == null) {
+                return ResponseEntity.badRequest().body("source must be 'index' or 'database'.");
+            }
+            return ResponseEntity.ok(results);
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid FEN format provided for exact search: '{}' - {}", trimmedFen, e.getMessage());
+            return ResponseEntity.badRequest().body("Invalid FEN format: " + e.getMessage());
+        } catch (Exception e) {
+            log.error("Unexpected error during exact search for FEN '{}': {}", trimmedFen, e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("An internal error occurred during search.");
+        }
+    }
+
+    /**
+     * Handles POST requests to search many FENs at once against the same index state.
+     * /api/search/batch with body {"fens": [...], "limit": 10, "filter": {"minElo": 2200, "dateFrom": "2015-01-01"}, "timeBudgetMs": 5000}
+     * Responds with a JSON array in request order, or with one JSON line per FEN as each finishes when the client
+     * accepts application/x-ndjson (lines carry their request index).
+     * Like every POST it is CSRF protected: clients send the XSRF-TOKEN cookie back in the X-XSRF-TOKEN header.
+     * @param request FENs, the maximum number of unique games per FEN (default 10), an optional game filter and
+     *                time budget for the whole batch
+     * @param accept Accept header of the request
+     * @return A ResponseEntity with the list of BatchSearchResultDto, an NDJSON stream, or an error response
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<?> performBatchSearch(@RequestBody BatchSearchRequest request,
+                                                @RequestHeader(name = HttpHeaders.ACCEPT, required = false) String accept) {
+        List<String> fens = request.getFens();
+        if (fens == null || fens.isEmpty()) {
+            log.warn("Batch search request received without FENs.");
+            return ResponseEntity.badRequest().body("fens cannot be empty.");
+        }
+        if (fens.size() > MAX_BATCH_SIZE) {
+            log.warn("Batch search request with {} FENs exceeds maximum {}.", fens.size(), MAX_BATCH_SIZE);
+            return ResponseEntity.badRequest().body("At most " + MAX_BATCH_SIZE + " FENs per batch.");
+        }
+        SearchFilter filter = request.getFilter();
+        if (filter != null) {
+            try {
+                filter.validate();
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid batch search filter: {}", e.getMessage());
+                return ResponseEntity.badRequest().body("Invalid filter: " + e.getMessage());
+            }
+        }
+        List<String> trimmedFens = fens.stream().map(fen -> fen == null ? "" : fen.trim()).toList();
+        int effectiveLimit = effectiveLimit(request.getLimit() != null ? request.getLimit() : DEFAULT_SEARCH_LIMIT);
+        log.info("Received batch search request for {} FENs, limit: {}", trimmedFens.size(), effectiveLimit);
+
+        if (accept != null && accept.contains(NDJSON)) {
+            StreamingResponseBody body = outputStream -> {
+                try {
+                    positionSearchService.searchBatch(trimmedFens, effectiveLimit, filter, request.getTimeBudgetMs(), result -> {
+                        try {
+                            byte[] line = objectMapper.writeValueAsBytes(result);
+                            synchronized (outputStream) {
+                                outputStream.write(line);
+                                outputStream.write('\n');
+                                outputStream.flush();
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            };
+            return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
+        }
+
+        try {
+            List<BatchSearchResultDto> results = positionSearchService.searchBatch(trimmedFens, effectiveLimit, filter, request.getTimeBudgetMs());
+            return ResponseEntity.ok(results);
+        } catch (Exception e) {
+            log.error("Unexpected error during batch search of {} FENs: {}", trimmedFens.size(), e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("An internal error occurred during search.");
+        }
+    }
+
+    static List<String> splitTerms(String terms) {
+        return terms == null || terms.isBlank() ? List.of() : List.of(terms.trim().split("[,\\s]+"));
+    }
+
+    private static LocalDate parseDate(String date) {
+        return date == null || date.isBlank() ? null : LocalDate.parse(date.trim());
+    }
+
+    private static int effectiveLimit(int limit) {
+        if (limit <= 0) {
+            log.warn("Invalid limit '{}' requested, using default {}.", limit, DEFAULT_SEARCH_LIMIT);
+            return DEFAULT_SEARCH_LIMIT;
+        } else if (limit > MAX_SEARCH_LIMIT) {
+            log.warn("Requested limit {} exceeds maximum {}, using {}.", limit, MAX_SEARCH_LIMIT, MAX_SEARCH_LIMIT);
+            return MAX_SEARCH_LIMIT;
+        }
+        return limit;
+    }
+}
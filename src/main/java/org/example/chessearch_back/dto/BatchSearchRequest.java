@@ -0,0 +1,39 @@
+package org.example.chessearch_back.dto;
+
+import java.util.List;
+
+/**
+ * DTO representing a batch search request: the query FENs, the max number of games per query and an optional
+ * game metadata filter applied to every query, and an optional time budget for the whole batch in milliseconds
+ */
+public class BatchSearchRequest {
+    private List<String> fens;
+    private Integer limit;
+    private SearchFilter filter;
+    private Long timeBudgetMs;
+
+    public List<String> getFens() {
+        return fens;
+    }
+    public void setFens(List<String> fens) {
+        this.fens = fens;
+    }
+    public Integer getLimit() {
+        return limit;
+    }
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+    public SearchFilter getFilter() {
+        return filter;
+    }
+    public void setFilter(SearchFilter filter) {
+        this.filter = filter;
+    }
+    public Long getTimeBudgetMs() {
+        return timeBudgetMs;
+    }
+    public void setTimeBudgetMs(Long timeBudgetMs) {
+        this.timeBudgetMs = timeBudgetMs;
+    }
+}
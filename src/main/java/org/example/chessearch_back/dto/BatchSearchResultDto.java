@@ -0,0 +1,63 @@
+package org.example.chessearch_back.dto;
+
+import java.util.List;
+
+/**
+ * DTO representing the outcome of one query of a batch search: its position in the request, the FEN,
+ * and either the results or an error message, whether the time budget cut the query short and how long it took
+ */
+public class BatchSearchResultDto {
+
+    private int index;
+    private String fen;
+    private List<SearchResultDto> results;
+    private String error;
+    private boolean partial;
+    private long elapsedMs;
+
+    public BatchSearchResultDto() {
+    }
+
+    public BatchSearchResultDto(int index, String fen) {
+        this.index = index;
+        this.fen = fen;
+        this.results = List.of();
+    }
+
+    public int getIndex() {
+        return index;
+    }
+    public void setIndex(int index) {
+        this.index = index;
+    }
+    public String getFen() {
+        return fen;
+    }
+    public void setFen(String fen) {
+        this.fen = fen;
+    }
+    public List<SearchResultDto> getResults() {
+        return results;
+    }
+    public void setResults(List<SearchResultDto> results) {
+        this.results = results;
+    }
+    public String getError() {
+        return error;
+    }
+    public void setError(String error) {
+        this.error = error;
+    }
+    public boolean isPartial() {
+        return partial;
+    }
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+    public long getElapsedMs() {
+        return elapsedMs;
+    }
+    public void setElapsedMs(long elapsedMs) {
+        this.elapsedMs = elapsedMs;
+    }
+}
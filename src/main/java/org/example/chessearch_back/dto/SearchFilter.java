@@ -0,0 +1,104 @@
+package org.example.chessearch_back.dto;
+
+import java.time.LocalDate;
+import java.util.regex.Pattern;
+
+/**
+ * Game metadata filters of a similarity search, same meaning as the game list filters:
+ * eco matches as substring, minElo / maxElo hold if either player is in range, dates are inclusive
+ */
+public class SearchFilter {
+
+    private static final Pattern ECO_PATTERN = Pattern.compile("[A-Za-z0-9]{1,3}");
+
+    private String eco;
+    private LocalDate dateFrom;
+    private LocalDate dateTo;
+    private String result;
+    private Integer minElo;
+    private Integer maxElo;
+
+    public SearchFilter() {
+    }
+
+    public SearchFilter(String eco, LocalDate dateFrom, LocalDate dateTo, String result, Integer minElo, Integer maxElo) {
+        this.eco = eco;
+        this.dateFrom = dateFrom;
+        this.dateTo = dateTo;
+        this.result = result;
+        this.minElo = minElo;
+        this.maxElo = maxElo;
+    }
+
+    /**
+     * @return true if no filter is set
+     */
+    public boolean isEmpty() {
+        return !hasText(eco) && dateFrom == null && dateTo == null && !hasText(result) && minElo == null && maxElo == null;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the eco filter is not part of an ECO code or a range is inverted
+     */
+    public void validate() {
+        if (hasText(eco) && !ECO_PATTERN.matcher(eco.trim()).matches()) {
+            throw new IllegalArgumentException("eco must be 1-3 letters/digits of an ECO code, got '" + eco + "'");
+        }
+        if (dateFrom != null && dateTo != null && dateFrom.isAfter(dateTo)) {
+            throw new IllegalArgumentException("dateFrom " + dateFrom + " is after dateTo " + dateTo);
+        }
+        if (minElo != null && maxElo != null && minElo > maxElo) {
+            throw new IllegalArgumentException("minElo " + minElo + " is greater than maxElo " + maxElo);
+        }
+    }
+
+    private static boolean hasText(String value) {
+        return value != null && !value.isBlank();
+    }
+
+    public String getEco() {
+        return eco;
+    }
+    public void setEco(String eco) {
+        this.eco = eco;
+    }
+    public LocalDate getDateFrom() {
+        return dateFrom;
+    }
+    public void setDateFrom(LocalDate dateFrom) {
+        this.dateFrom = dateFrom;
+    }
+    public LocalDate getDateTo() {
+        return dateTo;
+    }
+    public void setDateTo(LocalDate dateTo) {
+        this.dateTo = dateTo;
+    }
+    public String getResult() {
+        return result;
+    }
+    public void setResult(String result) {
+        this.result = result;
+    }
+    public Integer getMinElo() {
+        return minElo;
+    }
+    public void setMinElo(Integer minElo) {
+        this.minElo = minElo;
+    }
+    public Integer getMaxElo() {
+        return maxElo;
+    }
+    public void setMaxElo(Integer maxElo) {
+        this.maxElo = maxElo;
+    }
+
+    /**
+     * Canonical form, part of the result cache key
+     */
+    @Override
+    public String toString() {
+        return "eco=" + (hasText(eco) ? eco.trim().toUpperCase() : "") + ",date=" + dateFrom + ".." + dateTo
+                + ",result=" + (hasText(result) ? result.trim() : "") + ",elo=" + minElo + ".." + maxElo;
+    }
+}
@@ -0,0 +1,49 @@
+package org.example.chessearch_back.dto;
+
+import java.util.List;
+
+/**
+ * DTO representing one page of similarity search results and the cursor of the next page (null on the last page
+ * and on a partial page, which the client repeats), whether the time budget cut the page short and how long it took
+ */
+public class SearchPageDto {
+    private List<SearchResultDto> results;
+    private String nextCursor;
+    private boolean partial;
+    private long elapsedMs;
+
+    public SearchPageDto() {
+    }
+
+    public SearchPageDto(List<SearchResultDto> results, String nextCursor, boolean partial, long elapsedMs) {
+        this.results = results;
+        this.nextCursor = nextCursor;
+        this.partial = partial;
+        this.elapsedMs = elapsedMs;
+    }
+
+    public List<SearchResultDto> getResults() {
+        return results;
+    }
+    public void setResults(List<SearchResultDto> results) {
+        this.results = results;
+    }
+    public String getNextCursor() {
+        return nextCursor;
+    }
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+    public boolean isPartial() {
+        return partial;
+    }
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+    public long getElapsedMs() {
+        return elapsedMs;
+    }
+    public void setElapsedMs(long elapsedMs) {
+        this.elapsedMs = elapsedMs;
+    }
+}
@@ -0,0 +1,41 @@
+package org.example.chessearch_back.dto;
+
+import java.util.List;
+
+/**
+ * DTO representing the results of one similarity search, whether the time budget cut it short (results are the
+ * best found until then) and how long it took
+ */
+public class SearchResponseDto {
+    private List<SearchResultDto> results;
+    private boolean partial;
+    private long elapsedMs;
+
+    public SearchResponseDto() {
+    }
+
+    public SearchResponseDto(List<SearchResultDto> results, boolean partial, long elapsedMs) {
+        this.results = results;
+        this.partial = partial;
+        this.elapsedMs = elapsedMs;
+    }
+
+    public List<SearchResultDto> getResults() {
+        return results;
+    }
+    public void setResults(List<SearchResultDto> results) {
+        this.results = results;
+    }
+    public boolean isPartial() {
+        return partial;
+    }
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+    public long getElapsedMs() {
+        return elapsedMs;
+    }
+    public void setElapsedMs(long elapsedMs) {
+        this.elapsedMs = elapsedMs;
+    }
+}
@@ -5,6 +5,10 @@ public class FenPosition {
     private int gameId;
     private int moveNumber;
     private String fen;
+    /** Zobrist hash of the position, null until computed */
+    private Long positionHash;
+    /** metadata of the game (no PGN), only set on positions streamed for indexing */
+    private ChessGame game;
 
     public int getId() {
         return id;
@@ -38,6 +42,22 @@ public class FenPosition {
         this.fen = fen;
     }
 
+    public Long getPositionHash() {
+        return positionHash;
+    }
+
+    public void setPositionHash(Long positionHash) {
+        this.positionHash = positionHash;
+    }
+
+    public ChessGame getGame() {
+        return game;
+    }
+
+    public void setGame(ChessGame game) {
+        this.game = game;
+    }
+
     @Override
     public String toString() {
         return "FenPosition{" +
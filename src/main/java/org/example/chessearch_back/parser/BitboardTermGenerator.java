@@ -0,0 +1,564 @@
+package org.example.chessearch_back.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the five term families of {@link PositionEncoder} (true positions, reachable squares, attacks,
+ * defenses, ray attacks) straight from occupancy bitboards and precomputed attack tables.
+ * Terms are written as {@link TermCodes} into a {@link TermBuffer}.
+ * Unlike the legal-move engine it never calls legalMoves() and never modifies a Board: legality is decided by
+ * checking whether the moving side's king is attacked once the move is applied to the bitboards.
+ * Squares are numbered like chesslib's Square ordinals (a1 = 0, b1 = 1, ..., h8 = 63).
+ * En passant captures are generated for the side to move only.
+ */
+final class BitboardTermGenerator {
+
+    static final int WHITE = 0;
+    static final int BLACK = 1;
+
+    static final int PAWN = 0;
+    static final int KNIGHT = 1;
+    static final int BISHOP = 2;
+    static final int ROOK = 3;
+    static final int QUEEN = 4;
+    static final int KING = 5;
+    static final int EMPTY = -1;
+
+    static final int CASTLE_WHITE_KING = 1;
+    static final int CASTLE_WHITE_QUEEN = 2;
+    static final int CASTLE_BLACK_KING = 4;
+    static final int CASTLE_BLACK_QUEEN = 8;
+
+    /** piece code = side * 6 + type */
+    static final String PIECE_NOTATION = TermCodes.PIECE_NOTATION;
+
+    private static final long[] KNIGHT_ATTACKS = new long[64];
+    private static final long[] KING_ATTACKS = new long[64];
+    private static final long[][] PAWN_ATTACKS = new long[2][64];
+
+    /** N, S, E, W, NE, SE, NW, SW - same order as the ROOK_OFFSETS/BISHOP_OFFSETS used for ray attacks */
+    private static final int[][] DIRECTIONS = {{0, 1}, {0, -1}, {1, 0}, {-1, 0}, {1, 1}, {1, -1}, {-1, 1}, {-1, -1}};
+    private static final boolean[] POSITIVE_DIRECTION = {true, false, true, false, true, false, true, false};
+    private static final long[][] RAYS = new long[8][64];
+
+    private static final int PROMOTION_PIECES = 4;
+
+    static {
+        for (int sq = 0; sq < 64; sq++) {
+            int file = sq & 7;
+            int rank = sq >>> 3;
+            KNIGHT_ATTACKS[sq] = stepAttacks(file, rank, new int[][]{{1, 2}, {2, 1}, {2, -1}, {1, -2}, {-1, -2}, {-2, -1}, {-2, 1}, {-1, 2}});
+            KING_ATTACKS[sq] = stepAttacks(file, rank, new int[][]{{0, 1}, {1, 1}, {1, 0}, {1, -1}, {0, -1}, {-1, -1}, {-1, 0}, {-1, 1}});
+            PAWN_ATTACKS[WHITE][sq] = stepAttacks(file, rank, new int[][]{{-1, 1}, {1, 1}});
+            PAWN_ATTACKS[BLACK][sq] = stepAttacks(file, rank, new int[][]{{-1, -1}, {1, -1}});
+
+            for (int dir = 0; dir < DIRECTIONS.length; dir++) {
+                long ray = 0L;
+                for (int i = 1; i < 8; i++) {
+                    int f = file + i * DIRECTIONS[dir][0];
+                    int r = rank + i * DIRECTIONS[dir][1];
+                    if (f < 0 || f > 7 || r < 0 || r > 7) {
+                        break;
+                    }
+                    ray |= 1L << (f + r * 8);
+                }
+                RAYS[dir][sq] = ray;
+            }
+        }
+    }
+
+    private final int[] board;
+    private final long[] pieces = new long[12];
+    private final long[] sideOccupancy = new long[2];
+    private final int[] kingSquare = {-1, -1};
+    private final long occupancy;
+    private final int sideToMove;
+    private final int castlingRights;
+    private final int enPassantSquare;
+
+    /**
+     * @param board piece code (side * 6 + type) per square, or EMPTY
+     * @param sideToMove WHITE or BLACK
+     * @param castlingRights bit set of the CASTLE_* flags
+     * @param enPassantSquare en passant target square, or -1
+     */
+    BitboardTermGenerator(int[] board, int sideToMove, int castlingRights, int enPassantSquare) {
+        this.board = board;
+        long occupied = 0L;
+        for (int sq = 0; sq < 64; sq++) {
+            int piece = board[sq];
+            if (piece == EMPTY) {
+                continue;
+            }
+            pieces[piece] |= 1L << sq;
+            sideOccupancy[piece / 6] |= 1L << sq;
+            occupied |= 1L << sq;
+            if (piece % 6 == KING) {
+                kingSquare[piece / 6] = sq;
+            }
+        }
+        this.occupancy = occupied;
+        this.sideToMove = sideToMove;
+        this.castlingRights = castlingRights;
+        this.enPassantSquare = enPassantSquare;
+    }
+
+    /**
+     * Builds a generator straight from FEN fields, without loading a chesslib Board
+     * @param fenParts the six FEN fields
+     * @return generator for the position
+     * @throws IllegalArgumentException if the placement, side to move or en passant field is invalid
+     */
+    static BitboardTermGenerator fromFen(String[] fenParts) {
+        int[] squares = new int[64];
+        String[] ranks = fenParts[0].split("/", -1);
+        if (ranks.length != 8) {
+            throw new IllegalArgumentException("Invalid FEN: piece placement must have 8 ranks: '" + fenParts[0] + "'");
+        }
+        for (int rank = 0; rank < 8; rank++) {
+            String row = ranks[7 - rank];
+            int file = 0;
+            for (int i = 0; i < row.length(); i++) {
+                char c = row.charAt(i);
+                if (c >= '1' && c <= '8') {
+                    for (int empty = 0; empty < c - '0'; empty++, file++) {
+                        if (file > 7) {
+                            throw new IllegalArgumentException("Invalid FEN: bad piece placement '" + fenParts[0] + "'");
+                        }
+                        squares[rank * 8 + file] = EMPTY;
+                    }
+                    continue;
+                }
+                int piece = PIECE_NOTATION.indexOf(c);
+                if (piece < 0 || file > 7) {
+                    throw new IllegalArgumentException("Invalid FEN: bad piece placement '" + fenParts[0] + "'");
+                }
+                squares[rank * 8 + file++] = piece;
+            }
+            if (file != 8) {
+                throw new IllegalArgumentException("Invalid FEN: rank " + (rank + 1) + " does not have 8 squares in '" + fenParts[0] + "'");
+            }
+        }
+
+        int sideToMove;
+        if ("w".equals(fenParts[1])) {
+            sideToMove = WHITE;
+        } else if ("b".equals(fenParts[1])) {
+            sideToMove = BLACK;
+        } else {
+            throw new IllegalArgumentException("Invalid FEN: side to move must be 'w' or 'b', found '" + fenParts[1] + "'");
+        }
+        return new BitboardTermGenerator(squares, sideToMove, parseCastlingRights(fenParts[2]), parseEnPassantSquare(fenParts[3]));
+    }
+
+    static int parseCastlingRights(String castling) {
+        int castlingRights = 0;
+        for (char c : castling.toCharArray()) {
+            switch (c) {
+                case 'K': castlingRights |= CASTLE_WHITE_KING; break;
+                case 'Q': castlingRights |= CASTLE_WHITE_QUEEN; break;
+                case 'k': castlingRights |= CASTLE_BLACK_KING; break;
+                case 'q': castlingRights |= CASTLE_BLACK_QUEEN; break;
+                default: break;
+            }
+        }
+        return castlingRights;
+    }
+
+    /**
+     * @return en passant square of a FEN field, -1 for "-" or anything that is not on the third or sixth rank
+     */
+    static int parseEnPassantSquare(String ep) {
+        if (ep.length() == 2 && ep.charAt(0) >= 'a' && ep.charAt(0) <= 'h' && (ep.charAt(1) == '3' || ep.charAt(1) == '6')) {
+            return (ep.charAt(0) - 'a') + (ep.charAt(1) - '1') * 8;
+        }
+        return -1;
+    }
+
+    /**
+     * Generates all terms, family by family, in the same family order as the legal-move engine
+     * @return list of terms
+     */
+    List<String> generateTerms() {
+        TermBuffer buffer = new TermBuffer();
+        generateTermCodes(buffer);
+        List<String> terms = new ArrayList<>(buffer.size());
+        for (int i = 0; i < buffer.size(); i++) {
+            terms.add(TermCodes.toTerm(buffer.get(i)));
+        }
+        return terms;
+    }
+
+    /**
+     * Appends the term codes of all families to the buffer, in the same family order as generateTerms()
+     * @param out buffer to append to, not cleared
+     */
+    void generateTermCodes(TermBuffer out) {
+        TermBuffer attackTerms = new TermBuffer();
+
+        generateTruePositionTerms(out);
+        for (int side = WHITE; side <= BLACK; side++) {
+            long remaining = sideOccupancy[side];
+            while (remaining != 0) {
+                int from = Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+                generatePieceMoveTerms(from, out, attackTerms);
+            }
+            generateCastlingTerms(side, out);
+        }
+        out.addAll(attackTerms);
+        for (int target = 0; target < 64; target++) {
+            generateDefenseTerms(target, out);
+        }
+        for (int from = 0; from < 64; from++) {
+            generateRayAttackTerms(from, out);
+        }
+    }
+
+    void generateTruePositionTerms(TermBuffer terms) {
+        for (int sq = 0; sq < 64; sq++) {
+            if (board[sq] != EMPTY) {
+                terms.add(TermCodes.truePosition(board[sq], sq));
+            }
+        }
+    }
+
+    /**
+     * Reachable and attack terms of the piece on one square (castling excluded): every legal move to an empty square
+     * is a reachable term, every legal capture is an attack term. Promotions count once per promotion piece,
+     * as legalMoves() does.
+     */
+    void generatePieceMoveTerms(int from, TermBuffer reachableTerms, TermBuffer attackTerms) {
+        int piece = board[from];
+        if (piece == EMPTY) {
+            return;
+        }
+        int side = piece / 6;
+        int type = piece % 6;
+        if (type == PAWN) {
+            generatePawnMoveTerms(side, from, reachableTerms, attackTerms);
+            return;
+        }
+        long targets = pieceAttacks(type, from, occupancy) & ~sideOccupancy[side];
+        while (targets != 0) {
+            int to = Long.numberOfTrailingZeros(targets);
+            targets &= targets - 1;
+            if (isLegal(side, from, to, to)) {
+                addMoveTerm(from, to, 1, reachableTerms, attackTerms);
+            }
+        }
+    }
+
+    private void generatePawnMoveTerms(int side, int from, TermBuffer reachableTerms, TermBuffer attackTerms) {
+        int forward = side == WHITE ? 8 : -8;
+        int startRank = side == WHITE ? 1 : 6;
+        int single = from + forward;
+        if (single < 0 || single > 63) {
+            return;
+        }
+        int count = isPromotionSquare(side, single) ? PROMOTION_PIECES : 1;
+
+        if ((occupancy & (1L << single)) == 0) {
+            if (isLegal(side, from, single, single)) {
+                addMoveTerm(from, single, count, reachableTerms, attackTerms);
+            }
+            int doubled = single + forward;
+            if ((from >>> 3) == startRank && (occupancy & (1L << doubled)) == 0 && isLegal(side, from, doubled, doubled)) {
+                addMoveTerm(from, doubled, 1, reachableTerms, attackTerms);
+            }
+        }
+
+        long captures = PAWN_ATTACKS[side][from] & sideOccupancy[side ^ 1];
+        while (captures != 0) {
+            int to = Long.numberOfTrailingZeros(captures);
+            captures &= captures - 1;
+            if (isLegal(side, from, to, to)) {
+                addMoveTerm(from, to, count, reachableTerms, attackTerms);
+            }
+        }
+
+        if (side == sideToMove && enPassantSquare >= 0 && (PAWN_ATTACKS[side][from] & (1L << enPassantSquare)) != 0
+                && board[enPassantSquare] == EMPTY) {
+            int capturedSquare = enPassantSquare - forward;
+            if (board[capturedSquare] == (side ^ 1) * 6 + PAWN && isLegal(side, from, enPassantSquare, capturedSquare)) {
+                addMoveTerm(from, enPassantSquare, 1, reachableTerms, attackTerms);
+            }
+        }
+    }
+
+    /**
+     * Castling follows chesslib: rights from the FEN, empty squares between king and rook,
+     * king not in check and the squares it passes not attacked.
+     */
+    void generateCastlingTerms(int side, TermBuffer reachableTerms) {
+        int kingFrom = side == WHITE ? 4 : 60;
+        int kingSide = side == WHITE ? CASTLE_WHITE_KING : CASTLE_BLACK_KING;
+        int queenSide = side == WHITE ? CASTLE_WHITE_QUEEN : CASTLE_BLACK_QUEEN;
+        if ((castlingRights & (kingSide | queenSide)) == 0 || board[kingFrom] != side * 6 + KING) {
+            return;
+        }
+        int enemy = side ^ 1;
+        if (isAttacked(kingFrom, enemy, occupancy, 0L)) {
+            return;
+        }
+        if ((castlingRights & kingSide) != 0
+                && (occupancy & (0x60L << (kingFrom - 4))) == 0
+                && !isAttacked(kingFrom + 1, enemy, occupancy, 0L)
+                && !isAttacked(kingFrom + 2, enemy, occupancy, 0L)) {
+            addMoveTerm(kingFrom, kingFrom + 2, 1, reachableTerms, null);
+        }
+        if ((castlingRights & queenSide) != 0
+                && (occupancy & (0x0EL << (kingFrom - 4))) == 0
+                && !isAttacked(kingFrom - 1, enemy, occupancy, 0L)
+                && !isAttacked(kingFrom - 2, enemy, occupancy, 0L)) {
+            addMoveTerm(kingFrom, kingFrom - 2, 1, reachableTerms, null);
+        }
+    }
+
+    private void addMoveTerm(int from, int to, int count, TermBuffer reachableTerms, TermBuffer attackTerms) {
+        if (board[to] == EMPTY) {
+            int term = TermCodes.reachable(board[from], to, chebyshevDistance(from, to));
+            for (int i = 0; i < count; i++) {
+                reachableTerms.add(term);
+            }
+        } else {
+            int term = TermCodes.relation(TermCodes.FAMILY_ATTACK, board[from], board[to], to);
+            for (int i = 0; i < count; i++) {
+                attackTerms.add(term);
+            }
+        }
+    }
+
+    /**
+     * A piece is defended when, after swapping it for an opposing piece of the same type, a piece of its own side
+     * could legally capture it. The swap never changes occupancy and the swapped piece is gone after the capture,
+     * so legality reduces to the ordinary "own king not attacked after the capture" check.
+     */
+    void generateDefenseTerms(int target, TermBuffer terms) {
+        int defended = board[target];
+        if (defended == EMPTY || defended % 6 == KING) {
+            return;
+        }
+        int side = defended / 6;
+        int base = side * 6;
+        long queens = pieces[base + QUEEN];
+        long defenders = (PAWN_ATTACKS[side ^ 1][target] & pieces[base + PAWN])
+                | (KNIGHT_ATTACKS[target] & pieces[base + KNIGHT])
+                | (bishopAttacks(target, occupancy) & (pieces[base + BISHOP] | queens))
+                | (rookAttacks(target, occupancy) & (pieces[base + ROOK] | queens))
+                | (KING_ATTACKS[target] & pieces[base + KING]);
+
+        while (defenders != 0) {
+            int from = Long.numberOfTrailingZeros(defenders);
+            defenders &= defenders - 1;
+            if (!isLegal(side, from, target, target)) {
+                continue;
+            }
+            int count = board[from] % 6 == PAWN && isPromotionSquare(side, target) ? PROMOTION_PIECES : 1;
+            int term = TermCodes.relation(TermCodes.FAMILY_DEFENSE, board[from], defended, target);
+            for (int i = 0; i < count; i++) {
+                terms.add(term);
+            }
+        }
+    }
+
+    /**
+     * Ray attacks of the slider on one square: every opposing piece behind at least one intervening piece on its lines
+     */
+    void generateRayAttackTerms(int from, TermBuffer terms) {
+        int attacker = board[from];
+        if (!isSlider(attacker)) {
+            return;
+        }
+        int type = attacker % 6;
+        int firstDir = type == BISHOP ? 4 : 0;
+        int lastDir = type == ROOK ? 3 : 7;
+        int side = attacker / 6;
+        for (int dir = firstDir; dir <= lastDir; dir++) {
+            long onRay = RAYS[dir][from] & occupancy;
+            boolean foundIntermediatePiece = false;
+            while (onRay != 0) {
+                int sq = POSITIVE_DIRECTION[dir] ? Long.numberOfTrailingZeros(onRay) : 63 - Long.numberOfLeadingZeros(onRay);
+                onRay &= ~(1L << sq);
+                if (foundIntermediatePiece && board[sq] / 6 != side) {
+                    terms.add(TermCodes.relation(TermCodes.FAMILY_RAY_ATTACK, attacker, board[sq], sq));
+                }
+                foundIntermediatePiece = true;
+            }
+        }
+    }
+
+    /**
+     * Squares whose contents can change the move terms of the piece on a square: its attack set
+     * (sliders up to and including the first blocker) plus pawn push squares
+     */
+    long moveInfluence(int from) {
+        int piece = board[from];
+        if (piece == EMPTY) {
+            return 0L;
+        }
+        if (piece % 6 != PAWN) {
+            return pieceAttacks(piece % 6, from, occupancy);
+        }
+        int side = piece / 6;
+        long pushes = side == WHITE ? (1L << from) << 8 | (1L << from) << 16 : (1L << from) >>> 8 | (1L << from) >>> 16;
+        return PAWN_ATTACKS[side][from] | pushes;
+    }
+
+    /**
+     * Squares whose contents can change the defense terms of the piece on a square: the square itself
+     * and every square a defender could capture from
+     */
+    long defenseInfluence(int target) {
+        return (1L << target) | bishopAttacks(target, occupancy) | rookAttacks(target, occupancy)
+                | KNIGHT_ATTACKS[target] | KING_ATTACKS[target] | PAWN_ATTACKS[WHITE][target] | PAWN_ATTACKS[BLACK][target];
+    }
+
+    /**
+     * Squares whose contents can change the ray attack terms of the slider on a square: its full lines
+     */
+    long rayInfluence(int from) {
+        int attacker = board[from];
+        if (!isSlider(attacker)) {
+            return 0L;
+        }
+        int type = attacker % 6;
+        long lines = 0L;
+        for (int dir = type == BISHOP ? 4 : 0; dir <= (type == ROOK ? 3 : 7); dir++) {
+            lines |= RAYS[dir][from];
+        }
+        return lines;
+    }
+
+    /**
+     * All eight unblocked lines from a side's king: any pin or discovered check of that side runs along them
+     */
+    long kingLines(int side) {
+        int king = kingSquare[side];
+        if (king < 0) {
+            return 0L;
+        }
+        long lines = 0L;
+        for (int dir = 0; dir < 8; dir++) {
+            lines |= RAYS[dir][king];
+        }
+        return lines;
+    }
+
+    boolean isInCheck(int side) {
+        return kingSquare[side] >= 0 && isAttacked(kingSquare[side], side ^ 1, occupancy, 0L);
+    }
+
+    /**
+     * @return Zobrist hash of everything the terms depend on: placement, side to move, castling and en passant
+     */
+    long zobristKey() {
+        return ZobristHash.hash(board, sideToMove, castlingRights, effectiveEnPassantSquare());
+    }
+
+    /**
+     * @return the en passant square if a pawn of the side to move could capture there, -1 otherwise,
+     * so positions that only differ by an unusable en passant field share a hash
+     */
+    private int effectiveEnPassantSquare() {
+        if (enPassantSquare < 0 || board[enPassantSquare] != EMPTY) {
+            return -1;
+        }
+        int capturedSquare = enPassantSquare - (sideToMove == WHITE ? 8 : -8);
+        boolean capturable = board[capturedSquare] == (sideToMove ^ 1) * 6 + PAWN
+                && (PAWN_ATTACKS[sideToMove ^ 1][enPassantSquare] & pieces[sideToMove * 6 + PAWN]) != 0;
+        return capturable ? enPassantSquare : -1;
+    }
+
+    int pieceAt(int sq) {
+        return board[sq];
+    }
+
+    int kingSquare(int side) {
+        return kingSquare[side];
+    }
+
+    int enPassantSquare() {
+        return enPassantSquare;
+    }
+
+    static boolean isSlider(int piece) {
+        int type = piece % 6;
+        return piece != EMPTY && (type == BISHOP || type == ROOK || type == QUEEN);
+    }
+
+    /**
+     * Checks whether a move leaves the moving side's king safe
+     * @param capturedSquare square of the captured piece (differs from the target only for en passant)
+     */
+    private boolean isLegal(int side, int from, int to, int capturedSquare) {
+        long captured = 1L << capturedSquare;
+        long occupiedAfter = (occupancy & ~(1L << from) & ~captured) | (1L << to);
+        int king = board[from] % 6 == KING ? to : kingSquare[side];
+        if (king < 0) {
+            return true;
+        }
+        return !isAttacked(king, side ^ 1, occupiedAfter, captured);
+    }
+
+    private boolean isAttacked(int sq, int bySide, long occupied, long removed) {
+        int base = bySide * 6;
+        long alive = ~removed;
+        long queens = pieces[base + QUEEN];
+        return (PAWN_ATTACKS[bySide ^ 1][sq] & pieces[base + PAWN] & alive) != 0
+                || (KNIGHT_ATTACKS[sq] & pieces[base + KNIGHT] & alive) != 0
+                || (KING_ATTACKS[sq] & pieces[base + KING] & alive) != 0
+                || (bishopAttacks(sq, occupied) & (pieces[base + BISHOP] | queens) & alive) != 0
+                || (rookAttacks(sq, occupied) & (pieces[base + ROOK] | queens) & alive) != 0;
+    }
+
+    private static long pieceAttacks(int type, int sq, long occupied) {
+        switch (type) {
+            case KNIGHT: return KNIGHT_ATTACKS[sq];
+            case BISHOP: return bishopAttacks(sq, occupied);
+            case ROOK:   return rookAttacks(sq, occupied);
+            case QUEEN:  return bishopAttacks(sq, occupied) | rookAttacks(sq, occupied);
+            case KING:   return KING_ATTACKS[sq];
+            default:     return 0L;
+        }
+    }
+
+    private static long rookAttacks(int sq, long occupied) {
+        return rayAttacks(0, sq, occupied) | rayAttacks(1, sq, occupied) | rayAttacks(2, sq, occupied) | rayAttacks(3, sq, occupied);
+    }
+
+    private static long bishopAttacks(int sq, long occupied) {
+        return rayAttacks(4, sq, occupied) | rayAttacks(5, sq, occupied) | rayAttacks(6, sq, occupied) | rayAttacks(7, sq, occupied);
+    }
+
+    private static long rayAttacks(int dir, int sq, long occupied) {
+        long ray = RAYS[dir][sq];
+        long blockers = ray & occupied;
+        if (blockers != 0) {
+            int blocker = POSITIVE_DIRECTION[dir] ? Long.numberOfTrailingZeros(blockers) : 63 - Long.numberOfLeadingZeros(blockers);
+            ray ^= RAYS[dir][blocker];
+        }
+        return ray;
+    }
+
+    private static long stepAttacks(int file, int rank, int[][] steps) {
+        long attacks = 0L;
+        for (int[] step : steps) {
+            int f = file + step[0];
+            int r = rank + step[1];
+            if (f >= 0 && f <= 7 && r >= 0 && r <= 7) {
+                attacks |= 1L << (f + r * 8);
+            }
+        }
+        return attacks;
+    }
+
+    private static boolean isPromotionSquare(int side, int sq) {
+        return (sq >>> 3) == (side == WHITE ? 7 : 0);
+    }
+
+    private static int chebyshevDistance(int from, int to) {
+        return Math.max(Math.abs((from & 7) - (to & 7)), Math.abs((from >>> 3) - (to >>> 3)));
+    }
+}
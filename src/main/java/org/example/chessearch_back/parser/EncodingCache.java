@@ -0,0 +1,169 @@
+package org.example.chessearch_back.parser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of encoded positions keyed by the 64-bit Zobrist hash, shared by indexing and search.
+ * Two-way set associative with LRU inside a set. Keys live in a long[] and term codes in one direct (off-heap) buffer
+ * of fixed-size slots, so cached positions add no objects to the heap. Positions with more codes than a slot holds
+ * are not cached. Sets are guarded by striped locks.
+ */
+@Component
+public class EncodingCache {
+
+    private static final Logger log = LoggerFactory.getLogger(EncodingCache.class);
+
+    /** ints per slot: one length + the codes */
+    static final int SLOT_INTS = 320;
+    private static final int WAYS = 2;
+    private static final int LOCK_STRIPES = 64;
+    private static final int MAX_ENTRIES = 1 << 20;
+
+    private final int setMask;
+    private final long[] keys;
+    private final byte[] recentWay;
+    private final IntBuffer slots;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+
+    /**
+     * @param maxEntries number of positions to keep, rounded up to a power of two; 0 disables the cache
+     */
+    @Autowired
+    public EncodingCache(@Value("${chess.encoder.cache.entries:16384}") int maxEntries) {
+        if (maxEntries < 0 || maxEntries > MAX_ENTRIES) {
+            throw new IllegalArgumentException("chess.encoder.cache.entries must be between 0 and " + MAX_ENTRIES + ", got " + maxEntries);
+        }
+        int entries = maxEntries == 0 ? 0 : Math.max(WAYS, Integer.highestOneBit(maxEntries - 1) << 1);
+        this.setMask = entries / WAYS - 1;
+        this.keys = new long[entries];
+        this.recentWay = new byte[entries / WAYS];
+        this.slots = ByteBuffer.allocateDirect(entries * SLOT_INTS * Integer.BYTES).asIntBuffer();
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        log.info("Encoding cache initialized with {} entries ({} KB off-heap)", entries, (long) entries * SLOT_INTS * Integer.BYTES / 1024);
+    }
+
+    public boolean isEnabled() {
+        return keys.length > 0;
+    }
+
+    /**
+     * Copies the cached codes of a position into the buffer
+     * @param key Zobrist hash of the position
+     * @param buffer cleared and filled on a hit, untouched on a miss
+     * @return true on a hit
+     */
+    public boolean get(long key, TermBuffer buffer) {
+        if (!isEnabled()) {
+            return false;
+        }
+        int set = (int) mix(key) & setMask;
+        synchronized (locks[set & (LOCK_STRIPES - 1)]) {
+            for (int way = 0; way < WAYS; way++) {
+                int slot = set * WAYS + way;
+                int base = slot * SLOT_INTS;
+                int length = slots.get(base);
+                if (length > 0 && keys[slot] == key) {
+                    buffer.clear();
+                    for (int i = 1; i <= length; i++) {
+                        buffer.add(slots.get(base + i));
+                    }
+                    recentWay[set] = (byte) way;
+                    hits.increment();
+                    return true;
+                }
+            }
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * Stores the codes of a position, evicting the least recently used entry of its set
+     * @param key Zobrist hash of the position
+     * @param buffer codes to store
+     */
+    public void put(long key, TermBuffer buffer) {
+        if (!isEnabled()) {
+            return;
+        }
+        int length = buffer.size();
+        if (length == 0 || length >= SLOT_INTS) {
+            oversized.increment();
+            return;
+        }
+        int set = (int) mix(key) & setMask;
+        synchronized (locks[set & (LOCK_STRIPES - 1)]) {
+            int way = 1 - recentWay[set];
+            for (int w = 0; w < WAYS; w++) {
+                int slot = set * WAYS + w;
+                if (slots.get(slot * SLOT_INTS) == 0 || keys[slot] == key) {
+                    way = w;
+                    break;
+                }
+            }
+            int slot = set * WAYS + way;
+            int base = slot * SLOT_INTS;
+            keys[slot] = key;
+            slots.put(base, length);
+            for (int i = 0; i < length; i++) {
+                slots.put(base + 1 + i, buffer.get(i));
+            }
+            recentWay[set] = (byte) way;
+        }
+        stores.increment();
+    }
+
+    /**
+     * Empties the cache, the metrics are kept
+     */
+    public void clear() {
+        for (int set = 0; set <= setMask; set++) {
+            synchronized (locks[set & (LOCK_STRIPES - 1)]) {
+                for (int way = 0; way < WAYS; way++) {
+                    slots.put((set * WAYS + way) * SLOT_INTS, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get cache statistics
+     * @return Map with capacity, hits, misses, hit ratio, stores and positions too large to cache
+     */
+    public Map<String, Object> getStats() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("capacity", keys.length);
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRatio", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        stats.put("stores", stores.sum());
+        stats.put("oversized", oversized.sum());
+        return stats;
+    }
+
+    /**
+     * Zobrist keys are already uniform, the mix only guards against keys built differently
+     */
+    private static long mix(long key) {
+        return key ^ (key >>> 32);
+    }
+}
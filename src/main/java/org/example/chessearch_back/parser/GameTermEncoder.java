@@ -0,0 +1,194 @@
+package org.example.chessearch_back.parser;
+
+/**
+ * Encodes the consecutive positions of one game, reusing the terms of the previous position.
+ * Terms are cached per square (moves of the piece standing there, defenses of it, its ray attacks) and only units
+ * whose influence squares changed since the previous FEN are regenerated. A side's move and defense units are all
+ * regenerated when its king moved, it is or was in check, or a changed square lies on its king lines (pins).
+ * Any FEN sequence gives the same terms as {@link PositionEncoder#encodeFen}, the savings come from consecutive plies.
+ * With an {@link EncodingCache} transpositions (typically opening positions) are copied from the cache; the per-square
+ * units are then stale and the next cache miss is encoded from scratch.
+ * Not thread safe: use one instance per game being encoded. Get instances from {@link PositionEncoder#newGameEncoder()}.
+ */
+public final class GameTermEncoder {
+
+    private static final int UNIT_CAPACITY = 16;
+
+    private final PositionEncoder legalMoveEncoder;
+    private final EncodingCache cache;
+
+    private final TermBuffer[] reachableUnits = new TermBuffer[64];
+    private final TermBuffer[] attackUnits = new TermBuffer[64];
+    private final TermBuffer[] defenseUnits = new TermBuffer[64];
+    private final TermBuffer[] rayUnits = new TermBuffer[64];
+    private final TermBuffer[] castlingUnits = {new TermBuffer(UNIT_CAPACITY), new TermBuffer(UNIT_CAPACITY)};
+    private final boolean[] previousInCheck = new boolean[2];
+    private BitboardTermGenerator previous;
+
+    private long positionsEncoded;
+    private long unitsRegenerated;
+    private long cacheHits;
+
+    /**
+     * @param legalMoveEncoder encoder to delegate to when the legal-move engine is selected, null for the bitboard engine
+     * @param cache shared encoding cache, null to encode every position
+     */
+    GameTermEncoder(PositionEncoder legalMoveEncoder, EncodingCache cache) {
+        this.legalMoveEncoder = legalMoveEncoder;
+        this.cache = cache;
+        for (int sq = 0; sq < 64; sq++) {
+            reachableUnits[sq] = new TermBuffer(UNIT_CAPACITY);
+            attackUnits[sq] = new TermBuffer(UNIT_CAPACITY);
+            defenseUnits[sq] = new TermBuffer(UNIT_CAPACITY);
+            rayUnits[sq] = new TermBuffer(UNIT_CAPACITY);
+        }
+    }
+
+    /**
+     * Encodes the next position of the game
+     * @param fen FEN of the position, normally one ply after the previous call
+     * @param buffer buffer to write the codes to, cleared first
+     * @throws IllegalArgumentException if the FEN string is invalid, the previous position is kept in that case
+     */
+    public void encodeNext(String fen, TermBuffer buffer) throws IllegalArgumentException {
+        if (legalMoveEncoder != null) {
+            legalMoveEncoder.encodeFen(fen, buffer);
+            return;
+        }
+        BitboardTermGenerator current = BitboardTermGenerator.fromFen(PositionEncoder.splitFen(fen));
+        long key = 0L;
+        if (cache != null) {
+            key = current.zobristKey();
+            if (cache.get(key, buffer)) {
+                previous = null;
+                positionsEncoded++;
+                cacheHits++;
+                return;
+            }
+        }
+
+        long changed = changedSquares(current);
+        long changedForMoves = changed;
+        if (previous != null && previous.enPassantSquare() >= 0) {
+            changedForMoves |= 1L << previous.enPassantSquare();
+        }
+        if (current.enPassantSquare() >= 0) {
+            changedForMoves |= 1L << current.enPassantSquare();
+        }
+
+        boolean[] sideDirty = new boolean[2];
+        boolean[] inCheck = new boolean[2];
+        for (int side = BitboardTermGenerator.WHITE; side <= BitboardTermGenerator.BLACK; side++) {
+            inCheck[side] = current.isInCheck(side);
+            sideDirty[side] = previous == null
+                    || previous.kingSquare(side) != current.kingSquare(side)
+                    || inCheck[side] || previousInCheck[side]
+                    || (changed & current.kingLines(side)) != 0;
+        }
+
+        for (int sq = 0; sq < 64; sq++) {
+            int piece = current.pieceAt(sq);
+            long square = 1L << sq;
+            if (piece == BitboardTermGenerator.EMPTY) {
+                reachableUnits[sq].clear();
+                attackUnits[sq].clear();
+                defenseUnits[sq].clear();
+                rayUnits[sq].clear();
+                continue;
+            }
+            boolean pieceDirty = sideDirty[piece / 6] || (changed & square) != 0;
+
+            if (pieceDirty || piece % 6 == BitboardTermGenerator.KING || (changedForMoves & current.moveInfluence(sq)) != 0) {
+                reachableUnits[sq].clear();
+                attackUnits[sq].clear();
+                current.generatePieceMoveTerms(sq, reachableUnits[sq], attackUnits[sq]);
+                unitsRegenerated++;
+            }
+            if (pieceDirty || (changed & current.defenseInfluence(sq)) != 0) {
+                defenseUnits[sq].clear();
+                current.generateDefenseTerms(sq, defenseUnits[sq]);
+                unitsRegenerated++;
+            }
+            if ((changed & (square | current.rayInfluence(sq))) != 0) {
+                rayUnits[sq].clear();
+                current.generateRayAttackTerms(sq, rayUnits[sq]);
+                unitsRegenerated++;
+            }
+        }
+        for (int side = BitboardTermGenerator.WHITE; side <= BitboardTermGenerator.BLACK; side++) {
+            castlingUnits[side].clear();
+            current.generateCastlingTerms(side, castlingUnits[side]);
+        }
+
+        buffer.clear();
+        current.generateTruePositionTerms(buffer);
+        for (int side = BitboardTermGenerator.WHITE; side <= BitboardTermGenerator.BLACK; side++) {
+            appendUnitsOfSide(current, side, reachableUnits, buffer);
+            buffer.addAll(castlingUnits[side]);
+        }
+        for (int side = BitboardTermGenerator.WHITE; side <= BitboardTermGenerator.BLACK; side++) {
+            appendUnitsOfSide(current, side, attackUnits, buffer);
+        }
+        for (int sq = 0; sq < 64; sq++) {
+            buffer.addAll(defenseUnits[sq]);
+        }
+        for (int sq = 0; sq < 64; sq++) {
+            buffer.addAll(rayUnits[sq]);
+        }
+
+        previous = current;
+        previousInCheck[BitboardTermGenerator.WHITE] = inCheck[BitboardTermGenerator.WHITE];
+        previousInCheck[BitboardTermGenerator.BLACK] = inCheck[BitboardTermGenerator.BLACK];
+        positionsEncoded++;
+        if (cache != null) {
+            cache.put(key, buffer);
+        }
+    }
+
+    /**
+     * Forgets the previous position, the next call encodes from scratch
+     */
+    public void reset() {
+        previous = null;
+    }
+
+    public long getPositionsEncoded() {
+        return positionsEncoded;
+    }
+
+    /**
+     * @return number of positions copied from the encoding cache
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return number of per-square term units generated, 3 * 64 per position would mean no reuse at all
+     */
+    public long getUnitsRegenerated() {
+        return unitsRegenerated;
+    }
+
+    private long changedSquares(BitboardTermGenerator current) {
+        if (previous == null) {
+            return -1L;
+        }
+        long changed = 0L;
+        for (int sq = 0; sq < 64; sq++) {
+            if (previous.pieceAt(sq) != current.pieceAt(sq)) {
+                changed |= 1L << sq;
+            }
+        }
+        return changed;
+    }
+
+    private static void appendUnitsOfSide(BitboardTermGenerator current, int side, TermBuffer[] units, TermBuffer buffer) {
+        for (int sq = 0; sq < 64; sq++) {
+            int piece = current.pieceAt(sq);
+            if (piece != BitboardTermGenerator.EMPTY && piece / 6 == side) {
+                buffer.addAll(units[sq]);
+            }
+        }
+    }
+}
@@ -7,12 +7,16 @@ import com.github.bhlangonijr.chesslib.Side;
 import com.github.bhlangonijr.chesslib.Square;
 import com.github.bhlangonijr.chesslib.move.Move;
 import com.github.bhlangonijr.chesslib.move.MoveGeneratorException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
 
 /**
  * Encodes a chess position (FEN) into a list of terms based on the approach described in Ganguly et al., SIGIR 2014.
+ * Two engines produce the same terms: LEGAL_MOVES (chesslib move generation on a mutated board)
+ * and BITBOARD (attack tables, see {@link BitboardTermGenerator}), selected with chess.encoder.engine.
  */
 @Component
 public class PositionEncoder {
@@ -20,9 +24,41 @@ public class PositionEncoder {
     private static final int[][] BISHOP_OFFSETS = {{1, 1}, {1, -1}, {-1, 1}, {-1, -1}};
     private static final int[][] QUEEN_OFFSETS = {{0, 1}, {0, -1}, {1, 0}, {-1, 0}, {1, 1}, {1, -1}, {-1, 1}, {-1, -1}};
 
+    public enum Engine {
+        LEGAL_MOVES,
+        BITBOARD
+    }
 
+    private final Engine engine;
+    private final EncodingCache cache;
 
     public PositionEncoder() {
+        this(Engine.LEGAL_MOVES);
+    }
+
+    public PositionEncoder(Engine engine) {
+        this(engine, null);
+    }
+
+    /**
+     * @param engine term generator to use
+     * @param cache cache of encoded positions shared by indexing and search, null to always encode
+     */
+    @Autowired
+    public PositionEncoder(@Value("${chess.encoder.engine:LEGAL_MOVES}") Engine engine, EncodingCache cache) {
+        this.engine = engine;
+        this.cache = cache != null && cache.isEnabled() ? cache : null;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return the encoding cache, or null if encoding is not cached
+     */
+    public EncodingCache getCache() {
+        return cache;
     }
     public static void main(String[] args) {
         // Kh1, Qh7, kb6
@@ -81,6 +117,148 @@ public class PositionEncoder {
      * @throws IllegalArgumentException if the FEN string is invalid.
      */
     public List<String> transformFenToDocument(String fen) throws IllegalArgumentException {
+        String[] fenParts = splitFen(fen);
+        Board board = loadBoard(fenParts);
+        if (engine == Engine.BITBOARD) {
+            return toBitboardGenerator(board, fenParts).generateTerms();
+        }
+        return generateLegalMoveTerms(board);
+    }
+
+    /**
+     * Transforms a FEN string into term codes (see {@link TermCodes}) without building a String per term.
+     * Transpositions are served from the encoding cache when one is configured.
+     * @param fen The FEN string representing the board position
+     * @param buffer reusable buffer, cleared before the codes are written
+     * @throws IllegalArgumentException if the FEN string is invalid.
+     */
+    public void encodeFen(String fen, TermBuffer buffer) throws IllegalArgumentException {
+        String[] fenParts = splitFen(fen);
+        if (cache == null) {
+            encodeUncached(fenParts, buffer);
+            return;
+        }
+        long key = BitboardTermGenerator.fromFen(fenParts).zobristKey();
+        if (!cache.get(key, buffer)) {
+            encodeUncached(fenParts, buffer);
+            cache.put(key, buffer);
+        }
+    }
+
+    /**
+     * Computes the 64-bit Zobrist hash of a position; positions with the same key encode to the same terms
+     * @param fen The FEN string representing the board position
+     * @return position key
+     * @throws IllegalArgumentException if the FEN string is invalid.
+     */
+    public long positionKey(String fen) throws IllegalArgumentException {
+        return BitboardTermGenerator.fromFen(splitFen(fen)).zobristKey();
+    }
+
+    private void encodeUncached(String[] fenParts, TermBuffer buffer) {
+        Board board = loadBoard(fenParts);
+        buffer.clear();
+        if (engine == Engine.BITBOARD) {
+            toBitboardGenerator(board, fenParts).generateTermCodes(buffer);
+            return;
+        }
+        for (String term : generateLegalMoveTerms(board)) {
+            buffer.add(TermCodes.parse(term));
+        }
+    }
+
+    /**
+     * Creates an encoder for the consecutive positions of one game, see {@link GameTermEncoder}
+     * @return new game encoder, not thread safe
+     */
+    public GameTermEncoder newGameEncoder() {
+        return new GameTermEncoder(engine == Engine.BITBOARD ? null : this, cache);
+    }
+
+    /**
+     * Returns the query position and its color-flipped, file-mirrored and flipped-and-mirrored counterparts, leaving
+     * out variants with the same position key as an earlier one (symmetric positions)
+     * @param fen The FEN string representing the board position
+     * @return distinct FEN strings, the query position first
+     * @throws IllegalArgumentException if the FEN string is invalid.
+     */
+    public List<String> symmetricFens(String fen) throws IllegalArgumentException {
+        String flipped = flipColors(fen);
+        List<String> fens = new ArrayList<>(4);
+        Set<Long> keys = new HashSet<>();
+        for (String variant : List.of(fen.trim(), flipped, mirrorFiles(fen), mirrorFiles(flipped))) {
+            if (keys.add(positionKey(variant))) {
+                fens.add(variant);
+            }
+        }
+        return fens;
+    }
+
+    /**
+     * Swaps the colors: ranks are reversed, white pieces become black ones and vice versa, together with
+     * the side to move, castling rights and en passant square
+     * @param fen The FEN string representing the board position
+     * @return FEN string of the color-flipped position
+     * @throws IllegalArgumentException if the FEN string is invalid.
+     */
+    public static String flipColors(String fen) throws IllegalArgumentException {
+        String[] fenParts = splitFen(fen);
+        String[] ranks = fenParts[0].split("/");
+        StringBuilder placement = new StringBuilder(fenParts[0].length());
+        for (int i = ranks.length - 1; i >= 0; i--) {
+            placement.append(swapCase(ranks[i]));
+            if (i > 0) {
+                placement.append('/');
+            }
+        }
+        String castling = "-";
+        if (!"-".equals(fenParts[2])) {
+            StringBuilder rights = new StringBuilder(4);
+            String swapped = swapCase(fenParts[2]);
+            for (char right : "KQkq".toCharArray()) {
+                if (swapped.indexOf(right) >= 0) {
+                    rights.append(right);
+                }
+            }
+            castling = rights.length() > 0 ? rights.toString() : "-";
+        }
+        String enPassant = fenParts[3];
+        if (enPassant.length() == 2) {
+            enPassant = enPassant.charAt(0) + String.valueOf((char) ('1' + '8' - enPassant.charAt(1)));
+        }
+        String sideToMove = "w".equals(fenParts[1]) ? "b" : "w";
+        return String.join(" ", placement, sideToMove, castling, enPassant, fenParts[4], fenParts[5]);
+    }
+
+    /**
+     * Mirrors the board left to right (a-file to h-file). Castling rights are dropped, a king on the d-file
+     * cannot castle.
+     * @param fen The FEN string representing the board position
+     * @return FEN string of the mirrored position
+     * @throws IllegalArgumentException if the FEN string is invalid.
+     */
+    public static String mirrorFiles(String fen) throws IllegalArgumentException {
+        String[] fenParts = splitFen(fen);
+        String[] ranks = fenParts[0].split("/");
+        for (int i = 0; i < ranks.length; i++) {
+            ranks[i] = new StringBuilder(ranks[i]).reverse().toString();
+        }
+        String enPassant = fenParts[3];
+        if (enPassant.length() == 2) {
+            enPassant = (char) ('a' + 'h' - enPassant.charAt(0)) + enPassant.substring(1);
+        }
+        return String.join(" ", String.join("/", ranks), fenParts[1], "-", enPassant, fenParts[4], fenParts[5]);
+    }
+
+    private static String swapCase(String value) {
+        StringBuilder swapped = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            swapped.append(Character.isUpperCase(c) ? Character.toLowerCase(c) : Character.toUpperCase(c));
+        }
+        return swapped.toString();
+    }
+
+    static String[] splitFen(String fen) {
         Objects.requireNonNull(fen, "FEN string is null");
         String trimmedFen = fen.trim();
         if (trimmedFen.isEmpty()) {
@@ -99,7 +277,11 @@ public class PositionEncoder {
                     String.format("Invalid FEN: piece placement must have 7 slashes. Found %d in '%s'", slashCount, piecePlacement)
             );
         }
+        return fenParts;
+    }
 
+    private Board loadBoard(String[] fenParts) {
+        String trimmedFen = String.join(" ", fenParts);
         Board board = new Board();
         try {
             board.loadFromFen(trimmedFen);
@@ -107,6 +289,10 @@ public class PositionEncoder {
             System.err.println("Error loading FEN: '" + trimmedFen + "' - Exception: " + e.getClass().getName() + " - Message: " + e.getMessage());
             throw new IllegalArgumentException("FEN string failed to parse: '" + trimmedFen + "'", e);
         }
+        return board;
+    }
+
+    private List<String> generateLegalMoveTerms(Board board) {
         List<String> allTerms = new ArrayList<>();
 
         List<String> truePositionTerms = generateTruePositionTerms(board);
@@ -123,6 +309,23 @@ public class PositionEncoder {
         return allTerms;
     }
 
+    /**
+     * Helper method to read the loaded board into the bitboard engine, castling and en passant come from the FEN fields
+     * @param board loaded position, only read
+     * @param fenParts the six FEN fields
+     * @return generator for the position
+     */
+    private BitboardTermGenerator toBitboardGenerator(Board board, String[] fenParts) {
+        int[] squares = new int[64];
+        for (int i = 0; i < 64; i++) {
+            String notation = getPieceNotation(board.getPiece(Square.squareAt(i)));
+            squares[i] = notation == null ? BitboardTermGenerator.EMPTY : BitboardTermGenerator.PIECE_NOTATION.indexOf(notation.charAt(0));
+        }
+        int sideToMove = board.getSideToMove() == Side.WHITE ? BitboardTermGenerator.WHITE : BitboardTermGenerator.BLACK;
+
+        return new BitboardTermGenerator(squares, sideToMove,
+                BitboardTermGenerator.parseCastlingRights(fenParts[2]), BitboardTermGenerator.parseEnPassantSquare(fenParts[3]));
+    }
 
     /**
      * Helper function for parsing FEN into special notation: true positions
@@ -0,0 +1,59 @@
+package org.example.chessearch_back.parser;
+
+/**
+ * Fixed-length float vector of a position for approximate nearest-neighbor search, built from its term codes:
+ * one dimension per piece + square (true positions), then per relation family (attack, defense, ray attack) the
+ * number of relations per acting piece and target piece type. Reachable terms are left out.
+ * Vectors are scaled to unit length, so the dot product of two vectors is their cosine.
+ */
+public final class PositionVector {
+
+    private static final int PIECE_TYPES = 6;
+    private static final int RELATION_DIMENSIONS = 12 * PIECE_TYPES;
+    private static final int ATTACK_OFFSET = TermCodes.FEATURE_KEYS;
+    private static final int DEFENSE_OFFSET = ATTACK_OFFSET + RELATION_DIMENSIONS;
+    private static final int RAY_ATTACK_OFFSET = DEFENSE_OFFSET + RELATION_DIMENSIONS;
+
+    /** 768 piece + square dimensions and 3 x 72 relation dimensions, within Lucene's 1024 limit */
+    public static final int DIMENSIONS = RAY_ATTACK_OFFSET + RELATION_DIMENSIONS;
+
+    private PositionVector() {
+    }
+
+    /**
+     * @param buffer term codes of a position
+     * @return unit length vector of DIMENSIONS values, all zero if the position has no pieces
+     */
+    public static float[] encode(TermBuffer buffer) {
+        float[] vector = new float[DIMENSIONS];
+        for (int i = 0; i < buffer.size(); i++) {
+            int code = buffer.get(i);
+            switch (TermCodes.family(code)) {
+                case TermCodes.FAMILY_TRUE_POSITION -> vector[TermCodes.featureKey(code)] = 1f;
+                case TermCodes.FAMILY_ATTACK -> vector[ATTACK_OFFSET + relationIndex(code)]++;
+                case TermCodes.FAMILY_DEFENSE -> vector[DEFENSE_OFFSET + relationIndex(code)]++;
+                case TermCodes.FAMILY_RAY_ATTACK -> vector[RAY_ATTACK_OFFSET + relationIndex(code)]++;
+                default -> {
+                }
+            }
+        }
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        if (norm > 0) {
+            float scale = (float) (1 / Math.sqrt(norm));
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] *= scale;
+            }
+        }
+        return vector;
+    }
+
+    /**
+     * Acting piece and target piece type; the target's color follows from the family and the acting piece
+     */
+    private static int relationIndex(int code) {
+        return TermCodes.piece(code) * PIECE_TYPES + TermCodes.targetPiece(code) % PIECE_TYPES;
+    }
+}
@@ -0,0 +1,52 @@
+package org.example.chessearch_back.parser;
+
+import java.util.Arrays;
+
+/**
+ * Growable int buffer of {@link TermCodes}, meant to be cleared and reused across positions
+ */
+public final class TermBuffer {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private int[] codes;
+    private int size;
+
+    public TermBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TermBuffer(int initialCapacity) {
+        this.codes = new int[Math.max(initialCapacity, 16)];
+    }
+
+    public void add(int code) {
+        if (size == codes.length) {
+            codes = Arrays.copyOf(codes, size * 2);
+        }
+        codes[size++] = code;
+    }
+
+    public void addAll(TermBuffer other) {
+        if (size + other.size > codes.length) {
+            codes = Arrays.copyOf(codes, Math.max(size + other.size, size * 2));
+        }
+        System.arraycopy(other.codes, 0, codes, size, other.size);
+        size += other.size;
+    }
+
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return codes[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
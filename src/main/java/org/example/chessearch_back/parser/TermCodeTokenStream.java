@@ -0,0 +1,54 @@
+package org.example.chessearch_back.parser;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+import java.io.IOException;
+
+/**
+ * TokenStream that renders term codes from a {@link TermBuffer} directly into the term attribute,
+ * replacing the String.join + WhitespaceAnalyzer round trip. Produces the same tokens as whitespace analysis
+ * of the joined terms. The stream can be reused: refill its buffer and hand it to a new field.
+ * Reachable codes are skipped unless includeReachable is set, they are indexed as features instead.
+ */
+public final class TermCodeTokenStream extends TokenStream {
+
+    private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+    private final TermBuffer buffer;
+    private final boolean includeReachable;
+    private int next;
+
+    public TermCodeTokenStream() {
+        this(new TermBuffer(), false);
+    }
+
+    public TermCodeTokenStream(TermBuffer buffer, boolean includeReachable) {
+        this.buffer = buffer;
+        this.includeReachable = includeReachable;
+    }
+
+    public TermBuffer getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public boolean incrementToken() {
+        while (next < buffer.size()) {
+            int code = buffer.get(next++);
+            if (!includeReachable && TermCodes.family(code) == TermCodes.FAMILY_REACHABLE) {
+                continue;
+            }
+            clearAttributes();
+            char[] chars = termAttribute.resizeBuffer(TermCodes.MAX_TERM_LENGTH);
+            termAttribute.setLength(TermCodes.appendTo(code, chars, 0));
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        next = 0;
+    }
+}
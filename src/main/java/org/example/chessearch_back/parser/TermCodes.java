@@ -0,0 +1,185 @@
+package org.example.chessearch_back.parser;
+
+import java.util.Locale;
+
+/**
+ * Compact int form of the position terms, so encoding does not have to allocate a String per term.
+ * A code renders to exactly the same characters as the String term (e.g. "Qe4", "Qe4|0.89", "N>qd5", "P<Nd5", "R=qd8"),
+ * so indexes written from codes and from Strings are interchangeable.
+ * Layout: bits 0-5 square, 6-9 piece, 10-13 second piece, 14-16 reachable distance, 17-19 family.
+ */
+public final class TermCodes {
+
+    public static final int FAMILY_TRUE_POSITION = 0;
+    public static final int FAMILY_REACHABLE = 1;
+    public static final int FAMILY_ATTACK = 2;
+    public static final int FAMILY_DEFENSE = 3;
+    public static final int FAMILY_RAY_ATTACK = 4;
+
+    /** longest rendered term, e.g. "Qe4|0.89" */
+    public static final int MAX_TERM_LENGTH = 8;
+    /** number of distinct piece + square keys, see {@link #featureKey(int)} */
+    public static final int FEATURE_KEYS = 12 * 64;
+
+    /** piece index = side * 6 + type, white first */
+    public static final String PIECE_NOTATION = "PNBRQKpnbrqk";
+
+    private static final char[] RELATION_SYMBOLS = {0, 0, '>', '<', '='};
+    /** reachable weight w = 1 - (7 * distance)/64, formatted exactly like the legal-move engine */
+    private static final String[] REACHABLE_WEIGHTS = new String[8];
+    private static final float[] REACHABLE_WEIGHT_VALUES = new float[8];
+    private static final String[] FEATURE_NAMES = new String[FEATURE_KEYS];
+
+    static {
+        for (int distance = 1; distance < 8; distance++) {
+            REACHABLE_WEIGHTS[distance] = String.format(Locale.US, "%.2f", 1.0 - (7.0 * distance / 64.0));
+            REACHABLE_WEIGHT_VALUES[distance] = Float.parseFloat(REACHABLE_WEIGHTS[distance]);
+        }
+        for (int key = 0; key < FEATURE_KEYS; key++) {
+            FEATURE_NAMES[key] = toTerm(truePosition(key >>> 6, key & 0x3F));
+        }
+    }
+
+    private TermCodes() {
+    }
+
+    public static int truePosition(int piece, int square) {
+        return (FAMILY_TRUE_POSITION << 17) | (piece << 6) | square;
+    }
+
+    public static int reachable(int piece, int square, int distance) {
+        return (FAMILY_REACHABLE << 17) | (distance << 14) | (piece << 6) | square;
+    }
+
+    /**
+     * @param family FAMILY_ATTACK, FAMILY_DEFENSE or FAMILY_RAY_ATTACK
+     * @param piece attacking/defending piece
+     * @param target piece standing on the square
+     * @param square target square
+     */
+    public static int relation(int family, int piece, int target, int square) {
+        return (family << 17) | (target << 10) | (piece << 6) | square;
+    }
+
+    public static int family(int code) {
+        return code >>> 17;
+    }
+
+    public static int piece(int code) {
+        return (code >>> 6) & 0xF;
+    }
+
+    public static int targetPiece(int code) {
+        return (code >>> 10) & 0xF;
+    }
+
+    public static int square(int code) {
+        return code & 0x3F;
+    }
+
+    public static int distance(int code) {
+        return (code >>> 14) & 0x7;
+    }
+
+    /**
+     * @return piece + square key of a code (0 .. FEATURE_KEYS - 1), shared by true position and reachable codes
+     */
+    public static int featureKey(int code) {
+        return code & 0x3FF;
+    }
+
+    /**
+     * @return reachable feature name without the weight, e.g. "Qe4" for "Qe4|0.89"
+     */
+    public static String featureName(int key) {
+        return FEATURE_NAMES[key];
+    }
+
+    /**
+     * @return reachable weight of a FAMILY_REACHABLE code, the same value the "|0.89" suffix shows
+     */
+    public static float reachableWeight(int code) {
+        return REACHABLE_WEIGHT_VALUES[distance(code)];
+    }
+
+    /**
+     * Writes the text form of a code into a char array
+     * @param code term code
+     * @param dest destination, needs MAX_TERM_LENGTH free chars from offset
+     * @param offset start position in dest
+     * @return number of chars written
+     */
+    public static int appendTo(int code, char[] dest, int offset) {
+        int pos = offset;
+        dest[pos++] = PIECE_NOTATION.charAt(piece(code));
+        int family = family(code);
+        if (family >= FAMILY_ATTACK) {
+            dest[pos++] = RELATION_SYMBOLS[family];
+            dest[pos++] = PIECE_NOTATION.charAt(targetPiece(code));
+        }
+        int square = square(code);
+        dest[pos++] = (char) ('a' + (square & 7));
+        dest[pos++] = (char) ('1' + (square >>> 3));
+        if (family == FAMILY_REACHABLE) {
+            String weight = REACHABLE_WEIGHTS[distance(code)];
+            dest[pos++] = '|';
+            weight.getChars(0, weight.length(), dest, pos);
+            pos += weight.length();
+        }
+        return pos - offset;
+    }
+
+    public static String toTerm(int code) {
+        char[] chars = new char[MAX_TERM_LENGTH];
+        return new String(chars, 0, appendTo(code, chars, 0));
+    }
+
+    /**
+     * Parses the String form of a term back into its code
+     * @param term term as produced by the legal-move engine
+     * @return term code
+     * @throws IllegalArgumentException if the term is not in the encoder vocabulary
+     */
+    public static int parse(String term) {
+        int length = term.length();
+        if (length < 3) {
+            throw new IllegalArgumentException("Invalid term: '" + term + "'");
+        }
+        int piece = pieceIndex(term, 0);
+        if (length == 3) {
+            return truePosition(piece, squareIndex(term, 1));
+        }
+        char symbol = term.charAt(1);
+        for (int family = FAMILY_ATTACK; family <= FAMILY_RAY_ATTACK; family++) {
+            if (symbol == RELATION_SYMBOLS[family] && length == 5) {
+                return relation(family, piece, pieceIndex(term, 2), squareIndex(term, 3));
+            }
+        }
+        if (length == MAX_TERM_LENGTH && term.charAt(3) == '|') {
+            String weight = term.substring(4);
+            for (int distance = 1; distance < 8; distance++) {
+                if (REACHABLE_WEIGHTS[distance].equals(weight)) {
+                    return reachable(piece, squareIndex(term, 1), distance);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Invalid term: '" + term + "'");
+    }
+
+    private static int pieceIndex(String term, int index) {
+        int piece = PIECE_NOTATION.indexOf(term.charAt(index));
+        if (piece < 0) {
+            throw new IllegalArgumentException("Invalid piece in term: '" + term + "'");
+        }
+        return piece;
+    }
+
+    private static int squareIndex(String term, int index) {
+        int file = term.charAt(index) - 'a';
+        int rank = term.charAt(index + 1) - '1';
+        if (file < 0 || file > 7 || rank < 0 || rank > 7) {
+            throw new IllegalArgumentException("Invalid square in term: '" + term + "'");
+        }
+        return file + rank * 8;
+    }
+}
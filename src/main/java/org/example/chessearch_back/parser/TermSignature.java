@@ -0,0 +1,72 @@
+package org.example.chessearch_back.parser;
+
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.Arrays;
+
+/**
+ * Compact per-document form of a position's terms, stored as a binary DocValue so candidates can be rescored
+ * without touching postings: the distinct term codes in ascending order as vint deltas. Reachable codes are
+ * reduced to the shortest distance (highest weight) per piece + square, as the FeatureField index keeps them.
+ */
+public final class TermSignature {
+
+    private TermSignature() {
+    }
+
+    /**
+     * @param buffer term codes of a position
+     * @return signature bytes
+     */
+    public static BytesRef encode(TermBuffer buffer) {
+        int[] codes = new int[buffer.size()];
+        byte[] bestDistance = new byte[TermCodes.FEATURE_KEYS];
+        int count = 0;
+        for (int i = 0; i < buffer.size(); i++) {
+            int code = buffer.get(i);
+            if (TermCodes.family(code) == TermCodes.FAMILY_REACHABLE) {
+                int key = TermCodes.featureKey(code);
+                int distance = TermCodes.distance(code);
+                if (bestDistance[key] == 0 || distance < bestDistance[key]) {
+                    bestDistance[key] = (byte) distance;
+                }
+            } else {
+                codes[count++] = code;
+            }
+        }
+        for (int key = 0; key < TermCodes.FEATURE_KEYS; key++) {
+            if (bestDistance[key] != 0) {
+                codes[count++] = TermCodes.reachable(key >>> 6, key & 0x3F, bestDistance[key]);
+            }
+        }
+        Arrays.sort(codes, 0, count);
+
+        byte[] bytes = new byte[count * 3];
+        ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+        int previous = -1;
+        for (int i = 0; i < count; i++) {
+            if (codes[i] != previous) {
+                out.writeVInt(codes[i] - previous);
+                previous = codes[i];
+            }
+        }
+        return new BytesRef(bytes, 0, out.getPosition());
+    }
+
+    /**
+     * Reads a signature back into term codes
+     * @param signature bytes from {@link #encode(TermBuffer)}
+     * @param buffer cleared and filled with the codes in ascending order
+     */
+    public static void decode(BytesRef signature, TermBuffer buffer) {
+        buffer.clear();
+        ByteArrayDataInput in = new ByteArrayDataInput(signature.bytes, signature.offset, signature.length);
+        int code = -1;
+        while (!in.eof()) {
+            code += in.readVInt();
+            buffer.add(code);
+        }
+    }
+}
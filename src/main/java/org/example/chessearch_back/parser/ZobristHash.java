@@ -0,0 +1,58 @@
+package org.example.chessearch_back.parser;
+
+import java.util.SplittableRandom;
+
+/**
+ * 64-bit Zobrist hashing of positions in the bitboard engine's board layout (piece code per square, a1 = 0).
+ * The keys come from a fixed seed so a hash is stable across restarts.
+ */
+public final class ZobristHash {
+
+    private static final long[][] PIECE_SQUARE_KEYS = new long[12][64];
+    private static final long BLACK_TO_MOVE_KEY;
+    private static final long[] CASTLING_KEYS = new long[16];
+    private static final long[] EN_PASSANT_FILE_KEYS = new long[8];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x5EA2C4L);
+        for (int piece = 0; piece < 12; piece++) {
+            for (int sq = 0; sq < 64; sq++) {
+                PIECE_SQUARE_KEYS[piece][sq] = random.nextLong();
+            }
+        }
+        BLACK_TO_MOVE_KEY = random.nextLong();
+        for (int i = 0; i < CASTLING_KEYS.length; i++) {
+            CASTLING_KEYS[i] = random.nextLong();
+        }
+        for (int i = 0; i < EN_PASSANT_FILE_KEYS.length; i++) {
+            EN_PASSANT_FILE_KEYS[i] = random.nextLong();
+        }
+    }
+
+    private ZobristHash() {
+    }
+
+    /**
+     * @param board piece code per square, or -1 for empty
+     * @param sideToMove 0 white, 1 black
+     * @param castlingRights bit set of the castling flags (0..15)
+     * @param enPassantSquare en passant square, or -1
+     * @return hash of the position
+     */
+    public static long hash(int[] board, int sideToMove, int castlingRights, int enPassantSquare) {
+        long hash = 0L;
+        for (int sq = 0; sq < 64; sq++) {
+            if (board[sq] >= 0) {
+                hash ^= PIECE_SQUARE_KEYS[board[sq]][sq];
+            }
+        }
+        if (sideToMove == 1) {
+            hash ^= BLACK_TO_MOVE_KEY;
+        }
+        hash ^= CASTLING_KEYS[castlingRights & 0xF];
+        if (enPassantSquare >= 0) {
+            hash ^= EN_PASSANT_FILE_KEYS[enPassantSquare & 7];
+        }
+        return hash;
+    }
+}
@@ -268,6 +268,16 @@ public class ChessGameRepository {
         jdbcTemplate.update(sql, id);
     }
 
+    /**
+     * Deletes several chess games
+     * @param ids ids of the games to delete
+     * @return number of deleted games
+     */
+    public int deleteByIds(List<Integer> ids) {
+        String sql = "DELETE FROM chess_game WHERE id = ANY(?)";
+        return jdbcTemplate.update(sql, ps -> ps.setArray(1, ps.getConnection().createArrayOf("integer", ids.toArray())));
+    }
+
     /**
      * Deletes all chess games from the database
      */
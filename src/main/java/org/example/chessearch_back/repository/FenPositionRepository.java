@@ -1,25 +1,63 @@
 package org.example.chessearch_back.repository;
 
+import jakarta.annotation.PostConstruct;
+import org.example.chessearch_back.model.ChessGame;
 import org.example.chessearch_back.model.FenPosition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
 
 @Repository
 public class FenPositionRepository {
 
+    private static final Logger log = LoggerFactory.getLogger(FenPositionRepository.class);
+
+    /** adds the position_hash column (Zobrist hash of the position) and its B-tree index if missing */
+    public static final String[] POSITION_HASH_DDL = {
+            "ALTER TABLE fen_position ADD COLUMN IF NOT EXISTS position_hash BIGINT",
+            "CREATE INDEX IF NOT EXISTS idx_fen_position_position_hash ON fen_position (position_hash)"
+    };
+
     private final JdbcTemplate jdbcTemplate;
+    /** same DataSource with a fetch size, so PostgreSQL reads large scans through a server-side cursor */
+    private final JdbcTemplate streamingJdbcTemplate;
 
     @Autowired
-    public FenPositionRepository(JdbcTemplate jdbcTemplate) {
+    public FenPositionRepository(JdbcTemplate jdbcTemplate,
+                                 @Value("${indexing.fetch-size:2000}") int fetchSize) {
         this.jdbcTemplate = jdbcTemplate;
+        this.streamingJdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+        this.streamingJdbcTemplate.setFetchSize(fetchSize);
+    }
+
+    /**
+     * Creates the position_hash column and index on startup, rows inserted before stay null until backfilled
+     */
+    @PostConstruct
+    public void ensurePositionHashColumn() {
+        try {
+            for (String ddl : POSITION_HASH_DDL) {
+                jdbcTemplate.execute(ddl);
+            }
+        } catch (Exception e) {
+            log.error("Could not create the fen_position.position_hash column/index: {}", e.getMessage(), e);
+        }
     }
 
     private static final class FenPositionRowMapper implements RowMapper<FenPosition> {
@@ -34,6 +72,40 @@ public class FenPositionRepository {
         }
     }
 
+    /**
+     * Maps indexing rows: the position, its hash and the metadata of its game. Rows arrive ordered by game,
+     * consecutive positions of a game share one ChessGame instance.
+     */
+    private static final class IndexingRowMapper implements RowMapper<FenPosition> {
+        private ChessGame game;
+
+        @Override
+        public FenPosition mapRow(ResultSet rs, int rowNum) throws SQLException {
+            FenPosition pos = new FenPosition();
+            pos.setId(rs.getInt("id"));
+            pos.setGameId(rs.getInt("game_id"));
+            pos.setMoveNumber(rs.getInt("move_number"));
+            pos.setFen(rs.getString("fen"));
+            long positionHash = rs.getLong("position_hash");
+            pos.setPositionHash(rs.wasNull() ? null : positionHash);
+
+            if (game == null || game.getId() != pos.getGameId()) {
+                game = new ChessGame();
+                game.setId(pos.getGameId());
+                int whiteElo = rs.getInt("whiteelo");
+                game.setWhiteElo(rs.wasNull() ? null : whiteElo);
+                int blackElo = rs.getInt("blackelo");
+                game.setBlackElo(rs.wasNull() ? null : blackElo);
+                java.sql.Date sqlDate = rs.getDate("date");
+                game.setDate(sqlDate != null ? sqlDate.toLocalDate() : null);
+                game.setResult(rs.getString("result"));
+                game.setEco(rs.getString("eco"));
+            }
+            pos.setGame(game);
+            return pos;
+        }
+    }
+
     /**
      * Retrieves a list of FEN positions for a given game ID, ordered by move number.
      * Uses JdbcTemplate .
@@ -46,12 +118,38 @@ public class FenPositionRepository {
 
     }
 
+    /**
+     * Streams FEN positions for indexing in one ordered pass instead of one query per game.
+     * Runs in a read-only transaction because the PostgreSQL driver only uses a cursor with autocommit off;
+     * rows are fetched indexing.fetch-size at a time and never held in memory all together.
+     * The game metadata the index filters on is joined in, see {@link FenPosition#getGame()}.
+     * @param gameIds games to read, or null for all games
+     * @param afterMoveNumber only positions with a move number greater than this are returned
+     * @param consumer receives the positions ordered by (game_id, move_number)
+     */
+    @Transactional(readOnly = true)
+    public void streamPositionsForIndexing(List<Integer> gameIds, int afterMoveNumber, Consumer<FenPosition> consumer) {
+        String sql = "SELECT fp.id, fp.game_id, fp.move_number, fp.fen, fp.position_hash,"
+                + " cg.whiteelo, cg.blackelo, cg.date, cg.result, cg.eco"
+                + " FROM fen_position fp JOIN chess_game cg ON cg.id = fp.game_id WHERE fp.move_number > ?"
+                + (gameIds != null ? " AND fp.game_id = ANY(?)" : "")
+                + " ORDER BY fp.game_id, fp.move_number";
+        try (Stream<FenPosition> positions = streamingJdbcTemplate.queryForStream(sql, ps -> {
+            ps.setInt(1, afterMoveNumber);
+            if (gameIds != null) {
+                ps.setArray(2, ps.getConnection().createArrayOf("integer", gameIds.toArray()));
+            }
+        }, new IndexingRowMapper())) {
+            positions.forEach(consumer);
+        }
+    }
+
     public void saveBatch(List<FenPosition> fenPositions) {
         if (fenPositions == null || fenPositions.isEmpty()) {
             return;
         }
 
-        String sql = "INSERT INTO fen_position (game_id, move_number, fen) VALUES (?, ?, ?)";
+        String sql = "INSERT INTO fen_position (game_id, move_number, fen, position_hash) VALUES (?, ?, ?, ?)";
 
         jdbcTemplate.batchUpdate(sql, new BatchPreparedStatementSetter() {
             @Override
@@ -60,6 +158,11 @@ public class FenPositionRepository {
                 ps.setInt(1, fenPos.getGameId());
                 ps.setInt(2, fenPos.getMoveNumber());
                 ps.setString(3, fenPos.getFen());
+                if (fenPos.getPositionHash() != null) {
+                    ps.setLong(4, fenPos.getPositionHash());
+                } else {
+                    ps.setNull(4, Types.BIGINT);
+                }
             }
 
             @Override
@@ -69,6 +172,54 @@ public class FenPositionRepository {
         });
     }
 
+    /**
+     * Finds games that reach an exact position through the position_hash index
+     * @param positionHash Zobrist hash of the position
+     * @param limit max number of games
+     * @return first occurrence of the position per game, ordered by game id
+     */
+    public List<FenPosition> findByPositionHash(long positionHash, int limit) {
+        String sql = "SELECT DISTINCT ON (game_id) id, game_id, move_number, fen FROM fen_position"
+                + " WHERE position_hash = ? ORDER BY game_id, move_number LIMIT ?";
+        return jdbcTemplate.query(sql, new FenPositionRowMapper(), positionHash, limit);
+    }
+
+    /**
+     * Fills position_hash for rows inserted before the column existed, in id order and batches
+     * @param hasher computes the hash of a FEN, rows whose FEN it rejects stay null
+     * @param batchSize rows read and updated per round trip
+     * @return number of rows updated
+     */
+    public long backfillPositionHashes(ToLongFunction<String> hasher, int batchSize) {
+        String selectSql = "SELECT id, fen FROM fen_position WHERE position_hash IS NULL AND id > ? ORDER BY id LIMIT ?";
+        String updateSql = "UPDATE fen_position SET position_hash = ? WHERE id = ?";
+        long updated = 0;
+        int lastId = 0;
+        while (true) {
+            List<long[]> hashes = new ArrayList<>();
+            int[] maxId = {lastId};
+            jdbcTemplate.query(selectSql, rs -> {
+                int id = rs.getInt("id");
+                maxId[0] = Math.max(maxId[0], id);
+                try {
+                    hashes.add(new long[]{id, hasher.applyAsLong(rs.getString("fen"))});
+                } catch (IllegalArgumentException e) {
+                    log.warn("Cannot hash FEN of fen_position {}: {}", id, e.getMessage());
+                }
+            }, lastId, batchSize);
+            if (maxId[0] == lastId) {
+                return updated;
+            }
+            lastId = maxId[0];
+            jdbcTemplate.batchUpdate(updateSql, hashes, hashes.size(), (ps, row) -> {
+                ps.setLong(1, row[1]);
+                ps.setInt(2, (int) row[0]);
+            });
+            updated += hashes.size();
+            log.info("Backfilled position hashes up to fen_position id {} ({} rows)", lastId, updated);
+        }
+    }
+
     /**
      * Deletes all FEN positions for a specific game
      * @param gameId id of the game whose positions should be deleted
@@ -78,6 +229,15 @@ public class FenPositionRepository {
         jdbcTemplate.update(sql, gameId);
     }
 
+    /**
+     * Deletes all FEN positions of several games
+     * @param gameIds ids of the games whose positions should be deleted
+     */
+    public void deleteByGameIds(List<Integer> gameIds) {
+        String sql = "DELETE FROM fen_position WHERE game_id = ANY(?)";
+        jdbcTemplate.update(sql, ps -> ps.setArray(1, ps.getConnection().createArrayOf("integer", gameIds.toArray())));
+    }
+
     /**
      * Deletes all FEN positions from the database
      */
@@ -0,0 +1,297 @@
+package org.example.chessearch_back.service;
+
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOConsumer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Maintains the occurrence lists of the deduplicated index, where one document holds one unique position
+ * (FIELD_POSITION_KEY, the Zobrist hash) and the games it occurred in (FIELD_OCCURRENCES), and one game document
+ * per game lists the positions it occurs in (FIELD_GAME_POSITIONS).
+ */
+final class DeduplicatedPositions {
+
+    private DeduplicatedPositions() {
+    }
+
+    static Term positionKeyTerm(long key) {
+        return new Term(IndexingService.FIELD_POSITION_KEY, Long.toString(key));
+    }
+
+    /**
+     * Game document of the deduplicated index: the game id as term and the keys of the positions the game occurs in,
+     * so deletes find the position documents of a game without scanning the index. It has no position terms and never
+     * matches a search.
+     * @param gameId id of the game
+     * @param positionKeys Zobrist hashes of the game's indexed positions
+     * @return document to add
+     */
+    static Document gameDocument(int gameId, Set<Long> positionKeys) {
+        byte[] bytes = new byte[positionKeys.size() * Long.BYTES];
+        ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+        for (long key : positionKeys) {
+            out.writeLong(key);
+        }
+        Document doc = new Document();
+        doc.add(new StringField(IndexingService.FIELD_GAME_ID, String.valueOf(gameId), Field.Store.NO));
+        doc.add(new BinaryDocValuesField(IndexingService.FIELD_GAME_POSITIONS, new BytesRef(bytes)));
+        return doc;
+    }
+
+    /**
+     * Removes the occurrences of the given games from their position documents, deleting documents left without any.
+     * The position documents are found through the game documents, which the caller deletes afterwards by game id;
+     * games indexed without a game document (before it existed) keep their occurrences until a rebuild.
+     * @param writer writer of the index
+     * @param gameIds games to remove
+     * @return number of position documents changed or deleted
+     * @throws IOException if the index cannot be read or updated
+     */
+    static int removeGames(IndexWriter writer, Set<Integer> gameIds) throws IOException {
+        int changed = 0;
+        try (DirectoryReader reader = DirectoryReader.open(writer)) {
+            Set<Long> positionKeys = new HashSet<>();
+            for (int gameId : gameIds) {
+                collectPositionKeys(reader, gameId, positionKeys);
+            }
+            for (long key : positionKeys) {
+                PositionOccurrences occurrences = findOccurrences(reader, new BytesRef(Long.toString(key)));
+                if (occurrences == null || !occurrences.removeGames(gameIds)) {
+                    continue;
+                }
+                Term keyTerm = positionKeyTerm(key);
+                if (occurrences.size() == 0) {
+                    writer.deleteDocuments(keyTerm);
+                } else {
+                    writer.updateBinaryDocValue(keyTerm, IndexingService.FIELD_OCCURRENCES, occurrences.toBytesRef());
+                }
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private static void collectPositionKeys(DirectoryReader reader, int gameId, Set<Long> positionKeys) throws IOException {
+        BytesRef gameIdBytes = new BytesRef(String.valueOf(gameId));
+        for (LeafReaderContext leaf : reader.leaves()) {
+            LeafReader leafReader = leaf.reader();
+            BinaryDocValues keyValues = leafReader.getBinaryDocValues(IndexingService.FIELD_GAME_POSITIONS);
+            Terms terms = leafReader.terms(IndexingService.FIELD_GAME_ID);
+            if (keyValues == null || terms == null) {
+                continue;
+            }
+            TermsEnum termsEnum = terms.iterator();
+            if (!termsEnum.seekExact(gameIdBytes)) {
+                continue;
+            }
+            Bits liveDocs = leafReader.getLiveDocs();
+            PostingsEnum postings = termsEnum.postings(null, PostingsEnum.NONE);
+            for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                if ((liveDocs != null && !liveDocs.get(doc)) || !keyValues.advanceExact(doc)) {
+                    continue;
+                }
+                BytesRef bytes = keyValues.binaryValue();
+                ByteArrayDataInput in = new ByteArrayDataInput(bytes.bytes, bytes.offset, bytes.length);
+                while (!in.eof()) {
+                    positionKeys.add(in.readLong());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return stored occurrences of the live document of a position, or null if it has none
+     */
+    private static PositionOccurrences findOccurrences(DirectoryReader reader, BytesRef keyBytes) throws IOException {
+        for (LeafReaderContext leaf : reader.leaves()) {
+            PositionOccurrences stored = findOccurrences(leaf.reader(), keyBytes);
+            if (stored != null) {
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    private static PositionOccurrences findOccurrences(LeafReader leafReader, BytesRef keyBytes) throws IOException {
+        Terms terms = leafReader.terms(IndexingService.FIELD_POSITION_KEY);
+        if (terms == null) {
+            return null;
+        }
+        TermsEnum termsEnum = terms.iterator();
+        if (!termsEnum.seekExact(keyBytes)) {
+            return null;
+        }
+        Bits liveDocs = leafReader.getLiveDocs();
+        PostingsEnum postings = termsEnum.postings(null, PostingsEnum.NONE);
+        for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+            if (liveDocs != null && !liveDocs.get(doc)) {
+                continue;
+            }
+            BinaryDocValues occurrenceValues = leafReader.getBinaryDocValues(IndexingService.FIELD_OCCURRENCES);
+            if (occurrenceValues != null && occurrenceValues.advanceExact(doc)) {
+                return PositionOccurrences.fromBytesRef(occurrenceValues.binaryValue());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Occurrences collected during one indexing run. Concurrent workers report every position; only the first
+     * report of a position that is not in the index yet adds its document, later ones are folded into the
+     * occurrence list and written by a flush.
+     * Memory is bounded by maxEntries positions: once more are buffered, the changed occurrence lists are written,
+     * the buffer is dropped and the lookup reader reopened so it sees the documents added so far. A single position
+     * occurring in very many games still keeps its whole occurrence list in memory while it is buffered.
+     */
+    static final class Run implements Closeable {
+        private final IndexWriter writer;
+        private final int maxEntries;
+        private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+        /** workers hold the read lock while reporting a position, a chunk flush holds the write lock */
+        private final ReadWriteLock chunkLock = new ReentrantReadWriteLock();
+        /** index state the buffered entries were loaded from, replaced on every chunk flush */
+        private DirectoryReader existing;
+        private int chunksFlushed;
+
+        /**
+         * @param writer writer of the index
+         * @param maxEntries positions buffered before the occurrence lists are flushed
+         * @throws IOException if the current index cannot be opened for lookups
+         */
+        Run(IndexWriter writer, int maxEntries) throws IOException {
+            this.writer = writer;
+            this.maxEntries = Math.max(1, maxEntries);
+            this.existing = DirectoryReader.open(writer);
+        }
+
+        /**
+         * Records an occurrence of a position and adds its document if the position is new to the index
+         * @param addDocument adds the position document with the given occurrence list
+         * @return true if the document was added, false if it exists or another worker adds it
+         * @throws IOException if adding the document or flushing the buffered occurrence lists fails
+         */
+        boolean addOccurrence(long key, int gameId, int moveNumber, IOConsumer<BytesRef> addDocument) throws IOException {
+            boolean added;
+            chunkLock.readLock().lock();
+            try {
+                Entry entry = entries.computeIfAbsent(key, this::loadEntry);
+                synchronized (entry) {
+                    entry.occurrences.add(gameId, moveNumber);
+                    added = !entry.documentExists;
+                    entry.documentExists = true;
+                    entry.dirty |= !added;
+                }
+                if (added) {
+                    addDocument.accept(entry.occurrences.toBytesRef());
+                }
+            } finally {
+                chunkLock.readLock().unlock();
+            }
+            if (entries.size() > maxEntries) {
+                flushChunk();
+            }
+            return added;
+        }
+
+        /**
+         * Writes the occurrence lists of positions that gained occurrences after their document was written
+         * @throws IOException if a DocValues update fails
+         */
+        void flush() throws IOException {
+            chunkLock.writeLock().lock();
+            try {
+                writeDirtyEntries();
+            } finally {
+                chunkLock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * @return number of times the buffer was flushed before the end of the run
+         */
+        int getChunksFlushed() {
+            return chunksFlushed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            existing.close();
+        }
+
+        private void flushChunk() throws IOException {
+            chunkLock.writeLock().lock();
+            try {
+                if (entries.size() <= maxEntries) {
+                    return;
+                }
+                writeDirtyEntries();
+                entries.clear();
+                DirectoryReader reopened = DirectoryReader.openIfChanged(existing, writer);
+                if (reopened != null) {
+                    existing.close();
+                    existing = reopened;
+                }
+                chunksFlushed++;
+            } finally {
+                chunkLock.writeLock().unlock();
+            }
+        }
+
+        private void writeDirtyEntries() throws IOException {
+            for (Map.Entry<Long, Entry> mapEntry : entries.entrySet()) {
+                if (mapEntry.getValue().dirty) {
+                    writer.updateBinaryDocValue(positionKeyTerm(mapEntry.getKey()), IndexingService.FIELD_OCCURRENCES,
+                            mapEntry.getValue().occurrences.toBytesRef());
+                    mapEntry.getValue().dirty = false;
+                }
+            }
+        }
+
+        private Entry loadEntry(long key) {
+            Entry entry = new Entry();
+            try {
+                PositionOccurrences stored = findOccurrences(existing, new BytesRef(Long.toString(key)));
+                if (stored != null) {
+                    for (int i = 0; i < stored.size(); i++) {
+                        entry.occurrences.add(stored.gameId(i), stored.moveNumber(i));
+                    }
+                    entry.documentExists = true;
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not look up position " + key, e);
+            }
+            return entry;
+        }
+
+        private static final class Entry {
+            final PositionOccurrences occurrences = new PositionOccurrences();
+            boolean documentExists;
+            boolean dirty;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package org.example.chessearch_back.service;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the best-scoring hit of each game and keeps the top K games, reading game_id / move_number from
+ * numeric DocValues. Hits of the deduplicated index count for every game in their occurrence list.
+ * Once K games are held and more than totalHitsThreshold hits were counted, the K-th best score is passed on as
+ * minimum competitive score so block-max WAND / MaxScore can skip documents that cannot enter the result;
+ * the hit count is exact up to the threshold and a lower bound beyond it.
+ * Documents of an index written before the DocValues existed fall back to their stored fields.
+ * Hits are ordered by score, then doc id, then game id; the game id only separates the games of one
+ * deduplicated document, which all share its score and doc id.
+ * For a later page, hits up to and including the last hit of the previous page in that order only exclude their
+ * game: such a game was already returned. The heap holds gamesBefore extra slots, one for every game that may be
+ * excluded after it entered, so no game of the page is lost to it. A later page therefore still scores every hit
+ * ahead of its cursor and holds numGames + gamesBefore games: page N costs about as much as collecting N pages at
+ * once, the cursor only keeps the page boundaries stable.
+ * {@link Manager} runs one collector per slice for concurrent search and merges their games.
+ */
+final class GameCollapsingCollector implements Collector {
+
+    private static final Set<String> LEGACY_FIELDS = Set.of(IndexingService.FIELD_GAME_ID, IndexingService.FIELD_MOVE_NUMBER);
+
+    private final int numGames;
+    private final int totalHitsThreshold;
+    /** min-heap on score, heap[0] is the weakest game held */
+    private final GameHit[] heap;
+    private int size;
+    private final Map<Integer, GameHit> hitsByGame = new HashMap<>();
+    private int totalHits;
+    /** last hit of the previous page, null for a first page */
+    private final ScoreDoc after;
+    /** game of the last hit of the previous page */
+    private final int afterGameId;
+    /** games with a hit up to after, returned on earlier pages */
+    private final Set<Integer> excludedGames = new HashSet<>();
+
+    /**
+     * @param numGames number of games to keep
+     * @param totalHitsThreshold hits to count exactly before non-competitive documents may be skipped
+     */
+    GameCollapsingCollector(int numGames, int totalHitsThreshold) {
+        this(numGames, totalHitsThreshold, null, 0, 0);
+    }
+
+    /**
+     * @param numGames number of games to keep
+     * @param totalHitsThreshold hits to count exactly before non-competitive documents may be skipped
+     * @param after last hit of the previous page (top-level doc id), or null for the first page
+     * @param afterGameId game of the last hit of the previous page
+     * @param gamesBefore number of games on the previous pages
+     */
+    GameCollapsingCollector(int numGames, int totalHitsThreshold, ScoreDoc after, int afterGameId, int gamesBefore) {
+        if (numGames <= 0) {
+            throw new IllegalArgumentException("numGames must be positive, got " + numGames);
+        }
+        if (gamesBefore < 0) {
+            throw new IllegalArgumentException("gamesBefore must not be negative, got " + gamesBefore);
+        }
+        this.numGames = numGames;
+        this.totalHitsThreshold = Math.max(0, totalHitsThreshold);
+        this.after = after;
+        this.afterGameId = afterGameId;
+        this.heap = new GameHit[after != null ? numGames + gamesBefore : numGames];
+    }
+
+    /**
+     * @return the collected games ordered by descending score, at most numGames
+     */
+    GameHit[] topGames() {
+        return top(Arrays.copyOf(heap, size), numGames);
+    }
+
+    private static GameHit[] top(GameHit[] hits, int numGames) {
+        Arrays.sort(hits, Comparator.comparingDouble((GameHit hit) -> hit.score).reversed()
+                .thenComparingInt(hit -> hit.docId)
+                .thenComparingInt(hit -> hit.gameId));
+        return hits.length > numGames ? Arrays.copyOf(hits, numGames) : hits;
+    }
+
+    /**
+     * @return number of documents collected, a lower bound if {@link #isTotalHitsExact()} is false
+     */
+    int getTotalHits() {
+        return totalHits;
+    }
+
+    boolean isTotalHitsExact() {
+        return totalHits <= totalHitsThreshold;
+    }
+
+    @Override
+    public ScoreMode scoreMode() {
+        return ScoreMode.TOP_SCORES;
+    }
+
+    @Override
+    public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+        int docBase = context.docBase;
+        NumericDocValues gameIds = context.reader().getNumericDocValues(IndexingService.FIELD_GAME_ID);
+        NumericDocValues moveNumbers = context.reader().getNumericDocValues(IndexingService.FIELD_MOVE_NUMBER);
+        BinaryDocValues occurrenceValues = context.reader().getBinaryDocValues(IndexingService.FIELD_OCCURRENCES);
+        StoredFields storedFields = context.reader().storedFields();
+
+        return new LeafCollector() {
+            private Scorable scorer;
+
+            @Override
+            public void setScorer(Scorable scorer) throws IOException {
+                this.scorer = scorer;
+                updateMinCompetitiveScore();
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                totalHits++;
+                float score = scorer.score();
+                // a hit up to the cursor beats every held hit, so it is never cut off here;
+                // the lowest game id stands for any game of the document
+                if (size == heap.length && !beats(score, docBase + doc, Integer.MIN_VALUE, heap[0])) {
+                    return;
+                }
+                if (gameIds != null && gameIds.advanceExact(doc)) {
+                    int moveNumber = moveNumbers != null && moveNumbers.advanceExact(doc) ? (int) moveNumbers.longValue() : -1;
+                    offer((int) gameIds.longValue(), moveNumber, docBase + doc, score);
+                } else if (occurrenceValues != null && occurrenceValues.advanceExact(doc)) {
+                    PositionOccurrences occurrences = PositionOccurrences.fromBytesRef(occurrenceValues.binaryValue());
+                    for (int i = 0; i < occurrences.size(); i++) {
+                        offer(occurrences.gameId(i), occurrences.moveNumber(i), docBase + doc, score);
+                    }
+                } else {
+                    Document legacy = storedFields.document(doc, LEGACY_FIELDS);
+                    String gameId = legacy.get(IndexingService.FIELD_GAME_ID);
+                    if (gameId == null) {
+                        return;
+                    }
+                    IndexableField moveNumber = legacy.getField(IndexingService.FIELD_MOVE_NUMBER);
+                    offer(Integer.parseInt(gameId), moveNumber != null && moveNumber.numericValue() != null
+                            ? moveNumber.numericValue().intValue() : -1, docBase + doc, score);
+                }
+                updateMinCompetitiveScore();
+            }
+
+            private void updateMinCompetitiveScore() throws IOException {
+                if (size == heap.length && totalHits > totalHitsThreshold && scorer != null) {
+                    float minScore = heap[0].score;
+                    // equal scores of later documents never replace a held game,
+                    // unless they may still lie before the cursor and exclude their game
+                    scorer.setMinCompetitiveScore(after != null && minScore >= after.score ? minScore : Math.nextUp(minScore));
+                }
+            }
+        };
+    }
+
+    private void offer(int gameId, int moveNumber, int docId, float score) {
+        if (after != null) {
+            if (!(score < after.score || (score == after.score && (docId > after.doc || (docId == after.doc && gameId > afterGameId))))) {
+                exclude(gameId);
+                return;
+            }
+            if (excludedGames.contains(gameId)) {
+                return;
+            }
+        }
+        GameHit held = hitsByGame.get(gameId);
+        if (held != null) {
+            if (beats(score, docId, gameId, held)) {
+                held.score = score;
+                held.docId = docId;
+                held.moveNumber = moveNumber;
+                siftDown(held.heapIndex);
+            }
+            return;
+        }
+        if (size < heap.length) {
+            GameHit hit = new GameHit(gameId, moveNumber, docId, score);
+            hit.heapIndex = size;
+            heap[size++] = hit;
+            hitsByGame.put(gameId, hit);
+            siftUp(hit.heapIndex);
+        } else if (beats(score, docId, gameId, heap[0])) {
+            GameHit evicted = heap[0];
+            hitsByGame.remove(evicted.gameId);
+            GameHit hit = new GameHit(gameId, moveNumber, docId, score);
+            hit.heapIndex = 0;
+            heap[0] = hit;
+            hitsByGame.put(gameId, hit);
+            siftDown(0);
+        }
+    }
+
+    private void exclude(int gameId) {
+        if (!excludedGames.add(gameId)) {
+            return;
+        }
+        GameHit held = hitsByGame.remove(gameId);
+        if (held != null) {
+            int index = held.heapIndex;
+            GameHit last = heap[--size];
+            heap[size] = null;
+            if (index < size) {
+                place(last, index);
+                siftDown(index);
+                siftUp(last.heapIndex);
+            }
+        }
+    }
+
+    /** higher score wins, on equal scores the earlier document, within a document the lower game id */
+    private static boolean beats(float score, int docId, int gameId, GameHit other) {
+        return score > other.score || (score == other.score && (docId < other.docId || (docId == other.docId && gameId < other.gameId)));
+    }
+
+    private static boolean beats(GameHit hit, GameHit other) {
+        return beats(hit.score, hit.docId, hit.gameId, other);
+    }
+
+    private void siftUp(int index) {
+        GameHit hit = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!beats(heap[parent], hit)) {
+                break;
+            }
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(hit, index);
+    }
+
+    private void siftDown(int index) {
+        GameHit hit = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && beats(heap[child], heap[child + 1])) {
+                child++;
+            }
+            if (!beats(hit, heap[child])) {
+                break;
+            }
+            place(heap[child], index);
+            index = child;
+        }
+        place(hit, index);
+    }
+
+    private void place(GameHit hit, int index) {
+        heap[index] = hit;
+        hit.heapIndex = index;
+    }
+
+    /**
+     * One collector per slice; reduce keeps the best hit per game across slices, drops games any slice saw before
+     * the cursor and returns the top numGames ordered by descending score, also kept for {@link #topGames()}
+     */
+    static final class Manager implements CollectorManager<GameCollapsingCollector, GameHit[]> {
+        private final int numGames;
+        private final int totalHitsThreshold;
+        private final ScoreDoc after;
+        private final int afterGameId;
+        private final int gamesBefore;
+        private GameHit[] topGames = new GameHit[0];
+        private int totalHits;
+        private boolean totalHitsExact = true;
+
+        /**
+         * @see GameCollapsingCollector#GameCollapsingCollector(int, int)
+         */
+        Manager(int numGames, int totalHitsThreshold) {
+            this(numGames, totalHitsThreshold, null, 0, 0);
+        }
+
+        /**
+         * @see GameCollapsingCollector#GameCollapsingCollector(int, int, ScoreDoc, int, int)
+         */
+        Manager(int numGames, int totalHitsThreshold, ScoreDoc after, int afterGameId, int gamesBefore) {
+            this.numGames = numGames;
+            this.totalHitsThreshold = totalHitsThreshold;
+            this.after = after;
+            this.afterGameId = afterGameId;
+            this.gamesBefore = gamesBefore;
+        }
+
+        @Override
+        public GameCollapsingCollector newCollector() {
+            return new GameCollapsingCollector(numGames, totalHitsThreshold, after, afterGameId, gamesBefore);
+        }
+
+        @Override
+        public GameHit[] reduce(Collection<GameCollapsingCollector> collectors) {
+            Set<Integer> excluded = new HashSet<>();
+            for (GameCollapsingCollector collector : collectors) {
+                excluded.addAll(collector.excludedGames);
+            }
+            Map<Integer, GameHit> best = new HashMap<>();
+            totalHits = 0;
+            totalHitsExact = true;
+            for (GameCollapsingCollector collector : collectors) {
+                totalHits += collector.totalHits;
+                totalHitsExact &= collector.isTotalHitsExact();
+                for (int i = 0; i < collector.size; i++) {
+                    GameHit hit = collector.heap[i];
+                    if (!excluded.contains(hit.gameId)) {
+                        best.merge(hit.gameId, hit, (held, other) -> beats(other, held) ? other : held);
+                    }
+                }
+            }
+            topGames = top(best.values().toArray(new GameHit[0]), numGames);
+            return topGames;
+        }
+
+        /**
+         * @return the games of the last reduce ordered by descending score, at most numGames
+         */
+        GameHit[] topGames() {
+            return topGames;
+        }
+
+        /**
+         * @return documents collected over all slices, a lower bound if {@link #isTotalHitsExact()} is false
+         */
+        int getTotalHits() {
+            return totalHits;
+        }
+
+        boolean isTotalHitsExact() {
+            return totalHitsExact;
+        }
+    }
+
+    /**
+     * Best hit of one game; docId is the top-level document id to load stored fields from
+     */
+    static final class GameHit {
+        final int gameId;
+        int moveNumber;
+        int docId;
+        float score;
+        private int heapIndex;
+
+        GameHit(int gameId, int moveNumber, int docId, float score) {
+            this.gameId = gameId;
+            this.moveNumber = moveNumber;
+            this.docId = docId;
+            this.score = score;
+        }
+    }
+}
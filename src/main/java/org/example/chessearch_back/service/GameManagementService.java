@@ -2,6 +2,7 @@ package org.example.chessearch_back.service;
 
 import org.example.chessearch_back.model.ChessGame;
 import org.example.chessearch_back.model.FenPosition;
+import org.example.chessearch_back.parser.PositionEncoder;
 import org.example.chessearch_back.repository.ChessGameRepository;
 import org.example.chessearch_back.repository.FenPositionRepository;
 import org.slf4j.Logger;
@@ -32,6 +33,7 @@ public class GameManagementService {
     private final ChessGameRepository chessGameRepository;
     private final FenPositionRepository fenPositionRepository;
     private final IndexingService indexingService;
+    private final PositionEncoder positionEncoder;
     private final JdbcTemplate jdbcTemplate;
 
     private static final Pattern PGN_TAG_PATTERN = Pattern.compile("\\[\\s*(\\w+)\\s*\"([^\"]*)\"\\s*]");
@@ -42,11 +44,13 @@ public class GameManagementService {
                                  ChessGameRepository chessGameRepository,
                                  FenPositionRepository fenPositionRepository,
                                  IndexingService indexingService,
+                                 PositionEncoder positionEncoder,
                                  JdbcTemplate jdbcTemplate) {
         this.pgnParserService = pgnParserService;
         this.chessGameRepository = chessGameRepository;
         this.fenPositionRepository = fenPositionRepository;
         this.indexingService = indexingService;
+        this.positionEncoder = positionEncoder;
         this.jdbcTemplate = jdbcTemplate;
     }
 
@@ -218,6 +222,7 @@ public class GameManagementService {
                 fenPos.setGameId(gameId);
                 fenPos.setMoveNumber(i + 1);
                 fenPos.setFen(fens.get(i));
+                fenPos.setPositionHash(positionEncoder.positionKey(fens.get(i)));
                 fenPositionsToSave.add(fenPos);
             }
             fenPositionRepository.saveBatch(fenPositionsToSave);
@@ -290,6 +295,43 @@ public class GameManagementService {
         }
     }
 
+    /**
+     * Computes fen_position.position_hash for rows stored before the column existed
+     * @return number of rows updated
+     */
+    public long backfillPositionHashes() {
+        log.info("Backfilling fen_position.position_hash");
+        long updated = fenPositionRepository.backfillPositionHashes(positionEncoder::positionKey, 5000);
+        log.info("Backfilled {} position hashes", updated);
+        return updated;
+    }
+
+    /**
+     * Deletes several games from the database and queues them for one batched index delete
+     * @param gameIds IDs of the games to delete
+     * @return number of games deleted from the database
+     * @throws Exception if deletion fails
+     */
+    @Transactional
+    public int deleteGames(List<Integer> gameIds) throws Exception {
+        if (gameIds == null || gameIds.isEmpty()) {
+            throw new IllegalArgumentException("Game IDs cannot be empty");
+        }
+
+        log.info("Deleting {} games", gameIds.size());
+        try {
+            indexingService.deleteGamesFromIndex(gameIds);
+            fenPositionRepository.deleteByGameIds(gameIds);
+            int deleted = chessGameRepository.deleteByIds(gameIds);
+
+            log.info("Successfully deleted {} games", deleted);
+            return deleted;
+        } catch (Exception e) {
+            log.error("Error deleting games {}: {}", gameIds, e.getMessage());
+            throw new Exception("Failed to delete games: " + e.getMessage());
+        }
+    }
+
     /**
      * Clears all games from both database and search index
      * @throws Exception if clearing fails
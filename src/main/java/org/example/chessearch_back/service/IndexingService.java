@@ -1,27 +1,66 @@
 package org.example.chessearch_back.service;
 
+import jakarta.annotation.PreDestroy;
+import org.example.chessearch_back.config.LuceneIndexManager;
+import org.example.chessearch_back.model.ChessGame;
 import org.example.chessearch_back.model.FenPosition;
+import org.example.chessearch_back.parser.GameTermEncoder;
 import org.example.chessearch_back.parser.PositionEncoder;
+import org.example.chessearch_back.parser.PositionVector;
+import org.example.chessearch_back.parser.TermBuffer;
+import org.example.chessearch_back.parser.TermCodeTokenStream;
+import org.example.chessearch_back.parser.TermCodes;
+import org.example.chessearch_back.parser.TermSignature;
 import org.example.chessearch_back.repository.ChessGameRepository;
 import org.example.chessearch_back.repository.FenPositionRepository;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FeatureField;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.KnnFloatVectorField;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.VectorSimilarityFunction;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
 
 @Service
@@ -30,32 +69,101 @@ public class IndexingService {
     private static final Logger log = LoggerFactory.getLogger(IndexingService.class);
 
     private static final int NUM_SKIP_MOVES = 24;
-    private static final List<Consumer<String>> progressListeners = new ArrayList<>();
+    private static final List<Consumer<String>> progressListeners = new CopyOnWriteArrayList<>();
+    /** one reusable term buffer + token stream per indexing thread, consumed inside addDocument */
+    private static final ThreadLocal<TermCodeTokenStream> termStreams = ThreadLocal.withInitial(TermCodeTokenStream::new);
+    private static final ThreadLocal<float[]> reachableWeights = ThreadLocal.withInitial(() -> new float[TermCodes.FEATURE_KEYS]);
 
     public static final String FIELD_TERMS = "terms";
+    /** reachable squares as FeatureField features ("Qe4") weighted by distance, instead of "Qe4|0.89" terms */
+    public static final String FIELD_REACHABLE = "reachable";
     public static final String FIELD_FEN_ID = "fen_id";
     public static final String FIELD_GAME_ID = "game_id";
     public static final String FIELD_MOVE_NUMBER = "move_number";
     public static final String FIELD_FEN_STRING = "fen_string";
+    /** binary DocValue with the position's term codes, see {@link TermSignature}, for two-phase search */
+    public static final String FIELD_SIGNATURE = "term_signature";
+    /** Zobrist hash of the position as keyword term, for exact lookups; deduplicated mode also keeps it as numeric DocValue */
+    public static final String FIELD_POSITION_KEY = "position_key";
+    /** deduplicated mode: binary DocValue with the (game_id, move_number) occurrences, see {@link PositionOccurrences} */
+    public static final String FIELD_OCCURRENCES = "occurrences";
+    /** deduplicated mode: binary DocValue of a game document with the keys of the game's positions, for deletes */
+    public static final String FIELD_GAME_POSITIONS = "game_positions";
+    /** game metadata copied into per-ply documents for filtered search: Elo and date (epoch day) as points + numeric DocValues */
+    public static final String FIELD_WHITE_ELO = "white_elo";
+    public static final String FIELD_BLACK_ELO = "black_elo";
+    public static final String FIELD_DATE = "date";
+    /** game result ("1-0", "0-1", "1/2-1/2") and upper case ECO code as keyword terms */
+    public static final String FIELD_RESULT = "result";
+    public static final String FIELD_ECO = "eco";
+    /** unit length {@link PositionVector} of the position as HNSW-indexed vector, for KNN search (indexing.knn.enabled) */
+    public static final String FIELD_VECTOR = "position_vector";
+
+    /**
+     * PER_PLY indexes one document per ply of every game, DEDUPLICATED one document per unique position
+     * with the games it occurs in as an occurrence list
+     */
+    public enum IndexMode {
+        PER_PLY,
+        DEDUPLICATED
+    }
 
 
     private final FenPositionRepository fenPositionRepository;
     private final ChessGameRepository chessGameRepository;
     private final PositionEncoder positionEncoder;
-    private final IndexWriter indexWriter;
-    private final SearcherManager searcherManager;
+    private final LuceneIndexManager indexManager;
+    private final IndexMode indexMode;
+    /** adds the position vector to every document, building the HNSW graph costs indexing time and disk */
+    private final boolean indexVectors;
+    private final int rebuildThreads;
+    private final int rebuildQueueCapacity;
+    /** deduplicated mode: positions an indexing run buffers before writing their occurrence lists */
+    private final int dedupMaxBufferedPositions;
+
+    private final AtomicBoolean rebuildRunning = new AtomicBoolean();
+    /** live index writes hold the read lock, publishing a rebuilt index holds the write lock */
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    /** games added/deleted on the live index while a rebuild runs, replayed on the new index before it is published */
+    private volatile RebuildChanges rebuildChanges;
+    /** serializes read-modify-write of occurrence lists on the live index between new games and deletes, DEDUPLICATED mode only */
+    private final ReentrantLock occurrenceLock = new ReentrantLock();
+
+    /** game ids waiting to be deleted from the index by the delete worker */
+    private final BlockingQueue<Integer> pendingDeletes = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService deleteExecutor;
+    private final int deleteBatchSize;
+    private final LongAdder deleteBatches = new LongAdder();
+    private final LongAdder gamesDeleted = new LongAdder();
 
     @Autowired
     public IndexingService(FenPositionRepository fenPositionRepository,
                            ChessGameRepository chessGameRepository,
                            PositionEncoder positionEncoder,
-                           IndexWriter indexWriter,
-                           SearcherManager searcherManager) {
+                           LuceneIndexManager indexManager,
+                           @Value("${indexing.mode:PER_PLY}") IndexMode indexMode,
+                           @Value("${indexing.rebuild.threads:0}") int rebuildThreads,
+                           @Value("${indexing.rebuild.queue-capacity:256}") int rebuildQueueCapacity,
+                           @Value("${indexing.delete.batch-size:1000}") int deleteBatchSize,
+                           @Value("${indexing.delete.interval-ms:200}") long deleteIntervalMs,
+                           @Value("${indexing.knn.enabled:false}") boolean indexVectors,
+                           @Value("${indexing.dedup.max-buffered-positions:1000000}") int dedupMaxBufferedPositions) {
         this.fenPositionRepository = fenPositionRepository;
         this.chessGameRepository = chessGameRepository;
         this.positionEncoder = positionEncoder;
-        this.indexWriter = indexWriter;
-        this.searcherManager = searcherManager;
+        this.indexManager = indexManager;
+        this.indexMode = indexMode;
+        this.indexVectors = indexVectors;
+        this.rebuildThreads = rebuildThreads > 0 ? rebuildThreads : Runtime.getRuntime().availableProcessors();
+        this.rebuildQueueCapacity = Math.max(1, rebuildQueueCapacity);
+        this.dedupMaxBufferedPositions = Math.max(1, dedupMaxBufferedPositions);
+        this.deleteBatchSize = Math.max(1, deleteBatchSize);
+        this.deleteExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "index-delete-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.deleteExecutor.scheduleWithFixedDelay(this::applyPendingDeletes, deleteIntervalMs, deleteIntervalMs, TimeUnit.MILLISECONDS);
     }
 
     public static void addProgressListener(Consumer<String> listener) {
@@ -73,68 +181,259 @@ public class IndexingService {
     }
 
     /**
-     * Builds or rebuilds the entire Lucene index from the FEN positions in the database
+     * Builds or rebuilds the entire Lucene index from the FEN positions in the database.
+     * The new index is written aside into a fresh directory while searches keep using the live one, verified,
+     * and then published atomically; the old index is kept for {@link #rollbackIndex()}.
      */
     public void buildIndex() {
+        if (!rebuildRunning.compareAndSet(false, true)) {
+            log.warn("Index rebuild requested while another rebuild is running, ignoring");
+            notifyProgress("An index rebuild is already running");
+            return;
+        }
+        try {
+            rebuildAside();
+        } finally {
+            rebuildRunning.set(false);
+        }
+    }
+
+    private void rebuildAside() {
         log.info("Starting Lucene index build process...");
         long startTime = System.currentTimeMillis();
-        long totalDocumentsIndexed = 0;
-        long totalDocumentsSkipped = 0;
-        long totalGamesProcessed = 0;
 
-        clearIndex();
+        LuceneIndexManager.IndexGeneration generation;
+        try {
+            generation = indexManager.createGeneration();
+        } catch (IOException e) {
+            log.error("Could not create a new index directory", e);
+            notifyProgress("Error: " + e.getMessage());
+            return;
+        }
+        rebuildChanges = new RebuildChanges();
+        boolean published = false;
+        try {
+            List<Integer> allGameIds = chessGameRepository.findAllGameIds();
+            log.info("Found {} games to potentially index.", allGameIds.size());
+            notifyProgress("Found " + allGameIds.size() + " games to index");
 
-        List<Integer> allGameIds = chessGameRepository.findAllGameIds();
-        log.info("Found {} games to potentially index.", allGameIds.size());
-        notifyProgress("Found " + allGameIds.size() + " games to index");
+            IndexWriter writer = generation.getIndexWriter();
+            IndexingRun run = indexGames(writer, null, allGameIds.size(), true);
 
-        for (Integer gameId : allGameIds) {
-            long indexedInGame = 0;
-            long skippedInGame = 0;
-            log.debug("Processing game ID: {}", gameId);
-            try {
-                List<FenPosition> positionsInGame = fenPositionRepository.getFensByGameId(gameId);
-
-                for (FenPosition fenPos : positionsInGame) {
-                    if (fenPos.getMoveNumber() > NUM_SKIP_MOVES) {
-                        try {
-                            indexSinglePosition(fenPos);
-                            indexedInGame++;
-                        } catch (IOException | IllegalArgumentException e) {
-                            log.error("Failed to index FEN ID {} (Game ID {}): {}", fenPos.getId(), gameId, e.getMessage());
-                        }
-                    } else {
-                        skippedInGame++;
-                    }
-                }
-                totalDocumentsIndexed += indexedInGame;
-                totalDocumentsSkipped += skippedInGame;
-                totalGamesProcessed++;
-                if (totalGamesProcessed % 100 == 0) {
-                    String progressMsg = String.format("Progress: Processed %d / %d games", totalGamesProcessed, allGameIds.size());
-                    log.info(progressMsg);
-                    notifyProgress(progressMsg);
-                }
+            log.info("Committing final changes to Lucene index...");
+            notifyProgress("Committing final changes to Lucene index...");
+            writer.commit();
+            String problem = verifyRebuild(writer, run);
+            if (problem != null) {
+                log.error("Rebuilt index '{}' rejected: {}", generation.getName(), problem);
+                notifyProgress("Error: " + problem + ", the live index is kept");
+                return;
+            }
 
-            } catch (Exception e) {
-                log.error("Failed to process positions for game ID {}: {}", gameId, e.getMessage(), e);
+            swapLock.writeLock().lock();
+            try {
+                replayRebuildChanges(writer, rebuildChanges);
+                writer.commit();
+                indexManager.publish(generation);
+                published = true;
+            } finally {
+                rebuildChanges = null;
+                swapLock.writeLock().unlock();
             }
-        }
 
-        try {
-            log.info("Committing final changes to Lucene index...");
-            notifyProgress("Committing final changes to Lucene index...");
-            indexWriter.commit();
             long endTime = System.currentTimeMillis();
-            String completionMsg = String.format("Lucene index build completed. Games processed: %d, documents indexed: %d, documents skipped: %d. Time: %d ms",
-                    totalGamesProcessed, totalDocumentsIndexed, totalDocumentsSkipped, (endTime - startTime));
+            String completionMsg = String.format("Lucene index build completed. Games processed: %d, games failed: %d, documents indexed: %d, occurrences of known positions: %d, documents failed: %d. Time: %d ms",
+                    run.gamesProcessed.get(), run.gamesFailed.sum(), run.documentsIndexed.sum(),
+                    run.occurrencesFolded.sum(), run.documentsFailed.sum(), (endTime - startTime));
             log.info(completionMsg);
             notifyProgress(completionMsg);
         } catch (IOException e) {
             log.error("Error committing Lucene index changes", e);
             notifyProgress("Error: " + e.getMessage());
-            try { indexWriter.rollback(); } catch (IOException rbEx) {
-                log.error("Couldn't roll back");
+        } finally {
+            rebuildChanges = null;
+            if (!published) {
+                indexManager.discard(generation);
+            }
+        }
+    }
+
+    /**
+     * @return why the rebuilt index must not be published, or null if it is complete
+     */
+    private String verifyRebuild(IndexWriter writer, IndexingRun run) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            return "rebuild was interrupted";
+        }
+        if (run.fetchFailed) {
+            return "reading positions from the database failed";
+        }
+        if (run.writeFailed) {
+            return "writing occurrence lists failed";
+        }
+        try (DirectoryReader reader = DirectoryReader.open(writer)) {
+            if (reader.numDocs() != run.documentsIndexed.sum()) {
+                return String.format("index holds %d documents but %d were indexed", reader.numDocs(), run.documentsIndexed.sum());
+            }
+        }
+        return null;
+    }
+
+    private void replayRebuildChanges(IndexWriter writer, RebuildChanges changes) throws IOException {
+        if (changes.cleared) {
+            log.info("Index was cleared during the rebuild, clearing the rebuilt index");
+            writer.deleteAll();
+        }
+        Set<Integer> removedGameIds = new HashSet<>(changes.deletedGameIds);
+        removedGameIds.addAll(changes.addedGameIds);
+        if (indexMode == IndexMode.DEDUPLICATED && !removedGameIds.isEmpty()) {
+            // before the deletes, it finds the positions through the game documents
+            DeduplicatedPositions.removeGames(writer, removedGameIds);
+        }
+        for (Integer gameId : removedGameIds) {
+            writer.deleteDocuments(new Term(FIELD_GAME_ID, String.valueOf(gameId)));
+        }
+        List<Integer> addedGameIds = new ArrayList<>();
+        for (Integer gameId : changes.addedGameIds) {
+            if (!changes.deletedGameIds.contains(gameId)) {
+                addedGameIds.add(gameId);
+            }
+        }
+        if (!addedGameIds.isEmpty()) {
+            log.info("Replaying {} games added during the rebuild", addedGameIds.size());
+            indexGames(writer, addedGameIds, addedGameIds.size(), false);
+        }
+    }
+
+    /**
+     * Switches back to the index that was live before the last rebuild
+     * @return false if no previous index is available
+     * @throws IOException if the switch fails
+     */
+    public boolean rollbackIndex() throws IOException {
+        swapLock.writeLock().lock();
+        try {
+            return indexManager.rollback();
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes the given games with a fetch -> encode + addDocument pipeline.
+     * The calling thread streams the positions in (game_id, move_number) order, groups them per game and hands each
+     * game over a bounded queue to rebuildThreads workers. A game is the unit of work, so its positions are still
+     * encoded in order by one {@link GameTermEncoder}; workers call addDocument concurrently on the shared IndexWriter.
+     * Plies up to NUM_SKIP_MOVES are filtered out in SQL.
+     * @param writer writer of the index to add the documents to
+     * @param gameIds games to index, or null for every game in the database
+     * @param totalGames number of games, for progress messages
+     * @param reportProgress whether to notify the progress listeners every 100 games
+     * @return counters of the run
+     */
+    private IndexingRun indexGames(IndexWriter writer, List<Integer> gameIds, int totalGames, boolean reportProgress) {
+        IndexingRun run = new IndexingRun(writer, totalGames);
+        if (indexMode == IndexMode.DEDUPLICATED) {
+            try {
+                run.deduplication = new DeduplicatedPositions.Run(writer, dedupMaxBufferedPositions);
+            } catch (IOException e) {
+                log.error("Could not open the index for position lookups: {}", e.getMessage(), e);
+                run.writeFailed = true;
+                return run;
+            }
+        }
+        int workerCount = Math.max(1, Math.min(rebuildThreads, totalGames));
+        BlockingQueue<GamePositions> queue = new ArrayBlockingQueue<>(rebuildQueueCapacity);
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount,
+                runnable -> new Thread(runnable, "index-worker-" + threadNumber.incrementAndGet()));
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(() -> indexQueuedGames(queue, run, reportProgress));
+        }
+
+        try {
+            GameBatcher batcher = new GameBatcher(queue);
+            try {
+                fenPositionRepository.streamPositionsForIndexing(gameIds, NUM_SKIP_MOVES, batcher);
+                batcher.flush();
+            } catch (RuntimeException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                log.error("Failed to stream positions for indexing: {}", e.getMessage(), e);
+                run.fetchFailed = true;
+            }
+            for (int i = 0; i < workerCount; i++) {
+                queue.put(GamePositions.END);
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.info("Waiting for index workers, {} / {} games processed", run.gamesProcessed.get(), run.totalGames);
+            }
+        } catch (InterruptedException e) {
+            log.warn("Indexing interrupted after {} / {} games", run.gamesProcessed.get(), run.totalGames);
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        if (run.deduplication != null) {
+            try (DeduplicatedPositions.Run deduplication = run.deduplication) {
+                deduplication.flush();
+                if (deduplication.getChunksFlushed() > 0) {
+                    log.info("Occurrence lists were flushed in {} chunks of {} positions", deduplication.getChunksFlushed() + 1, dedupMaxBufferedPositions);
+                }
+            } catch (IOException e) {
+                log.error("Failed to write position occurrence lists: {}", e.getMessage(), e);
+                run.writeFailed = true;
+            }
+        }
+        return run;
+    }
+
+    private void indexQueuedGames(BlockingQueue<GamePositions> queue, IndexingRun run, boolean reportProgress) {
+        try {
+            GamePositions game;
+            while ((game = queue.take()) != GamePositions.END) {
+                try {
+                    indexGamePositions(game, run);
+                } catch (Exception e) {
+                    log.error("Failed to process positions for game ID {}: {}", game.gameId, e.getMessage(), e);
+                    run.gamesFailed.increment();
+                }
+                run.gameFinished(reportProgress);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void indexGamePositions(GamePositions game, IndexingRun run) {
+        GameTermEncoder gameEncoder = positionEncoder.newGameEncoder();
+        Set<Long> positionKeys = run.deduplication != null ? new HashSet<>() : null;
+        for (FenPosition fenPos : game.positions) {
+            try {
+                if (run.deduplication == null) {
+                    indexPosition(run.writer, fenPos, gameEncoder);
+                } else {
+                    long key = positionEncoder.positionKey(fenPos.getFen());
+                    positionKeys.add(key);
+                    if (!indexDeduplicatedPosition(run, key, fenPos, gameEncoder)) {
+                        run.occurrencesFolded.increment();
+                        continue;
+                    }
+                }
+                run.documentsIndexed.increment();
+            } catch (IOException | IllegalArgumentException e) {
+                log.error("Failed to index FEN ID {} (Game ID {}): {}", fenPos.getId(), game.gameId, e.getMessage());
+                run.documentsFailed.increment();
+            }
+        }
+        if (positionKeys != null && !positionKeys.isEmpty()) {
+            try {
+                run.writer.addDocument(DeduplicatedPositions.gameDocument(game.gameId, positionKeys));
+                run.documentsIndexed.increment();
+            } catch (IOException e) {
+                log.error("Failed to index the game document of game ID {}: {}", game.gameId, e.getMessage());
+                run.documentsFailed.increment();
             }
         }
     }
@@ -144,12 +443,22 @@ public class IndexingService {
      */
     public void clearIndex() {
         log.warn("Attempting to delete all documents from the Lucene index...");
+        swapLock.readLock().lock();
         try {
+            RebuildChanges changes = rebuildChanges;
+            if (changes != null) {
+                changes.cleared = true;
+            }
+            IndexWriter indexWriter = indexManager.getIndexWriter();
             indexWriter.deleteAll();
-            indexWriter.commit();
+            indexManager.waitForGeneration(indexWriter.commit());
             log.info("Lucene index cleared successfully.");
         } catch (IOException e) {
             log.error("Error clearing Lucene index", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            swapLock.readLock().unlock();
         }
     }
 
@@ -161,19 +470,142 @@ public class IndexingService {
      * @throws IllegalArgumentException if FEN is invalid
      */
     public void indexSinglePosition(FenPosition fenPos) throws IOException, IllegalArgumentException {
-        List<String> terms = positionEncoder.transformFenToDocument(fenPos.getFen());
-        String termsString = String.join(" ", terms);
+        TermCodeTokenStream termStream = termStreams.get();
+        positionEncoder.encodeFen(fenPos.getFen(), termStream.getBuffer());
+        addPositionDocument(indexManager.getIndexWriter(), fenPos, termStream);
+    }
+
+    /**
+     * Indexes the next position of a game, reusing the terms of the game's previous position
+     * @param fenPos The FenPosition object from the database
+     * @param gameEncoder encoder of the game the position belongs to
+     * @throws IOException if Lucene fails to add the document
+     * @throws IllegalArgumentException if FEN is invalid
+     */
+    public void indexSinglePosition(FenPosition fenPos, GameTermEncoder gameEncoder) throws IOException, IllegalArgumentException {
+        indexPosition(indexManager.getIndexWriter(), fenPos, gameEncoder);
+    }
 
+    private void indexPosition(IndexWriter writer, FenPosition fenPos, GameTermEncoder gameEncoder) throws IOException {
+        TermCodeTokenStream termStream = termStreams.get();
+        gameEncoder.encodeNext(fenPos.getFen(), termStream.getBuffer());
+        addPositionDocument(writer, fenPos, termStream);
+    }
+
+    /**
+     * Records the position's occurrence and adds its document if the position is new to the index.
+     * Known positions are not encoded at all; the game encoder simply diffs against an older position next time.
+     * @return true if a document was added
+     */
+    private boolean indexDeduplicatedPosition(IndexingRun run, long key, FenPosition fenPos, GameTermEncoder gameEncoder) throws IOException {
+        return run.deduplication.addOccurrence(key, fenPos.getGameId(), fenPos.getMoveNumber(),
+                occurrences -> addDeduplicatedDocument(run.writer, key, fenPos, gameEncoder, occurrences));
+    }
+
+    private void addDeduplicatedDocument(IndexWriter writer, long key, FenPosition fenPos, GameTermEncoder gameEncoder,
+                                         BytesRef occurrences) throws IOException {
+        TermCodeTokenStream termStream = termStreams.get();
+        gameEncoder.encodeNext(fenPos.getFen(), termStream.getBuffer());
+
+        Document doc = new Document();
+        doc.add(new TextField(FIELD_TERMS, termStream));
+        addReachableFeatures(doc, termStream.getBuffer());
+        doc.add(new BinaryDocValuesField(FIELD_SIGNATURE, TermSignature.encode(termStream.getBuffer())));
+        addPositionVector(doc, termStream.getBuffer());
+
+        doc.add(new StringField(FIELD_POSITION_KEY, Long.toString(key), Field.Store.NO));
+        doc.add(new NumericDocValuesField(FIELD_POSITION_KEY, key));
+        doc.add(new BinaryDocValuesField(FIELD_OCCURRENCES, occurrences));
+        doc.add(new StoredField(FIELD_FEN_STRING, fenPos.getFen()));
+
+        writer.addDocument(doc);
+    }
+
+    private void addPositionDocument(IndexWriter writer, FenPosition fenPos, TermCodeTokenStream termStream) throws IOException {
         Document doc = new Document();
-        doc.add(new TextField(FIELD_TERMS, termsString, Field.Store.NO));
+        doc.add(new TextField(FIELD_TERMS, termStream));
+        addReachableFeatures(doc, termStream.getBuffer());
+        doc.add(new BinaryDocValuesField(FIELD_SIGNATURE, TermSignature.encode(termStream.getBuffer())));
+        addPositionVector(doc, termStream.getBuffer());
 
         doc.add(new StoredField(FIELD_FEN_ID, String.valueOf(fenPos.getId())));
-        doc.add(new StoredField(FIELD_GAME_ID, String.valueOf(fenPos.getGameId())));
+        doc.add(new StringField(FIELD_GAME_ID, String.valueOf(fenPos.getGameId()), Field.Store.YES));
+        doc.add(new NumericDocValuesField(FIELD_GAME_ID, fenPos.getGameId()));
+        long positionKey = fenPos.getPositionHash() != null ? fenPos.getPositionHash() : positionEncoder.positionKey(fenPos.getFen());
+        doc.add(new StringField(FIELD_POSITION_KEY, Long.toString(positionKey), Field.Store.NO));
         doc.add(new StoredField(FIELD_MOVE_NUMBER, fenPos.getMoveNumber()));
+        doc.add(new NumericDocValuesField(FIELD_MOVE_NUMBER, fenPos.getMoveNumber()));
         doc.add(new StoredField(FIELD_FEN_STRING, fenPos.getFen()));
+        if (fenPos.getGame() != null) {
+            addGameMetadata(doc, fenPos.getGame());
+        }
+
+        writer.addDocument(doc);
+
+    }
+
+    /**
+     * Adds the filterable metadata of the position's game; missing values get no field, so they never match a filter
+     * @param doc document being built
+     * @param game metadata of the game
+     */
+    private void addGameMetadata(Document doc, ChessGame game) {
+        if (game.getWhiteElo() != null) {
+            doc.add(new IntPoint(FIELD_WHITE_ELO, game.getWhiteElo()));
+            doc.add(new NumericDocValuesField(FIELD_WHITE_ELO, game.getWhiteElo()));
+        }
+        if (game.getBlackElo() != null) {
+            doc.add(new IntPoint(FIELD_BLACK_ELO, game.getBlackElo()));
+            doc.add(new NumericDocValuesField(FIELD_BLACK_ELO, game.getBlackElo()));
+        }
+        if (game.getDate() != null) {
+            long epochDay = game.getDate().toEpochDay();
+            doc.add(new LongPoint(FIELD_DATE, epochDay));
+            doc.add(new NumericDocValuesField(FIELD_DATE, epochDay));
+        }
+        if (game.getResult() != null && !game.getResult().isBlank()) {
+            doc.add(new StringField(FIELD_RESULT, game.getResult().trim(), Field.Store.NO));
+        }
+        if (game.getEco() != null && !game.getEco().isBlank()) {
+            doc.add(new StringField(FIELD_ECO, game.getEco().trim().toUpperCase(), Field.Store.NO));
+        }
+    }
 
-        indexWriter.addDocument(doc);
+    /**
+     * Adds the position vector when KNN indexing is enabled; the dot product equals the cosine of the unit vectors
+     * @param doc document being built
+     * @param buffer term codes of the position
+     */
+    private void addPositionVector(Document doc, TermBuffer buffer) {
+        if (indexVectors) {
+            doc.add(new KnnFloatVectorField(FIELD_VECTOR, PositionVector.encode(buffer), VectorSimilarityFunction.DOT_PRODUCT));
+        }
+    }
 
+    /**
+     * Adds one FeatureField per reachable piece + square, keeping the highest weight when several moves reach it
+     * @param doc document being built
+     * @param buffer term codes of the position
+     */
+    private void addReachableFeatures(Document doc, TermBuffer buffer) {
+        float[] weights = reachableWeights.get();
+        for (int i = 0; i < buffer.size(); i++) {
+            int code = buffer.get(i);
+            if (TermCodes.family(code) == TermCodes.FAMILY_REACHABLE) {
+                int key = TermCodes.featureKey(code);
+                weights[key] = Math.max(weights[key], TermCodes.reachableWeight(code));
+            }
+        }
+        for (int i = 0; i < buffer.size(); i++) {
+            int code = buffer.get(i);
+            if (TermCodes.family(code) == TermCodes.FAMILY_REACHABLE) {
+                int key = TermCodes.featureKey(code);
+                if (weights[key] > 0) {
+                    doc.add(new FeatureField(FIELD_REACHABLE, TermCodes.featureName(key), weights[key]));
+                    weights[key] = 0;
+                }
+            }
+        }
     }
 
     public void indexNewGames(List<Integer> newGameIds) {
@@ -183,41 +615,49 @@ public class IndexingService {
         }
         log.info("Starting to index {} new games", newGameIds.size());
         long startTime = System.currentTimeMillis();
-        long documentsIndexed = 0;
-        long documentsSkipped = 0;
 
-        for (Integer gameId : newGameIds) {
-            log.debug("Indexing new game ID: {}", gameId);
+        swapLock.readLock().lock();
+        try {
+            RebuildChanges changes = rebuildChanges;
+            if (changes != null) {
+                changes.addedGameIds.addAll(newGameIds);
+            }
+            // per-ply documents are only added, there are no occurrence lists to keep consistent with deletes
+            boolean deduplicated = indexMode == IndexMode.DEDUPLICATED;
+            if (deduplicated) {
+                occurrenceLock.lock();
+            }
             try {
-                List<FenPosition> positionsInGame = fenPositionRepository.getFensByGameId(gameId);
-                for (FenPosition fenPos:positionsInGame) {
-                    if (fenPos.getMoveNumber()>NUM_SKIP_MOVES) {
-                        try {
-                            indexSinglePosition(fenPos);
-                            documentsIndexed++;
-                        } catch (IOException | IllegalArgumentException e) {
-                            log.error("Failed to index FEN ID {} (New Game ID {}): {}", fenPos.getId(), gameId, e.getMessage());
-                        }
-                    } else {
-                        documentsSkipped++;
-                    }
+                indexNewGames(indexManager.getIndexWriter(), newGameIds, startTime);
+            } finally {
+                if (deduplicated) {
+                    occurrenceLock.unlock();
                 }
-            } catch (Exception e) {
-                log.error("Failed to process positions for new game ID {}: {}", gameId, e.getMessage(), e);
             }
+        } finally {
+            swapLock.readLock().unlock();
         }
+    }
 
-        if (documentsIndexed > 0) {
+    private void indexNewGames(IndexWriter indexWriter, List<Integer> newGameIds, long startTime) {
+        IndexingRun run = indexGames(indexWriter, newGameIds, newGameIds.size(), false);
+        long documentsIndexed = run.documentsIndexed.sum();
+
+        if (documentsIndexed > 0 || run.occurrencesFolded.sum() > 0) {
             try {
-                indexWriter.commit();
+                long sequenceNumber = indexWriter.commit();
+                indexManager.waitForGeneration(sequenceNumber);
                 long endTime = System.currentTimeMillis();
-                log.info("Successfully indexed {} new games ({} documents added, {} skipped). Time: {} ms",
-                        newGameIds.size(), documentsIndexed, documentsSkipped, (endTime - startTime));
+                log.info("Successfully indexed {} new games ({} documents added, {} occurrences of known positions, {} failed). Time: {} ms",
+                        newGameIds.size(), documentsIndexed, run.occurrencesFolded.sum(), run.documentsFailed.sum(), (endTime - startTime));
             } catch (IOException e) {
                 log.error("Error committing updated index after adding new games", e);
                 try { indexWriter.rollback(); }
                 catch (IOException rbEx)
                 { log.error("Rollback failed after indexNewGames error", rbEx);}
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while waiting for new games to become searchable");
+                Thread.currentThread().interrupt();
             }
         } else {
             log.info("No new documents for indexing from the provided game ids.");
@@ -225,45 +665,80 @@ public class IndexingService {
     }
 
     /**
-     * Deletes all positions for a specific game from the Lucene index
+     * Queues all positions of a game for deletion from the Lucene index. Deletes are applied in the background in
+     * batches with one commit each; deleted documents are reclaimed by the merge policy, not by forced merges.
      * @param gameId The ID of the game to delete from the index
      */
     public void deleteGameFromIndex(Integer gameId) {
-        log.info("Starting deletion of game ID {} from Lucene index", gameId);
-        try {
-            long docsBefore = indexWriter.getDocStats().numDocs;
-            log.info("Number of documents in index before deletion: {}", docsBefore);
-            Query query = new TermQuery(new Term(FIELD_GAME_ID, String.valueOf(gameId)));
-            long deletedCount = indexWriter.deleteDocuments(query);
-            log.info("Number of documents marked for deletion: {}", deletedCount);
-            indexWriter.commit();
-            log.info("Changes committed to index");
-            log.info("Starting index merge...");
-            indexWriter.forceMerge(1, true);
-            indexWriter.commit();
-            log.info("Index merge completed");
-            searcherManager.maybeRefresh();
-            log.info("Searcher refreshed");
-            
-            long docsAfter = indexWriter.getDocStats().numDocs;
-            log.info("Number of documents in index after deletion: {}", docsAfter);
-            log.info("Total documents removed: {}", docsBefore - docsAfter);
-            
-            if (docsBefore == docsAfter) {
-                log.warn("No documents were removed despite marking {} for deletion. This might indicate an issue with the index.", deletedCount);
-            }
-            
-            log.info("Successfully deleted game ID {} from index", gameId);
-        } catch (IOException e) {
-            log.error("Error deleting game ID {} from index: {}", gameId, e.getMessage(), e);
+        log.info("Queueing deletion of game ID {} from Lucene index", gameId);
+        pendingDeletes.add(gameId);
+    }
+
+    /**
+     * Queues all positions of several games for deletion from the Lucene index
+     * @param gameIds IDs of the games to delete from the index
+     */
+    public void deleteGamesFromIndex(Collection<Integer> gameIds) {
+        log.info("Queueing deletion of {} games from Lucene index", gameIds.size());
+        pendingDeletes.addAll(gameIds);
+    }
+
+    /**
+     * Applies queued deletes, at most deleteBatchSize games per commit, until the queue is empty
+     */
+    void applyPendingDeletes() {
+        List<Integer> batch = new ArrayList<>();
+        while (pendingDeletes.drainTo(batch, deleteBatchSize) > 0) {
+            swapLock.readLock().lock();
             try {
-                indexWriter.rollback();
-                log.info("Rolled back changes after error");
-            } catch (IOException rbEx) {
-                log.error("Failed to rollback after index deletion error", rbEx);
+                RebuildChanges changes = rebuildChanges;
+                if (changes != null) {
+                    changes.deletedGameIds.addAll(batch);
+                }
+                Term[] terms = new Term[batch.size()];
+                for (int i = 0; i < terms.length; i++) {
+                    terms[i] = new Term(FIELD_GAME_ID, String.valueOf(batch.get(i)));
+                }
+                IndexWriter indexWriter = indexManager.getIndexWriter();
+                if (indexMode == IndexMode.DEDUPLICATED) {
+                    occurrenceLock.lock();
+                    try {
+                        // before the deletes, it finds the positions through the game documents
+                        DeduplicatedPositions.removeGames(indexWriter, new HashSet<>(batch));
+                    } finally {
+                        occurrenceLock.unlock();
+                    }
+                }
+                indexWriter.deleteDocuments(terms);
+                indexManager.waitForGeneration(indexWriter.commit());
+                deleteBatches.increment();
+                gamesDeleted.add(batch.size());
+                log.info("Deleted {} games from index in one commit", batch.size());
+            } catch (IOException | RuntimeException e) {
+                log.error("Error deleting {} games from index, will retry: {}", batch.size(), e.getMessage(), e);
+                pendingDeletes.addAll(batch);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                swapLock.readLock().unlock();
+            }
+            batch.clear();
+        }
+    }
+
+    @PreDestroy
+    public void stopDeleteWorker() {
+        deleteExecutor.shutdown();
+        try {
+            if (!deleteExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Delete worker did not stop in time");
             }
-            throw new RuntimeException("Failed to delete game from index", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        applyPendingDeletes();
     }
 
     /**
@@ -273,11 +748,21 @@ public class IndexingService {
     public Map<String, Object> getIndexStats() throws IOException {
         Map<String, Object> stats = new HashMap<>();
         try {
-            long numDocs = indexWriter.getDocStats().numDocs;
+            long numDocs = indexManager.getIndexWriter().getDocStats().numDocs;
             stats.put("totalDocuments", numDocs);
+            stats.put("liveIndex", indexManager.getLiveIndexName());
+            stats.put("indexMode", indexMode);
+            stats.put("rebuildRunning", rebuildRunning.get());
+            stats.put("pendingDeletes", pendingDeletes.size());
+            stats.put("deleteBatches", deleteBatches.sum());
+            stats.put("gamesDeleted", gamesDeleted.sum());
             
             List<Integer> allGameIds = chessGameRepository.findAllGameIds();
             stats.put("totalGames", allGameIds.size());
+
+            if (positionEncoder.getCache() != null) {
+                stats.put("encodingCache", positionEncoder.getCache().getStats());
+            }
             
             return stats;
         } catch (Exception e) {
@@ -285,4 +770,94 @@ public class IndexingService {
             throw new IOException("Failed to get index statistics", e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Positions of one game travelling from the fetch stage to the index workers
+     */
+    private static final class GamePositions {
+        static final GamePositions END = new GamePositions(-1, List.of());
+
+        final int gameId;
+        final List<FenPosition> positions;
+
+        GamePositions(int gameId, List<FenPosition> positions) {
+            this.gameId = gameId;
+            this.positions = positions;
+        }
+    }
+
+    /**
+     * Groups the streamed positions into games and queues each game once its last position was read
+     */
+    private static final class GameBatcher implements Consumer<FenPosition> {
+        private final BlockingQueue<GamePositions> queue;
+        private List<FenPosition> positions = new ArrayList<>();
+        private int gameId = -1;
+
+        GameBatcher(BlockingQueue<GamePositions> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void accept(FenPosition fenPos) {
+            if (fenPos.getGameId() != gameId) {
+                flush();
+                gameId = fenPos.getGameId();
+            }
+            positions.add(fenPos);
+        }
+
+        void flush() {
+            if (positions.isEmpty()) {
+                return;
+            }
+            try {
+                queue.put(new GamePositions(gameId, positions));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while queueing game " + gameId, e);
+            }
+            positions = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Live index changes made while a rebuild runs
+     */
+    private static final class RebuildChanges {
+        final Set<Integer> addedGameIds = ConcurrentHashMap.newKeySet();
+        final Set<Integer> deletedGameIds = ConcurrentHashMap.newKeySet();
+        volatile boolean cleared;
+    }
+
+    /**
+     * Counters of one indexing run, updated concurrently by the fetch stage and the workers
+     */
+    private final class IndexingRun {
+        final IndexWriter writer;
+        final int totalGames;
+        final AtomicLong gamesProcessed = new AtomicLong();
+        final LongAdder gamesFailed = new LongAdder();
+        final LongAdder documentsIndexed = new LongAdder();
+        final LongAdder documentsFailed = new LongAdder();
+        /** deduplicated mode: plies whose position already had a document */
+        final LongAdder occurrencesFolded = new LongAdder();
+        volatile boolean fetchFailed;
+        volatile boolean writeFailed;
+        DeduplicatedPositions.Run deduplication;
+
+        IndexingRun(IndexWriter writer, int totalGames) {
+            this.writer = writer;
+            this.totalGames = totalGames;
+        }
+
+        void gameFinished(boolean reportProgress) {
+            long processed = gamesProcessed.incrementAndGet();
+            if (reportProgress && processed % 100 == 0) {
+                String progressMsg = String.format("Progress: Processed %d / %d games", processed, totalGames);
+                log.info(progressMsg);
+                notifyProgress(progressMsg);
+            }
+        }
+    }
+}
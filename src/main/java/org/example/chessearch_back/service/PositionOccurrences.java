@@ -0,0 +1,97 @@
+package org.example.chessearch_back.service;
+
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * (game_id, move_number) occurrences of one position in the deduplicated index, stored as a binary DocValue.
+ * Encoded sorted by game and move: per occurrence a vint game id delta and a vint move number.
+ */
+final class PositionOccurrences {
+
+    /** game ids at even, move numbers at odd indexes */
+    private int[] pairs;
+    private int size;
+
+    PositionOccurrences() {
+        this.pairs = new int[4];
+    }
+
+    synchronized void add(int gameId, int moveNumber) {
+        if (2 * size + 2 > pairs.length) {
+            pairs = Arrays.copyOf(pairs, pairs.length * 2);
+        }
+        pairs[2 * size] = gameId;
+        pairs[2 * size + 1] = moveNumber;
+        size++;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized int gameId(int index) {
+        return pairs[2 * index];
+    }
+
+    synchronized int moveNumber(int index) {
+        return pairs[2 * index + 1];
+    }
+
+    /**
+     * @return true if any occurrence of the given games was removed
+     */
+    synchronized boolean removeGames(Set<Integer> gameIds) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!gameIds.contains(pairs[2 * i])) {
+                pairs[2 * kept] = pairs[2 * i];
+                pairs[2 * kept + 1] = pairs[2 * i + 1];
+                kept++;
+            }
+        }
+        boolean removed = kept != size;
+        size = kept;
+        return removed;
+    }
+
+    synchronized BytesRef toBytesRef() {
+        sort();
+        byte[] bytes = new byte[size * 10];
+        ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+        int previousGameId = 0;
+        for (int i = 0; i < size; i++) {
+            out.writeVInt(pairs[2 * i] - previousGameId);
+            out.writeVInt(pairs[2 * i + 1]);
+            previousGameId = pairs[2 * i];
+        }
+        return new BytesRef(bytes, 0, out.getPosition());
+    }
+
+    static PositionOccurrences fromBytesRef(BytesRef bytes) {
+        PositionOccurrences occurrences = new PositionOccurrences();
+        ByteArrayDataInput in = new ByteArrayDataInput(bytes.bytes, bytes.offset, bytes.length);
+        int gameId = 0;
+        while (!in.eof()) {
+            gameId += in.readVInt();
+            occurrences.add(gameId, in.readVInt());
+        }
+        return occurrences;
+    }
+
+    private void sort() {
+        long[] packed = new long[size];
+        for (int i = 0; i < size; i++) {
+            packed[i] = ((long) pairs[2 * i] << 32) | (pairs[2 * i + 1] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(packed);
+        for (int i = 0; i < size; i++) {
+            pairs[2 * i] = (int) (packed[i] >>> 32);
+            pairs[2 * i + 1] = (int) packed[i];
+        }
+    }
+}
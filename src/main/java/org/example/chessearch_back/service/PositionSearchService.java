@@ -1,44 +1,173 @@
 package org.example.chessearch_back.service;
 
+import org.example.chessearch_back.config.ChessSimilarity;
+import org.example.chessearch_back.config.LuceneIndexManager;
+import org.example.chessearch_back.dto.BatchSearchResultDto;
+import org.example.chessearch_back.dto.SearchFilter;
+import org.example.chessearch_back.dto.SearchPageDto;
+import org.example.chessearch_back.dto.SearchResponseDto;
 import org.example.chessearch_back.dto.SearchResultDto;
+import org.example.chessearch_back.model.FenPosition;
 import org.example.chessearch_back.parser.PositionEncoder;
-import org.apache.lucene.index.IndexableField;
-import org.apache.lucene.document.Document;
+import org.example.chessearch_back.parser.PositionVector;
+import org.example.chessearch_back.parser.TermBuffer;
+import org.example.chessearch_back.parser.TermCodes;
+import org.example.chessearch_back.repository.FenPositionRepository;
+import org.apache.lucene.document.FeatureField;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import jakarta.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 @Service
 public class PositionSearchService {
 
     private static final Logger log = LoggerFactory.getLogger(PositionSearchService.class);
 
-    private final SearcherManager searcherManager;
+    private final LuceneIndexManager indexManager;
     private final PositionEncoder positionEncoder;
+    private final FenPositionRepository fenPositionRepository;
+    private final SearchResultCache resultCache;
+    private final ChessSimilarity similarity;
+    private final SearchMode searchMode;
+    private final int totalHitsThreshold;
+    private final int twoPhaseCandidates;
+    private final double twoPhaseRareTermRatio;
+    /** nearest vectors retrieved per KNN search before they are collapsed per game */
+    private final int knnCandidates;
+    /** nearest vectors retrieved per requested game, as several vectors of one game collapse into one result */
+    private final int knnOversample;
+    /** longest a search may collect hits before it returns what it has, 0 for no limit */
+    private final long timeBudgetMs;
+    /** query terms matching more than this share of the documents are left out of similarity queries, 0 keeps all */
+    private final double pruneMaxDfRatio;
+    /** share of the similarity query clauses a document must match, 0 for any one */
+    private final double minShouldMatchRatio;
+    private final LongAdder prunedQueries = new LongAdder();
+    private final LongAdder prunedTerms = new LongAdder();
+    /** runs the queries of batch searches */
+    private final ExecutorService batchExecutor;
     public static final String FIELD_TERMS = IndexingService.FIELD_TERMS;
+    public static final String FIELD_REACHABLE = IndexingService.FIELD_REACHABLE;
     public static final String FIELD_FEN_ID = IndexingService.FIELD_FEN_ID;
     public static final String FIELD_GAME_ID = IndexingService.FIELD_GAME_ID;
     public static final String FIELD_MOVE_NUMBER = IndexingService.FIELD_MOVE_NUMBER;
     public static final String FIELD_FEN_STRING = IndexingService.FIELD_FEN_STRING;
+    public static final String FIELD_OCCURRENCES = IndexingService.FIELD_OCCURRENCES;
+    public static final String FIELD_POSITION_KEY = IndexingService.FIELD_POSITION_KEY;
+    public static final String FIELD_WHITE_ELO = IndexingService.FIELD_WHITE_ELO;
+    public static final String FIELD_BLACK_ELO = IndexingService.FIELD_BLACK_ELO;
+    public static final String FIELD_DATE = IndexingService.FIELD_DATE;
+    public static final String FIELD_RESULT = IndexingService.FIELD_RESULT;
+    public static final String FIELD_ECO = IndexingService.FIELD_ECO;
+    public static final String FIELD_VECTOR = IndexingService.FIELD_VECTOR;
+    /** deadline value of searches without a time budget */
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * FULL scores every query term through the postings, TWO_PHASE retrieves candidates with a selective subset
+     * and rescores them from the term signatures, see {@link TwoPhaseSearch}, KNN finds the nearest
+     * {@link PositionVector}s in the HNSW graph (indexing.knn.enabled). Paged and pattern searches always score in
+     * FULL mode.
+     */
+    public enum SearchMode {
+        FULL,
+        TWO_PHASE,
+        KNN
+    }
 
 
     @Autowired
-    public PositionSearchService(SearcherManager searcherManager,
-                                 PositionEncoder positionEncoder) {
-        this.searcherManager = searcherManager;
+    public PositionSearchService(LuceneIndexManager indexManager,
+                                 PositionEncoder positionEncoder,
+                                 FenPositionRepository fenPositionRepository,
+                                 SearchResultCache resultCache,
+                                 ChessSimilarity similarity,
+                                 @Value("${search.mode:FULL}") SearchMode searchMode,
+                                 @Value("${search.total-hits-threshold:1000}") int totalHitsThreshold,
+                                 @Value("${search.two-phase.candidates:1000}") int twoPhaseCandidates,
+                                 @Value("${search.two-phase.rare-term-ratio:0.01}") double twoPhaseRareTermRatio,
+                                 @Value("${search.batch.threads:0}") int batchThreads,
+                                 @Value("${search.time-budget-ms:2000}") long timeBudgetMs,
+                                 @Value("${search.prune.max-df-ratio:0}") double pruneMaxDfRatio,
+                                 @Value("${search.min-should-match-ratio:0}") double minShouldMatchRatio,
+                                 @Value("${search.knn.candidates:100}") int knnCandidates,
+                                 @Value("${search.knn.oversample:10}") int knnOversample) {
+        if (twoPhaseCandidates <= 0) {
+            throw new IllegalArgumentException("search.two-phase.candidates must be positive, got " + twoPhaseCandidates);
+        }
+        if (knnCandidates <= 0) {
+            throw new IllegalArgumentException("search.knn.candidates must be positive, got " + knnCandidates);
+        }
+        if (knnOversample <= 0) {
+            throw new IllegalArgumentException("search.knn.oversample must be positive, got " + knnOversample);
+        }
+        if (pruneMaxDfRatio < 0 || pruneMaxDfRatio > 1 || minShouldMatchRatio < 0 || minShouldMatchRatio > 1) {
+            throw new IllegalArgumentException("search.prune.max-df-ratio and search.min-should-match-ratio must be between 0 and 1, got "
+                    + pruneMaxDfRatio + " / " + minShouldMatchRatio);
+        }
+        this.indexManager = indexManager;
         this.positionEncoder = positionEncoder;
+        this.fenPositionRepository = fenPositionRepository;
+        this.resultCache = resultCache;
+        this.similarity = similarity;
+        this.searchMode = searchMode;
+        this.totalHitsThreshold = totalHitsThreshold;
+        this.twoPhaseCandidates = twoPhaseCandidates;
+        this.twoPhaseRareTermRatio = twoPhaseRareTermRatio;
+        this.knnCandidates = knnCandidates;
+        this.knnOversample = knnOversample;
+        this.timeBudgetMs = Math.max(0, timeBudgetMs);
+        this.pruneMaxDfRatio = pruneMaxDfRatio;
+        this.minShouldMatchRatio = minShouldMatchRatio;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.batchExecutor = Executors.newFixedThreadPool(batchThreads > 0 ? batchThreads : Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "search-batch-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 
+    /**
+     * Service that only builds queries, for tests and benchmarks: no index, database or result cache, the other
+     * settings at their defaults
+     * @param pruneMaxDfRatio search.prune.max-df-ratio, 0 to keep every term
+     * @param minShouldMatchRatio search.min-should-match-ratio, 0 for no minimum
+     */
+    static PositionSearchService forQueryBuilding(PositionEncoder positionEncoder, ChessSimilarity similarity,
+                                                  double pruneMaxDfRatio, double minShouldMatchRatio) {
+        return new PositionSearchService(null, positionEncoder, null, new SearchResultCache(0), similarity, SearchMode.FULL,
+                1000, 1000, 0.01, 1, 0, pruneMaxDfRatio, minShouldMatchRatio, 100, 10);
     }
 
     /**
@@ -48,97 +177,737 @@ public class PositionSearchService {
      * @return list of SearchResultDto representing most similar positions max 1 per game
      */
     public List<SearchResultDto> searchSimilar(String queryFen, int numResults) {
-        log.info("Starting search for FEN: {}", queryFen);
+        return searchSimilar(queryFen, numResults, null, null).getResults();
+    }
+
+    /**
+     * Searches the Lucene index for positions similar to the query FEN in games matching the filter
+     * @see #searchSimilar(String, int, SearchFilter, Long, boolean, SearchMode)
+     */
+    public SearchResponseDto searchSimilar(String queryFen, int numResults, SearchFilter filter, Long budgetMs) {
+        return searchSimilar(queryFen, numResults, filter, budgetMs, false, null);
+    }
+
+    /**
+     * Searches the Lucene index for positions similar to the query FEN in games matching the filter.
+     * The filter runs inside the query as non-scoring clauses, deduplicated documents carry no game metadata
+     * and never match a non-empty filter.
+     * Collection stops when the time budget runs out, the response then holds the best games found so far
+     * and is marked partial.
+     * A symmetric search also matches the color-flipped and file-mirrored versions of the position in the same
+     * query, see {@link #buildSymmetricQuery(String, BooleanQuery, IndexReader)}; it always scores the full query, also in TWO_PHASE mode.
+     * KNN mode retrieves the nearest position vectors among the filtered documents instead of scoring terms, see
+     * {@link #searchKnn}; it has no symmetric variant.
+     * @param queryFen FEN string of the query position
+     * @param numResults max number of unique games to return
+     * @param filter game metadata filter, or null
+     * @param budgetMs time budget of this search, or null for search.time-budget-ms; it can only lower a configured budget
+     * @param symmetric true to also search the color-flipped and mirrored positions
+     * @param mode retrieval engine of this search, or null for search.mode
+     * @return most similar positions max 1 per game, with the partial flag and elapsed time
+     */
+    public SearchResponseDto searchSimilar(String queryFen, int numResults, SearchFilter filter, Long budgetMs,
+                                           boolean symmetric, SearchMode mode) {
+        log.info("Starting {}search{} for FEN: {}{}", symmetric ? "symmetric " : "", mode != null ? " in " + mode + " mode" : "", queryFen,
+                filter != null && !filter.isEmpty() ? ", filter: " + filter : "");
+        long startNanos = System.nanoTime();
+        SearchResponseDto response = new SearchResponseDto(new ArrayList<>(), false, 0);
+
+        LuceneIndexManager.AcquiredSearcher acquired = null;
+        try {
+            acquired = indexManager.acquireSearcher();
+            IndexSearcher indexSearcher = acquired.getSearcher();
+            response = search(indexSearcher, queryFen, numResults, filter, symmetric, mode, startNanos, deadline(startNanos, budgetMs));
+        } catch (IOException e) {
+            log.error("Error acquiring or using IndexSearcher: {}", e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            log.error("Error processing query FEN '{}': {}", queryFen, e.getMessage(), e);
+        } catch (Exception e) {
+            log.error("An unexpected error occurred during search for FEN '{}': {}", queryFen, e.getMessage(), e);
+        } finally {
+            release(acquired);
+        }
+
+        response.setElapsedMs(elapsedMs(startNanos));
+        log.info("Search completed for FEN: {}. Found {} unique game results{} in {} ms.", queryFen,
+                response.getResults().size(), response.isPartial() ? " (partial)" : "", response.getElapsedMs());
+        return response;
+    }
+
+    /**
+     * Finds games that reach exactly the query position (placement, side to move, castling rights and a capturable
+     * en passant square) with one lookup of its Zobrist hash term, no similarity scoring
+     * @param queryFen FEN string of the position
+     * @param numResults max number of games to return
+     * @return first indexed occurrence per game, in index order
+     * @throws IllegalArgumentException if the FEN is invalid
+     */
+    public List<SearchResultDto> searchExact(String queryFen, int numResults) {
+        long positionKey = positionEncoder.positionKey(queryFen);
+        log.info("Starting exact search for FEN: {} (hash {})", queryFen, positionKey);
         List<SearchResultDto> finalResults = new ArrayList<>();
-        Set<Integer> includedGameIds = new HashSet<>();
 
-        IndexSearcher indexSearcher = null;
+        LuceneIndexManager.AcquiredSearcher acquired = null;
         try {
-            searcherManager.maybeRefresh();
-            indexSearcher = searcherManager.acquire();
-            IndexReader reader = indexSearcher.getIndexReader();
-            log.debug("Searching index with {} documents.", reader.numDocs());
+            acquired = indexManager.acquireSearcher();
+            IndexSearcher indexSearcher = acquired.getSearcher();
+            Query query = new ConstantScoreQuery(new TermQuery(new Term(FIELD_POSITION_KEY, Long.toString(positionKey))));
+            finalResults = toResults(indexSearcher, indexSearcher.search(query,
+                    new GameCollapsingCollector.Manager(numResults, totalHitsThreshold)));
+        } catch (IOException e) {
+            log.error("Error acquiring or using IndexSearcher: {}", e.getMessage(), e);
+        } finally {
+            release(acquired);
+        }
 
-            List<String> queryTerms = positionEncoder.transformFenToDocument(queryFen)
-                    .stream()
-                    .filter(term -> !term.contains("|"))
-                    .collect(Collectors.toList());
+        log.info("Exact search completed for FEN: {}. Found {} games.", queryFen, finalResults.size());
+        return finalResults;
+    }
 
-            if (queryTerms.isEmpty()) {
-                log.warn("Query FEN resulted in no searchable terms: {}", queryFen);
-                return finalResults;
-            }
-            log.debug("Query terms: {}", String.join(" ", queryTerms));
+    /**
+     * Finds games that reach exactly the query position through the fen_position.position_hash index,
+     * for rows that are not indexed in Lucene (yet)
+     * @param queryFen FEN string of the position
+     * @param numResults max number of games to return
+     * @return first occurrence per game, ordered by game id
+     * @throws IllegalArgumentException if the FEN is invalid
+     */
+    public List<SearchResultDto> searchExactInDatabase(String queryFen, int numResults) {
+        long positionKey = positionEncoder.positionKey(queryFen);
+        List<SearchResultDto> finalResults = new ArrayList<>();
+        for (FenPosition fenPos : fenPositionRepository.findByPositionHash(positionKey, numResults)) {
+            finalResults.add(new SearchResultDto(fenPos.getGameId(), fenPos.getMoveNumber(), fenPos.getFen()));
+        }
+        log.info("Exact database search completed for FEN: {}. Found {} games.", queryFen, finalResults.size());
+        return finalResults;
+    }
 
+    /**
+     * Searches several FENs against one acquired searcher, in parallel on the batch executor
+     * @param queryFens FEN strings of the query positions
+     * @param numResults max number of unique games per query
+     * @param filter game metadata filter applied to every query, or null
+     * @param budgetMs time budget of the whole batch, or null for search.time-budget-ms
+     * @return one result per FEN, in request order; every entry carries an error if the batch could not run
+     */
+    public List<BatchSearchResultDto> searchBatch(List<String> queryFens, int numResults, SearchFilter filter, Long budgetMs) {
+        BatchSearchResultDto[] results = new BatchSearchResultDto[queryFens.size()];
+        searchBatch(queryFens, numResults, filter, budgetMs, result -> results[result.getIndex()] = result);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                // claimed by a query that was still running when an interrupt ended the batch
+                results[i] = new BatchSearchResultDto(i, queryFens.get(i));
+                results[i].setError("The batch search was interrupted.");
+                results[i].setPartial(true);
+            }
+        }
+        return Arrays.asList(results);
+    }
 
-            BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
-            for (String term : queryTerms) {
-                queryBuilder.add(new TermQuery(new Term(FIELD_TERMS, term)), BooleanClause.Occur.SHOULD);
+    /**
+     * Searches several FENs against one acquired searcher, in parallel on the batch executor, handing each result
+     * to the consumer as soon as it is done. Returns once all queries finished.
+     * The time budget covers the whole batch: queries still collecting when it runs out return their best games so
+     * far, queries not started by then return none, both marked partial.
+     * If the searcher cannot be acquired or the batch is interrupted, every FEN without a result yet gets one with
+     * an error, also marked partial, so each FEN is handed over exactly once.
+     * @param queryFens FEN strings of the query positions
+     * @param numResults max number of unique games per query
+     * @param filter game metadata filter applied to every query, or null
+     * @param budgetMs time budget of the whole batch, or null for search.time-budget-ms
+     * @param onResult called from the batch threads, one call per FEN in completion order
+     * @throws RuntimeException thrown by onResult, the remaining queries are cancelled
+     */
+    public void searchBatch(List<String> queryFens, int numResults, SearchFilter filter, Long budgetMs,
+                            Consumer<BatchSearchResultDto> onResult) {
+        log.info("Starting batch search for {} FENs, limit {}", queryFens.size(), numResults);
+        long startTime = System.currentTimeMillis();
+        long deadlineNanos = deadline(System.nanoTime(), budgetMs);
+        LuceneIndexManager.AcquiredSearcher acquired = null;
+        List<Future<?>> futures = new ArrayList<>(queryFens.size());
+        Set<Integer> delivered = ConcurrentHashMap.newKeySet();
+        String failure = null;
+        try {
+            acquired = indexManager.acquireSearcher();
+            IndexSearcher batchSearcher = acquired.getSearcher();
+            for (int i = 0; i < queryFens.size(); i++) {
+                int index = i;
+                String queryFen = queryFens.get(i);
+                futures.add(batchExecutor.submit(() -> deliver(delivered, onResult,
+                        searchBatchEntry(batchSearcher, index, queryFen, numResults, filter, deadlineNanos))));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // searches report their own errors, only the consumer can fail here (e.g. the client went away)
+                    log.warn("Batch search consumer failed, cancelling the remaining queries: {}", e.getCause().getMessage());
+                    futures.forEach(pending -> pending.cancel(true));
+                    if (e.getCause() instanceof RuntimeException runtimeException) {
+                        throw runtimeException;
+                    }
+                    throw new IllegalStateException(e.getCause());
+                } catch (CancellationException e) {
+                    // cancelled after an earlier consumer failure
+                }
+            }
+        } catch (IOException | AlreadyClosedException e) {
+            log.error("Error acquiring IndexSearcher for batch search: {}", e.getMessage(), e);
+            failure = "The index is not available, try again later.";
+        } catch (InterruptedException e) {
+            log.warn("Batch search interrupted, cancelling {} queries", futures.size());
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            failure = "The batch search was interrupted.";
+        } finally {
+            release(acquired);
+        }
+        if (failure != null) {
+            for (int i = 0; i < queryFens.size(); i++) {
+                BatchSearchResultDto failed = new BatchSearchResultDto(i, queryFens.get(i));
+                failed.setError(failure);
+                failed.setPartial(true);
+                deliver(delivered, onResult, failed);
             }
-            BooleanQuery query = queryBuilder.build();
-            log.debug("Executing Lucene query: {}", query.toString(FIELD_TERMS));
+        }
+        log.info("Batch search for {} FENs completed in {} ms", queryFens.size(), System.currentTimeMillis() - startTime);
+    }
 
+    /**
+     * Hands a result to the consumer unless its FEN already got one
+     */
+    private static void deliver(Set<Integer> delivered, Consumer<BatchSearchResultDto> onResult, BatchSearchResultDto result) {
+        if (delivered.add(result.getIndex())) {
+            onResult.accept(result);
+        }
+    }
 
-            int initialFetchSize = numResults * 5;
-            TopDocs topDocs = indexSearcher.search(query, initialFetchSize);
-            log.info("Query yielded {} total hits.", topDocs.totalHits.value);
+    private BatchSearchResultDto searchBatchEntry(IndexSearcher indexSearcher, int index, String queryFen, int numResults,
+                                                  SearchFilter filter, long deadlineNanos) {
+        BatchSearchResultDto result = new BatchSearchResultDto(index, queryFen);
+        long startNanos = System.nanoTime();
+        try {
+            SearchResponseDto response = search(indexSearcher, queryFen, numResults, filter, false, null, startNanos, deadlineNanos);
+            result.setResults(response.getResults());
+            result.setPartial(response.isPartial());
+            result.setElapsedMs(response.getElapsedMs());
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid FEN in batch search at index {}: '{}' - {}", index, queryFen, e.getMessage());
+            result.setError("Invalid FEN format: " + e.getMessage());
+        } catch (Exception e) {
+            log.error("Error in batch search at index {} for FEN '{}': {}", index, queryFen, e.getMessage(), e);
+            result.setError("An internal error occurred during search.");
+        }
+        return result;
+    }
 
+    /**
+     * Runs one query on an acquired searcher, served from the result cache when possible; partial results are not cached
+     * @param symmetric true to also match the color-flipped and mirrored positions
+     * @param mode retrieval engine, or null for search.mode
+     * @param startNanos System.nanoTime() when the request started
+     * @param deadlineNanos System.nanoTime() at which collection stops, or NO_DEADLINE
+     * @throws IllegalArgumentException if the FEN is invalid, or a symmetric search runs in KNN mode
+     * @throws IOException if the index cannot be read
+     */
+    private SearchResponseDto search(IndexSearcher indexSearcher, String queryFen, int numResults,
+                                     SearchFilter filter, boolean symmetric, SearchMode mode,
+                                     long startNanos, long deadlineNanos) throws IOException {
+        SearchMode effectiveMode = mode != null ? mode : searchMode;
+        if (symmetric && effectiveMode == SearchMode.KNN) {
+            throw new IllegalArgumentException("Symmetric search is not supported in KNN mode");
+        }
+        List<SearchResultDto> finalResults = new ArrayList<>();
+        IndexReader reader = indexSearcher.getIndexReader();
+        Object generation = reader.getReaderCacheHelper().getKey();
+        Query filterQuery = buildFilterQuery(filter);
+        String cacheKey = SearchResultCache.normalizeFen(queryFen) + (filterQuery != null ? "|" + filter : "")
+                + (symmetric ? "|symmetric" : "") + (effectiveMode != searchMode ? "|" + effectiveMode : "");
+        List<SearchResultDto> cached = resultCache.get(generation, cacheKey, numResults);
+        if (cached != null) {
+            log.info("Search served from result cache for FEN: {}", queryFen);
+            return new SearchResponseDto(cached, false, elapsedMs(startNanos));
+        }
+        log.debug("Searching index with {} documents.", reader.numDocs());
 
-            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-                if (finalResults.size() >= numResults) {
-                    break;
-                }
+        TermBuffer queryCodes = new TermBuffer();
+        positionEncoder.encodeFen(queryFen, queryCodes);
+        if (effectiveMode == SearchMode.KNN) {
+            return searchKnn(indexSearcher, queryCodes, numResults, filterQuery, generation, cacheKey, startNanos, deadlineNanos);
+        }
+        BooleanQuery query = buildSimilarityQuery(queryCodes, reader);
 
-                int docId = scoreDoc.doc;
-                Document hitDoc = indexSearcher.storedFields().document(docId,
-                        Set.of(FIELD_GAME_ID, FIELD_FEN_STRING, FIELD_FEN_ID, FIELD_MOVE_NUMBER));
+        if (query.clauses().isEmpty()) {
+            log.warn("Query FEN resulted in no searchable terms: {}", queryFen);
+            return new SearchResponseDto(finalResults, false, elapsedMs(startNanos));
+        }
+        Query searchQuery = symmetric ? buildSymmetricQuery(queryFen, query, reader) : query;
+        log.debug("Executing Lucene query: {}", searchQuery.toString(FIELD_TERMS));
 
-                int gameId = Integer.parseInt(hitDoc.get(FIELD_GAME_ID));
-                String fenString = hitDoc.get(FIELD_FEN_STRING);
-                String fenId = hitDoc.get(FIELD_FEN_ID);
 
-                IndexableField moveNumField = hitDoc.getField(FIELD_MOVE_NUMBER);
-                int moveNumber = -1;
-                if (moveNumField != null && moveNumField.numericValue() != null) {
-                    moveNumber = moveNumField.numericValue().intValue();
-                } else {
-                    log.warn("Move number field missing or not numeric for docId: {}, fenId: {}", docId, fenId);
-                }
+        GameCollapsingCollector.Manager manager = new GameCollapsingCollector.Manager(numResults, totalHitsThreshold);
+        boolean partial = collect(indexSearcher, effectiveMode == SearchMode.TWO_PHASE && !symmetric ? queryCodes : null,
+                searchQuery, filterQuery, manager, numResults, deadlineNanos);
+        finalResults = toResults(indexSearcher, manager.topGames());
+        if (!partial) {
+            resultCache.put(generation, cacheKey, numResults, finalResults);
+        }
+        return new SearchResponseDto(finalResults, partial, elapsedMs(startNanos));
+    }
 
-                if (!includedGameIds.contains(gameId)) {
-                    includedGameIds.add(gameId);
+    /**
+     * KNN part of {@link #search}: the nearest position vectors among the documents matching the filter (the HNSW
+     * search pre-filters, so the filter does not shrink the candidates), collapsed per game.
+     * k counts vectors, not games, and one game can own many of the nearest vectors, so k is the larger of
+     * search.knn.candidates and numResults times search.knn.oversample. If the vectors still collapse into fewer
+     * than numResults games while more vectors are left, k is doubled and the search repeated.
+     * The HNSW graph search runs while the query is rewritten, before any hit is collected, so the time budget
+     * does not bound it: the deadline is only checked before each graph search and while collecting.
+     */
+    private SearchResponseDto searchKnn(IndexSearcher indexSearcher, TermBuffer queryCodes, int numResults, Query filterQuery,
+                                        Object generation, String cacheKey, long startNanos, long deadlineNanos) throws IOException {
+        IndexReader reader = indexSearcher.getIndexReader();
+        if (FieldInfos.getMergedFieldInfos(reader).fieldInfo(FIELD_VECTOR) == null) {
+            log.warn("Index has no position vectors, enable indexing.knn.enabled and rebuild the index for KNN search");
+            return new SearchResponseDto(new ArrayList<>(), false, elapsedMs(startNanos));
+        }
+        float[] vector = PositionVector.encode(queryCodes);
+        int k = (int) Math.min(Math.max(1, reader.maxDoc()), Math.max(knnCandidates, (long) numResults * knnOversample));
+        GameCollapsingCollector.Manager manager = null;
+        boolean partial;
+        while (true) {
+            if (deadlineNanos != NO_DEADLINE && System.nanoTime() - deadlineNanos > 0) {
+                // keep the games of the previous, smaller k if there was one
+                log.info("Time budget spent before the KNN graph search with k = {}", k);
+                partial = true;
+                break;
+            }
+            manager = new GameCollapsingCollector.Manager(numResults, totalHitsThreshold);
+            partial = collect(indexSearcher, null, new KnnFloatVectorQuery(FIELD_VECTOR, vector, k, filterQuery), null,
+                    manager, numResults, deadlineNanos);
+            // fewer vectors than k means the graph has no more matching ones
+            if (partial || manager.topGames().length >= numResults || k >= reader.maxDoc()
+                    || (manager.isTotalHitsExact() && manager.getTotalHits() < k)) {
+                break;
+            }
+            log.debug("{} nearest vectors collapsed into {} of {} games, doubling k", k, manager.topGames().length, numResults);
+            k = (int) Math.min(reader.maxDoc(), 2L * k);
+        }
+        List<SearchResultDto> finalResults = manager != null ? toResults(indexSearcher, manager.topGames()) : new ArrayList<>();
+        if (!partial) {
+            resultCache.put(generation, cacheKey, numResults, finalResults);
+        }
+        return new SearchResponseDto(finalResults, partial, elapsedMs(startNanos));
+    }
 
-                    SearchResultDto resultDto = new SearchResultDto();
-                    resultDto.setGameId(gameId);
-                    resultDto.setPositionFen(fenString);
-                    resultDto.setMoveNumber(moveNumber);
+    /**
+     * Searches for a partial-board pattern given as index terms instead of a FEN: piece placements ("Nd5") and
+     * relations, attack ("N>qd5"), defense ("P<Nd5") and ray attack ("R=qd8"). Required terms must all occur in a
+     * position, optional ones only add to its score; without required terms at least one optional term must match.
+     * The terms become clauses of one query, no board is built. Results are collapsed per game and ranked like a
+     * similarity search; they are not cached.
+     * @param requiredTerms terms every result must contain, or null
+     * @param optionalTerms terms that raise the score of a result, or null
+     * @param numResults max number of unique games to return
+     * @param filter game metadata filter, or null
+     * @param budgetMs time budget of this search, or null for search.time-budget-ms
+     * @return best matching positions max 1 per game, with the partial flag and elapsed time
+     * @throws IllegalArgumentException if a term is invalid, a reachable term, or no term is given
+     */
+    public SearchResponseDto searchPattern(List<String> requiredTerms, List<String> optionalTerms, int numResults,
+                                           SearchFilter filter, Long budgetMs) {
+        long startNanos = System.nanoTime();
+        BooleanQuery query = buildPatternQuery(requiredTerms, optionalTerms);
+        Query filterQuery = buildFilterQuery(filter);
+        log.info("Starting pattern search: {}{}", query.toString(FIELD_TERMS), filterQuery != null ? ", filter: " + filter : "");
 
-                    finalResults.add(resultDto);
-                    log.debug("Added result: Game ID {}, FEN ID {}, Move No {}, Score {}",
-                            gameId, fenId, moveNumber, scoreDoc.score);
-                }
+        LuceneIndexManager.AcquiredSearcher acquired = null;
+        try {
+            acquired = indexManager.acquireSearcher();
+            IndexSearcher indexSearcher = acquired.getSearcher();
+            GameCollapsingCollector.Manager manager = new GameCollapsingCollector.Manager(numResults, totalHitsThreshold);
+            boolean partial = collect(indexSearcher, null, query, filterQuery, manager, numResults, deadline(startNanos, budgetMs));
+            List<SearchResultDto> results = toResults(indexSearcher, manager.topGames());
+            long elapsedMs = elapsedMs(startNanos);
+            log.info("Pattern search completed. Found {} games{} in {} ms.", results.size(), partial ? " (partial)" : "", elapsedMs);
+            return new SearchResponseDto(results, partial, elapsedMs);
+        } catch (IOException e) {
+            log.error("Error acquiring or using IndexSearcher: {}", e.getMessage(), e);
+            return new SearchResponseDto(List.of(), false, elapsedMs(startNanos));
+        } finally {
+            release(acquired);
+        }
+    }
+
+    /**
+     * Returns one page of similarity results. The first page records its searcher; the cursor of every page names
+     * that searcher, the last hit returned (score, doc id and game, which tells apart the games of one deduplicated
+     * document) and the number of games so far, so the next page runs on the same index state and continues right
+     * after the last game returned. The hits ahead of the cursor are still scored and their games held to exclude
+     * them, so page N costs about as much as one search for N pages of games.
+     * A cursor whose searcher expired (search.cursor.max-age-sec) continues on the current index.
+     * Pages always score the full query, also in TWO_PHASE mode: two-phase candidates count documents, which collapse
+     * into far fewer games, so deep pages would run out of them long before the index runs out of games, and a
+     * candidate set growing from page to page could rank a new candidate ahead of the cursor, where it is never shown.
+     * Pages are not served from the result cache. A partial page gets no cursor: games the search had not reached
+     * yet would be skipped by it, so the client repeats the page (with the same cursor) to continue.
+     * @param queryFen FEN string of the query position
+     * @param numResults max number of unique games on the page
+     * @param filter game metadata filter, or null
+     * @param cursor nextCursor of the previous page, or null for the first page
+     * @param budgetMs time budget of this page, or null for search.time-budget-ms
+     * @return page of results with the cursor of the next page
+     * @throws IllegalArgumentException if the FEN, the filter or the cursor is invalid, or the cursor belongs to another query
+     */
+    public SearchPageDto searchPage(String queryFen, int numResults, SearchFilter filter, String cursor, Long budgetMs) {
+        long startNanos = System.nanoTime();
+        String normalizedQuery = SearchResultCache.normalizeFen(queryFen) + "|" + (filter != null && !filter.isEmpty() ? filter : "");
+        SearchCursor after = null;
+        if (cursor != null && !cursor.isBlank()) {
+            after = SearchCursor.decode(cursor.trim());
+            if (!after.belongsTo(normalizedQuery)) {
+                throw new IllegalArgumentException("Cursor belongs to another query");
             }
+        }
+        Query filterQuery = buildFilterQuery(filter);
+        TermBuffer queryCodes = new TermBuffer();
+        positionEncoder.encodeFen(queryFen, queryCodes);
+        int gamesBefore = after != null ? after.gamesBefore : 0;
+        log.info("Starting paged search for FEN: {}, games before: {}", queryFen, gamesBefore);
 
+        LuceneIndexManager.RecordedSearcher recorded = null;
+        try {
+            recorded = indexManager.acquireRecorded(after != null ? after.generationName : null, after != null ? after.readerVersion : 0);
+            IndexSearcher indexSearcher = recorded.getSearcher();
+            BooleanQuery query = buildSimilarityQuery(queryCodes, indexSearcher.getIndexReader());
+            if (query.clauses().isEmpty()) {
+                log.warn("Query FEN resulted in no searchable terms: {}", queryFen);
+                return new SearchPageDto(List.of(), null, false, elapsedMs(startNanos));
+            }
+            GameCollapsingCollector.Manager manager = new GameCollapsingCollector.Manager(numResults, totalHitsThreshold,
+                    after != null ? new ScoreDoc(after.doc, after.score) : null, after != null ? after.gameId : 0, gamesBefore);
+            boolean partial = collect(indexSearcher, null, query, filterQuery, manager, numResults, deadline(startNanos, budgetMs));
+            GameCollapsingCollector.GameHit[] hits = manager.topGames();
+            String nextCursor = null;
+            if (hits.length == numResults && !partial) {
+                GameCollapsingCollector.GameHit last = hits[hits.length - 1];
+                nextCursor = new SearchCursor(recorded.getGenerationName(), recorded.getVersion(), last.score, last.docId,
+                        last.gameId, gamesBefore + hits.length, SearchCursor.queryDigest(normalizedQuery)).encode();
+            }
+            List<SearchResultDto> results = toResults(indexSearcher, hits);
+            long elapsedMs = elapsedMs(startNanos);
+            log.info("Paged search completed for FEN: {}. Found {} games{}{} in {} ms.", queryFen, hits.length,
+                    partial ? " (partial)" : "", after != null && !recorded.isResumed() ? " on a newer index state than the cursor" : "", elapsedMs);
+            return new SearchPageDto(results, nextCursor, partial, elapsedMs);
         } catch (IOException e) {
             log.error("Error acquiring or using IndexSearcher: {}", e.getMessage(), e);
-        } catch (IllegalArgumentException e) {
-            log.error("Error processing query FEN '{}': {}", queryFen, e.getMessage(), e);
-        } catch (Exception e) {
-            log.error("An unexpected error occurred during search for FEN '{}': {}", queryFen, e.getMessage(), e);
+            return new SearchPageDto(List.of(), null, false, elapsedMs(startNanos));
         } finally {
-            if (indexSearcher != null) {
-                try {
-                    searcherManager.release(indexSearcher);
-                    log.debug("IndexSearcher released.");
-                } catch (IOException e) {
-                    log.error("Error releasing IndexSearcher: {}", e.getMessage(), e);
-                }
+            release(recorded);
+        }
+    }
+
+    /**
+     * Runs the similarity query, as two-phase search when query codes are given; the full query searches the index
+     * slices concurrently when the searcher has an executor, one collector per slice merged by the manager
+     * @param queryCodes term codes of the query position to search in TWO_PHASE mode, null to score the full query
+     * @param manager collects the games, read them from {@link GameCollapsingCollector.Manager#topGames()}
+     * @param candidates games the two-phase candidates must cover
+     * @param deadlineNanos System.nanoTime() at which collection stops, or NO_DEADLINE
+     * @return true if the deadline stopped collection
+     */
+    private boolean collect(IndexSearcher indexSearcher, TermBuffer queryCodes, Query query, Query filterQuery,
+                            GameCollapsingCollector.Manager manager, int candidates, long deadlineNanos) throws IOException {
+        boolean partial;
+        if (queryCodes != null) {
+            TwoPhaseSearch twoPhaseSearch = new TwoPhaseSearch(indexSearcher, similarity, queryCodes, filterQuery,
+                    Math.max(twoPhaseCandidates, candidates), totalHitsThreshold, twoPhaseRareTermRatio);
+            log.debug("Phase one query has {} clauses", twoPhaseSearch.getCandidateQuery().clauses().size());
+            GameCollapsingCollector collector = manager.newCollector();
+            partial = twoPhaseSearch.search(collector, deadlineNanos);
+            manager.reduce(List.of(collector));
+        } else if (deadlineNanos != NO_DEADLINE) {
+            TimeBudgetCollector.Manager<GameCollapsingCollector, GameCollapsingCollector.GameHit[]> budgetManager =
+                    new TimeBudgetCollector.Manager<>(manager, deadlineNanos);
+            indexSearcher.search(withFilter(query, filterQuery), budgetManager);
+            partial = budgetManager.isTimedOut();
+        } else {
+            indexSearcher.search(withFilter(query, filterQuery), manager);
+            partial = false;
+        }
+        if (partial) {
+            log.warn("Search time budget ran out after {} collected hits, returning partial results", manager.getTotalHits());
+        } else {
+            log.info("Query yielded {}{} collected hits.", manager.isTotalHitsExact() ? "" : ">= ", manager.getTotalHits());
+        }
+        return partial;
+    }
+
+    /**
+     * @param startNanos System.nanoTime() when the request started
+     * @param budgetMs budget requested for the request, or null
+     * @return System.nanoTime() at which collection stops, or NO_DEADLINE
+     */
+    private long deadline(long startNanos, Long budgetMs) {
+        long effectiveBudgetMs = timeBudgetMs;
+        if (budgetMs != null && budgetMs > 0) {
+            effectiveBudgetMs = timeBudgetMs > 0 ? Math.min(budgetMs, timeBudgetMs) : budgetMs;
+        }
+        return effectiveBudgetMs > 0 ? startNanos + TimeUnit.MILLISECONDS.toNanos(effectiveBudgetMs) : NO_DEADLINE;
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Loads the FEN of each hit, the only stored field read
+     */
+    private List<SearchResultDto> toResults(IndexSearcher indexSearcher, GameCollapsingCollector.GameHit[] hits) throws IOException {
+        List<SearchResultDto> results = new ArrayList<>(hits.length);
+        StoredFields storedFields = indexSearcher.storedFields();
+        for (GameCollapsingCollector.GameHit hit : hits) {
+            String fenString = storedFields.document(hit.docId, Set.of(FIELD_FEN_STRING)).get(FIELD_FEN_STRING);
+            results.add(new SearchResultDto(hit.gameId, hit.moveNumber, fenString));
+            log.debug("Added result: Game ID {}, doc {}, Move No {}, Score {}", hit.gameId, hit.docId, hit.moveNumber, hit.score);
+        }
+        return results;
+    }
+
+    private void release(LuceneIndexManager.AcquiredSearcher acquired) {
+        if (acquired != null) {
+            try {
+                indexManager.release(acquired);
+                log.debug("IndexSearcher released.");
+            } catch (IOException e) {
+                log.error("Error releasing IndexSearcher: {}", e.getMessage(), e);
             }
         }
+    }
 
-        log.info("Search completed for FEN: {}. Found {} unique game results.", queryFen, finalResults.size());
-        return finalResults;
+    @PreDestroy
+    public void stopBatchExecutor() {
+        batchExecutor.shutdownNow();
+    }
+
+    /**
+     * Get search statistics
+     * @return Map with the result cache, term pruning and search executor statistics
+     */
+    public Map<String, Object> getSearchStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("searchMode", searchMode);
+        stats.put("resultCache", resultCache.getStats());
+        Map<String, Object> pruning = new LinkedHashMap<>();
+        pruning.put("maxDfRatio", pruneMaxDfRatio);
+        pruning.put("minShouldMatchRatio", minShouldMatchRatio);
+        pruning.put("prunedQueries", prunedQueries.sum());
+        pruning.put("prunedTerms", prunedTerms.sum());
+        stats.put("termPruning", pruning);
+        stats.put("searchExecutor", indexManager.getSearcherStats());
+        return stats;
+    }
+
+    /**
+     * Builds the game metadata filter: one clause per set filter, each a points range (BKD tree) or a DocValues
+     * check, whichever IndexOrDocValuesQuery finds cheaper for the lead iterator of the conjunction
+     * @param filter game metadata filter, or null
+     * @return the conjunction of the filters, or null if none is set
+     * @throws IllegalArgumentException if the filter is invalid
+     */
+    static Query buildFilterQuery(SearchFilter filter) {
+        if (filter == null || filter.isEmpty()) {
+            return null;
+        }
+        filter.validate();
+        BooleanQuery.Builder filterBuilder = new BooleanQuery.Builder();
+        if (filter.getEco() != null && !filter.getEco().isBlank()) {
+            // at most ~500 ECO terms, substring match like the game list filter
+            filterBuilder.add(new WildcardQuery(new Term(FIELD_ECO, "*" + filter.getEco().trim().toUpperCase() + "*")), BooleanClause.Occur.FILTER);
+        }
+        if (filter.getDateFrom() != null || filter.getDateTo() != null) {
+            long from = filter.getDateFrom() != null ? filter.getDateFrom().toEpochDay() : Long.MIN_VALUE;
+            long to = filter.getDateTo() != null ? filter.getDateTo().toEpochDay() : Long.MAX_VALUE;
+            filterBuilder.add(new IndexOrDocValuesQuery(LongPoint.newRangeQuery(FIELD_DATE, from, to),
+                    NumericDocValuesField.newSlowRangeQuery(FIELD_DATE, from, to)), BooleanClause.Occur.FILTER);
+        }
+        if (filter.getResult() != null && !filter.getResult().isBlank()) {
+            filterBuilder.add(new TermQuery(new Term(FIELD_RESULT, filter.getResult().trim())), BooleanClause.Occur.FILTER);
+        }
+        if (filter.getMinElo() != null) {
+            filterBuilder.add(eloRange(filter.getMinElo(), Integer.MAX_VALUE), BooleanClause.Occur.FILTER);
+        }
+        if (filter.getMaxElo() != null) {
+            filterBuilder.add(eloRange(Integer.MIN_VALUE, filter.getMaxElo()), BooleanClause.Occur.FILTER);
+        }
+        return filterBuilder.build();
+    }
+
+    /**
+     * @return matches if either player's Elo is in [min, max]
+     */
+    private static Query eloRange(int min, int max) {
+        return new BooleanQuery.Builder()
+                .add(new IndexOrDocValuesQuery(IntPoint.newRangeQuery(FIELD_WHITE_ELO, min, max),
+                        NumericDocValuesField.newSlowRangeQuery(FIELD_WHITE_ELO, min, max)), BooleanClause.Occur.SHOULD)
+                .add(new IndexOrDocValuesQuery(IntPoint.newRangeQuery(FIELD_BLACK_ELO, min, max),
+                        NumericDocValuesField.newSlowRangeQuery(FIELD_BLACK_ELO, min, max)), BooleanClause.Occur.SHOULD)
+                .build();
+    }
+
+    /**
+     * Restricts a scoring query to the filter without changing its scores
+     * @param query scoring query
+     * @param filterQuery filter from {@link #buildFilterQuery(SearchFilter)}, or null
+     * @return query + FILTER clause, or query itself without a filter
+     */
+    static Query withFilter(Query query, Query filterQuery) {
+        if (filterQuery == null) {
+            return query;
+        }
+        return new BooleanQuery.Builder()
+                .add(query, BooleanClause.Occur.MUST)
+                .add(filterQuery, BooleanClause.Occur.FILTER)
+                .build();
+    }
+
+    /**
+     * Builds the pattern query: a MUST TermQuery per required term and a SHOULD TermQuery per optional term
+     * @param requiredTerms piece placement and relation terms, or null
+     * @param optionalTerms piece placement and relation terms, or null
+     * @return query
+     * @throws IllegalArgumentException if a term is invalid, a reachable term, or no term is given
+     */
+    static BooleanQuery buildPatternQuery(List<String> requiredTerms, List<String> optionalTerms) {
+        BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
+        int clauses = addPatternTerms(queryBuilder, requiredTerms, BooleanClause.Occur.MUST)
+                + addPatternTerms(queryBuilder, optionalTerms, BooleanClause.Occur.SHOULD);
+        if (clauses == 0) {
+            throw new IllegalArgumentException("Pattern has no terms");
+        }
+        return queryBuilder.build();
+    }
+
+    private static int addPatternTerms(BooleanQuery.Builder queryBuilder, List<String> terms, BooleanClause.Occur occur) {
+        if (terms == null) {
+            return 0;
+        }
+        int added = 0;
+        for (String term : terms) {
+            if (term == null || term.isBlank()) {
+                continue;
+            }
+            int code = TermCodes.parse(term.trim());
+            if (TermCodes.family(code) == TermCodes.FAMILY_REACHABLE) {
+                throw new IllegalArgumentException("Pattern terms are piece placements or relations, got reachable term '" + term.trim() + "'");
+            }
+            queryBuilder.add(new TermQuery(new Term(FIELD_TERMS, TermCodes.toTerm(code))), occur);
+            added++;
+        }
+        return added;
     }
 
+    /**
+     * Combines the similarity query of the position with those of its color-flipped and mirrored counterparts
+     * (see {@link PositionEncoder#symmetricFens(String)}) in a DisjunctionMaxQuery without tie breaker: a document
+     * scores as its best matching variant, so all variants are collected and collapsed per game in one pass
+     * @param queryFen FEN string of the query position
+     * @param query similarity query of the position itself
+     * @param reader index the variant queries are pruned against, or null
+     * @return query over all distinct variants
+     * @throws IllegalArgumentException if the FEN is invalid
+     * @throws IOException if term statistics cannot be read
+     */
+    Query buildSymmetricQuery(String queryFen, BooleanQuery query, IndexReader reader) throws IOException {
+        List<String> variantFens = positionEncoder.symmetricFens(queryFen);
+        if (variantFens.size() == 1) {
+            return query;
+        }
+        List<Query> variants = new ArrayList<>(variantFens.size());
+        variants.add(query);
+        TermBuffer variantCodes = new TermBuffer();
+        for (String variantFen : variantFens.subList(1, variantFens.size())) {
+            positionEncoder.encodeFen(variantFen, variantCodes);
+            variants.add(buildSimilarityQuery(variantCodes, reader));
+        }
+        return new DisjunctionMaxQuery(variants, 0f);
+    }
+
+    /**
+     * Builds the similarity query: a SHOULD TermQuery per structural term, plus a linear FeatureField query per
+     * reachable square whose weight is the query position's own reachable weight times the reachable family weight,
+     * so a match scores weight * w(query) * w(doc). At least search.min-should-match-ratio of the clauses must match.
+     * @param queryCodes term codes of the query position
+     * @return query
+     */
+    BooleanQuery buildSimilarityQuery(TermBuffer queryCodes) {
+        try {
+            return buildSimilarityQuery(queryCodes, null);
+        } catch (IOException e) {
+            // no term statistics are read without a reader
+            throw new UncheckedIOException(e);
+        }
+    }
 
-}
\ No newline at end of file
+    /**
+     * Builds the similarity query against an index: terms and reachable features occurring in more than
+     * search.prune.max-df-ratio of its documents (pawns and kings on their home squares and the like) are left out
+     * to skip their long posting lists. This is lossy: the idf of a term in half the documents is still ln 2 (about
+     * 0.69), and reachable FeatureField clauses carry no idf at all, so a pruned clause changes the scores directly.
+     * Check recall with SimilarityBenchmark before turning it on. If every clause would be pruned none is.
+     * @param queryCodes term codes of the query position
+     * @param reader index whose document frequencies decide the pruning, or null to keep all terms
+     * @return query
+     * @throws IOException if term statistics cannot be read
+     */
+    BooleanQuery buildSimilarityQuery(TermBuffer queryCodes, IndexReader reader) throws IOException {
+        long maxDocFreq = reader != null && pruneMaxDfRatio > 0 ? (long) (pruneMaxDfRatio * reader.maxDoc()) : Long.MAX_VALUE;
+        BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
+        int clauses = 0;
+        int pruned = 0;
+        float[] reachableWeights = new float[TermCodes.FEATURE_KEYS];
+        for (int i = 0; i < queryCodes.size(); i++) {
+            int code = queryCodes.get(i);
+            if (TermCodes.family(code) == TermCodes.FAMILY_REACHABLE) {
+                int key = TermCodes.featureKey(code);
+                reachableWeights[key] = Math.max(reachableWeights[key], TermCodes.reachableWeight(code));
+                continue;
+            }
+            Term term = new Term(FIELD_TERMS, TermCodes.toTerm(code));
+            if (maxDocFreq != Long.MAX_VALUE && reader.docFreq(term) > maxDocFreq) {
+                pruned++;
+                continue;
+            }
+            queryBuilder.add(new TermQuery(term), BooleanClause.Occur.SHOULD);
+            clauses++;
+        }
+        float reachableFamilyWeight = similarity.getFamilyWeight(TermCodes.FAMILY_REACHABLE);
+        for (int key = 0; key < reachableWeights.length; key++) {
+            if (reachableWeights[key] > 0 && reachableFamilyWeight > 0) {
+                if (maxDocFreq != Long.MAX_VALUE && reader.docFreq(new Term(FIELD_REACHABLE, TermCodes.featureName(key))) > maxDocFreq) {
+                    pruned++;
+                    continue;
+                }
+                queryBuilder.add(FeatureField.newLinearQuery(FIELD_REACHABLE, TermCodes.featureName(key),
+                                reachableFamilyWeight * reachableWeights[key]),
+                        BooleanClause.Occur.SHOULD);
+                clauses++;
+            }
+        }
+        if (clauses == 0 && pruned > 0) {
+            log.debug("All {} query terms are above docFreq {}, not pruning", pruned, maxDocFreq);
+            return buildSimilarityQuery(queryCodes, null);
+        }
+        int minShouldMatch = minShouldMatchRatio > 0 ? Math.max(1, (int) (minShouldMatchRatio * clauses)) : 0;
+        queryBuilder.setMinimumNumberShouldMatch(minShouldMatch);
+        if (pruned > 0) {
+            prunedQueries.increment();
+            prunedTerms.add(pruned);
+        }
+        if (reader != null) {
+            log.debug("Similarity query keeps {} of {} clauses (docFreq limit {} of {} docs), minimum should match {}",
+                    clauses, clauses + pruned, maxDocFreq == Long.MAX_VALUE ? "none" : maxDocFreq, reader.maxDoc(), minShouldMatch);
+        }
+        return queryBuilder.build();
+    }
+}
@@ -0,0 +1,93 @@
+package org.example.chessearch_back.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Opaque position of a paged similarity search: the index generation and reader version the pages run on,
+ * the last hit returned (score, top-level doc id, game id), the number of games returned so far and a digest of the
+ * query so a cursor cannot be continued with another FEN or filter
+ */
+final class SearchCursor {
+
+    private static final String VERSION = "3";
+    /** bytes of the SHA-256 query hash kept in the cursor */
+    private static final int DIGEST_BYTES = 16;
+
+    final String generationName;
+    final long readerVersion;
+    final float score;
+    final int doc;
+    final int gameId;
+    final int gamesBefore;
+    final String queryDigest;
+
+    SearchCursor(String generationName, long readerVersion, float score, int doc, int gameId, int gamesBefore, String queryDigest) {
+        this.generationName = generationName;
+        this.readerVersion = readerVersion;
+        this.score = score;
+        this.doc = doc;
+        this.gameId = gameId;
+        this.gamesBefore = gamesBefore;
+        this.queryDigest = queryDigest;
+    }
+
+    /**
+     * @return URL safe cursor string
+     */
+    String encode() {
+        String value = String.join(":", VERSION, generationName, Long.toString(readerVersion),
+                Integer.toHexString(Float.floatToIntBits(score)), Integer.toString(doc), Integer.toString(gameId), Integer.toString(gamesBefore),
+                queryDigest);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param query normalized query the cursor belongs to
+     * @return URL safe digest of the query: the first DIGEST_BYTES of its SHA-256 hash
+     */
+    static String queryDigest(String query) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(query.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, DIGEST_BYTES));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @param query normalized query of the current request
+     * @return true if the cursor was issued for the same query
+     */
+    boolean belongsTo(String query) {
+        return MessageDigest.isEqual(queryDigest.getBytes(StandardCharsets.US_ASCII),
+                queryDigest(query).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @param cursor string from {@link #encode()}
+     * @return decoded cursor
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    static SearchCursor decode(String cursor) {
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            String[] parts = value.split(":", -1);
+            if (parts.length != 8 || !VERSION.equals(parts[0])) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            SearchCursor decoded = new SearchCursor(parts[1], Long.parseLong(parts[2]),
+                    Float.intBitsToFloat(Integer.parseUnsignedInt(parts[3], 16)), Integer.parseInt(parts[4]),
+                    Integer.parseInt(parts[5]), Integer.parseInt(parts[6]), parts[7]);
+            if (decoded.doc < 0 || decoded.gamesBefore < 0 || decoded.queryDigest.isEmpty()) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            return decoded;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+}
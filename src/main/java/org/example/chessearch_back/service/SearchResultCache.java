@@ -0,0 +1,150 @@
+package org.example.chessearch_back.service;
+
+import org.example.chessearch_back.dto.SearchResultDto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of search results keyed by normalized FEN + limit.
+ * Entries belong to one index generation, identified by the reader's cache key: a searcher opened on another
+ * reader (after a commit, refresh, rebuild or rollback) clears the cache on its first lookup.
+ */
+@Component
+public class SearchResultCache {
+
+    private static final Logger log = LoggerFactory.getLogger(SearchResultCache.class);
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, List<SearchResultDto>> entries;
+    /** reader cache key the entries were computed on */
+    private Object generation;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxEntries number of result lists to keep; 0 disables the cache
+     */
+    @Autowired
+    public SearchResultCache(@Value("${search.cache.entries:1024}") int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("search.cache.entries must not be negative, got " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<SearchResultDto>> eldest) {
+                return size() > SearchResultCache.this.maxEntries;
+            }
+        };
+        log.info("Search result cache initialized with {} entries", maxEntries);
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Drops the move counters and extra whitespace of a FEN, they do not change the search terms
+     * @param fen FEN string
+     * @return placement, side to move, castling and en passant fields separated by single spaces
+     */
+    public static String normalizeFen(String fen) {
+        String[] fields = fen.trim().split("\\s+");
+        return String.join(" ", Arrays.copyOf(fields, Math.min(fields.length, 4)));
+    }
+
+    /**
+     * @param generation cache key of the reader the search would run on
+     * @param normalizedFen FEN from {@link #normalizeFen(String)}
+     * @param limit number of results requested
+     * @return copy of the cached results, or null on a miss
+     */
+    public List<SearchResultDto> get(Object generation, String normalizedFen, int limit) {
+        if (!isEnabled()) {
+            return null;
+        }
+        List<SearchResultDto> cached;
+        synchronized (this) {
+            switchGeneration(generation);
+            cached = entries.get(key(normalizedFen, limit));
+        }
+        if (cached == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        List<SearchResultDto> results = new ArrayList<>(cached.size());
+        for (SearchResultDto result : cached) {
+            results.add(new SearchResultDto(result.getGameId(), result.getMoveNumber(), result.getPositionFen()));
+        }
+        return results;
+    }
+
+    /**
+     * Stores results computed on the given reader, ignored if the cache moved on to another one meanwhile
+     */
+    public void put(Object generation, String normalizedFen, int limit, List<SearchResultDto> results) {
+        if (!isEnabled()) {
+            return;
+        }
+        List<SearchResultDto> copy = new ArrayList<>(results.size());
+        for (SearchResultDto result : results) {
+            copy.add(new SearchResultDto(result.getGameId(), result.getMoveNumber(), result.getPositionFen()));
+        }
+        synchronized (this) {
+            if (generation == this.generation) {
+                entries.put(key(normalizedFen, limit), copy);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Get cache statistics
+     * @return Map with capacity, size, hits, misses, hit ratio and generation switches
+     */
+    public Map<String, Object> getStats() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("capacity", maxEntries);
+        synchronized (this) {
+            stats.put("size", entries.size());
+        }
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRatio", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        stats.put("invalidations", invalidations.sum());
+        return stats;
+    }
+
+    private void switchGeneration(Object generation) {
+        if (generation != this.generation) {
+            if (!entries.isEmpty()) {
+                invalidations.increment();
+                log.debug("Index generation changed, dropping {} cached results", entries.size());
+            }
+            entries.clear();
+            this.generation = generation;
+        }
+    }
+
+    private static String key(String normalizedFen, int limit) {
+        return limit + "|" + normalizedFen;
+    }
+}
@@ -0,0 +1,108 @@
+package org.example.chessearch_back.service;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.FilterCollector;
+import org.apache.lucene.search.FilterLeafCollector;
+import org.apache.lucene.search.LeafCollector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Stops a search once its deadline passed, keeping what the wrapped collector gathered so far.
+ * The clock is read every CHECK_INTERVAL collected documents and at each segment; termination throws
+ * CollectionTerminatedException, which IndexSearcher treats as "done with this segment", and every later segment
+ * is skipped the same way. {@link Manager} wraps every slice collector of a concurrent search with the same deadline.
+ */
+final class TimeBudgetCollector extends FilterCollector {
+
+    private static final int CHECK_INTERVAL = 256;
+
+    private final long deadlineNanos;
+    private volatile boolean timedOut;
+
+    /**
+     * @param in collector to wrap
+     * @param deadlineNanos System.nanoTime() at which collection stops
+     */
+    TimeBudgetCollector(Collector in, long deadlineNanos) {
+        super(in);
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * @return true if collection was stopped before all documents were seen
+     */
+    boolean isTimedOut() {
+        return timedOut;
+    }
+
+    @Override
+    public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+        checkDeadline();
+        return new FilterLeafCollector(super.getLeafCollector(context)) {
+            private int collected;
+
+            @Override
+            public void collect(int doc) throws IOException {
+                if (++collected % CHECK_INTERVAL == 0) {
+                    checkDeadline();
+                }
+                in.collect(doc);
+            }
+        };
+    }
+
+    /**
+     * Wraps the collectors of another manager; reduce hands the wrapped collectors to it
+     */
+    static final class Manager<C extends Collector, T> implements CollectorManager<TimeBudgetCollector, T> {
+        private final CollectorManager<C, T> in;
+        private final long deadlineNanos;
+        private boolean timedOut;
+
+        /**
+         * @param in manager of the collectors to wrap
+         * @param deadlineNanos System.nanoTime() at which every slice stops collecting
+         */
+        Manager(CollectorManager<C, T> in, long deadlineNanos) {
+            this.in = in;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * @return true if any slice was stopped before all its documents were seen
+         */
+        boolean isTimedOut() {
+            return timedOut;
+        }
+
+        @Override
+        public TimeBudgetCollector newCollector() throws IOException {
+            return new TimeBudgetCollector(in.newCollector(), deadlineNanos);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T reduce(Collection<TimeBudgetCollector> collectors) throws IOException {
+            List<C> wrapped = new ArrayList<>(collectors.size());
+            for (TimeBudgetCollector collector : collectors) {
+                timedOut |= collector.isTimedOut();
+                wrapped.add((C) collector.in);
+            }
+            return in.reduce(wrapped);
+        }
+    }
+
+    private void checkDeadline() {
+        if (timedOut || System.nanoTime() - deadlineNanos > 0) {
+            timedOut = true;
+            throw new CollectionTerminatedException();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.example.chessearch_back.service;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.example.chessearch_back.config.ChessSimilarity;
+import org.example.chessearch_back.parser.TermBuffer;
+import org.example.chessearch_back.parser.TermCodes;
+import org.example.chessearch_back.parser.TermSignature;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Two-phase similarity search. Phase one retrieves candidates with a small selective query: the true position terms
+ * plus attack and ray attack terms that occur in at most rareTermRatio of the documents. Phase two rescores the
+ * candidates with the full term overlap, read from the term signature DocValue instead of postings, weighted like
+ * {@link ChessSimilarity}: idf times family weight of every matching structural term plus
+ * reachable weight * w(query) * w(doc) per shared reachable square, and collapses them per game.
+ */
+final class TwoPhaseSearch {
+
+    private final IndexSearcher searcher;
+    private final ChessSimilarity similarity;
+    private final int candidates;
+    private final int totalHitsThreshold;
+    private final double rareTermRatio;
+
+    /** distinct structural query codes in ascending order, with their idf */
+    private final int[] queryCodes;
+    private final float[] queryWeights;
+    private final float[] reachableWeights = new float[TermCodes.FEATURE_KEYS];
+    private final BooleanQuery candidateQuery;
+    /** game metadata filter of phase one, or null */
+    private final Query filterQuery;
+
+    /**
+     * @param searcher searcher to run both phases on
+     * @param similarity similarity whose family weights the rescoring applies
+     * @param queryTerms term codes of the query position
+     * @param filterQuery game metadata filter, applied in phase one, or null
+     * @param candidates number of phase one hits to rescore
+     * @param totalHitsThreshold phase one hits to count exactly before non-competitive documents may be skipped
+     * @param rareTermRatio highest document frequency, as share of the index, of relation terms used in phase one
+     * @throws IOException if term statistics cannot be read
+     */
+    TwoPhaseSearch(IndexSearcher searcher, ChessSimilarity similarity, TermBuffer queryTerms, Query filterQuery,
+                   int candidates, int totalHitsThreshold, double rareTermRatio) throws IOException {
+        this.searcher = searcher;
+        this.similarity = similarity;
+        this.filterQuery = filterQuery;
+        this.candidates = candidates;
+        this.totalHitsThreshold = totalHitsThreshold;
+        this.rareTermRatio = rareTermRatio;
+
+        int[] structural = new int[queryTerms.size()];
+        int count = 0;
+        for (int i = 0; i < queryTerms.size(); i++) {
+            int code = queryTerms.get(i);
+            if (TermCodes.family(code) == TermCodes.FAMILY_REACHABLE) {
+                int key = TermCodes.featureKey(code);
+                reachableWeights[key] = Math.max(reachableWeights[key],
+                        similarity.getFamilyWeight(TermCodes.FAMILY_REACHABLE) * TermCodes.reachableWeight(code));
+            } else {
+                structural[count++] = code;
+            }
+        }
+        Arrays.sort(structural, 0, count);
+        this.queryCodes = Arrays.stream(structural, 0, count).distinct().toArray();
+        this.queryWeights = new float[queryCodes.length];
+        this.candidateQuery = buildCandidateQuery(searcher.getIndexReader());
+    }
+
+    /**
+     * @return phase one query, empty if the query position has no structural terms
+     */
+    BooleanQuery getCandidateQuery() {
+        return candidateQuery;
+    }
+
+    /**
+     * Runs both phases, feeding the rescored candidates to the collector. Phase one searches the index slices
+     * concurrently when the searcher has an executor; the candidates are rescored on the calling thread.
+     * @param collector collector of the final result
+     * @param deadlineNanos System.nanoTime() at which phase one stops collecting candidates, Long.MAX_VALUE for no limit
+     * @return true if the deadline cut phase one short, the candidates found until then are still rescored
+     * @throws IOException if the index cannot be read
+     */
+    boolean search(GameCollapsingCollector collector, long deadlineNanos) throws IOException {
+        CollectorManager<TopScoreDocCollector, TopDocs> candidateManager =
+                TopScoreDocCollector.createSharedManager(candidates, null, totalHitsThreshold);
+        Query query = PositionSearchService.withFilter(candidateQuery, filterQuery);
+        boolean timedOut = false;
+        TopDocs topDocs;
+        if (deadlineNanos != Long.MAX_VALUE) {
+            TimeBudgetCollector.Manager<TopScoreDocCollector, TopDocs> budgetManager =
+                    new TimeBudgetCollector.Manager<>(candidateManager, deadlineNanos);
+            topDocs = searcher.search(query, budgetManager);
+            timedOut = budgetManager.isTimedOut();
+        } else {
+            topDocs = searcher.search(query, candidateManager);
+        }
+        ScoreDoc[] hits = topDocs.scoreDocs.clone();
+        Arrays.sort(hits, Comparator.comparingInt(hit -> hit.doc));
+
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        TermBuffer docCodes = new TermBuffer();
+        RescoredHit scorer = new RescoredHit();
+        int i = 0;
+        while (i < hits.length) {
+            LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(hits[i].doc, leaves));
+            int leafEnd = leaf.docBase + leaf.reader().maxDoc();
+            BinaryDocValues signatures = leaf.reader().getBinaryDocValues(IndexingService.FIELD_SIGNATURE);
+            LeafCollector leafCollector = collector.getLeafCollector(leaf);
+            leafCollector.setScorer(scorer);
+            for (; i < hits.length && hits[i].doc < leafEnd; i++) {
+                int doc = hits[i].doc - leaf.docBase;
+                if (signatures != null && signatures.advanceExact(doc)) {
+                    TermSignature.decode(signatures.binaryValue(), docCodes);
+                    scorer.score = overlap(docCodes);
+                } else {
+                    scorer.score = hits[i].score;
+                }
+                scorer.doc = doc;
+                leafCollector.collect(doc);
+            }
+        }
+        return timedOut;
+    }
+
+    private BooleanQuery buildCandidateQuery(IndexReader reader) throws IOException {
+        long maxDoc = Math.max(1, reader.maxDoc());
+        long rareLimit = (long) (rareTermRatio * maxDoc);
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (int i = 0; i < queryCodes.length; i++) {
+            int code = queryCodes[i];
+            Term term = new Term(IndexingService.FIELD_TERMS, TermCodes.toTerm(code));
+            int docFreq = reader.docFreq(term);
+            int family = TermCodes.family(code);
+            queryWeights[i] = similarity.getFamilyWeight(family) * (float) Math.log(1 + (maxDoc - docFreq + 0.5) / (docFreq + 0.5));
+            boolean selective = family == TermCodes.FAMILY_TRUE_POSITION
+                    || ((family == TermCodes.FAMILY_ATTACK || family == TermCodes.FAMILY_RAY_ATTACK) && docFreq <= rareLimit);
+            if (selective) {
+                builder.add(new TermQuery(term), BooleanClause.Occur.SHOULD);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Merges the sorted document codes with the sorted query codes
+     */
+    private float overlap(TermBuffer docCodes) {
+        float score = 0;
+        int q = 0;
+        for (int i = 0; i < docCodes.size(); i++) {
+            int code = docCodes.get(i);
+            if (TermCodes.family(code) == TermCodes.FAMILY_REACHABLE) {
+                score += reachableWeights[TermCodes.featureKey(code)] * TermCodes.reachableWeight(code);
+                continue;
+            }
+            while (q < queryCodes.length && queryCodes[q] < code) {
+                q++;
+            }
+            if (q < queryCodes.length && queryCodes[q] == code) {
+                score += queryWeights[q];
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Hands the rescored value of the current candidate to the collector
+     */
+    private static final class RescoredHit extends Scorable {
+        float score;
+        int doc = -1;
+
+        @Override
+        public float score() {
+            return score;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.example.chessearch_back;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.example.chessearch_back.config.ChessSimilarity;
+import org.example.chessearch_back.parser.TermCodes;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChessSimilarityTest {
+
+    private static final float[] FAMILY_WEIGHTS = {2f, 1f, 3f, 0.5f, 4f};
+    /** white pawn on e2 */
+    private static final String TRUE_POSITION_TERM = TermCodes.toTerm(TermCodes.truePosition(0, 12));
+    /** white knight attacking the black queen on d5 */
+    private static final String ATTACK_TERM = TermCodes.toTerm(TermCodes.relation(TermCodes.FAMILY_ATTACK, 1, 10, 35));
+    private static final String OTHER_TERM = TermCodes.toTerm(TermCodes.truePosition(6, 52));
+
+    private final ChessSimilarity similarity = new ChessSimilarity(FAMILY_WEIGHTS);
+    private Directory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = new ByteBuffersDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer()).setSimilarity(similarity);
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            // one short document, one long one, one with the terms repeated and one without them
+            writer.addDocument(document("short", TRUE_POSITION_TERM + " " + ATTACK_TERM));
+            writer.addDocument(document("long", TRUE_POSITION_TERM + " " + ATTACK_TERM + (" " + OTHER_TERM).repeat(40)));
+            writer.addDocument(document("repeated", (TRUE_POSITION_TERM + " " + ATTACK_TERM + " ").repeat(5)));
+            writer.addDocument(document("none", OTHER_TERM));
+        }
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(similarity);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    @DisplayName("A matching term scores family weight times idf, whatever the term frequency and field length")
+    void testScore_ConstantPerTerm() throws IOException {
+        float expected = FAMILY_WEIGHTS[TermCodes.FAMILY_TRUE_POSITION] * idf(3, 4);
+
+        TopDocs topDocs = searcher.search(new TermQuery(new Term("terms", TRUE_POSITION_TERM)), 10);
+
+        assertEquals(3, topDocs.scoreDocs.length);
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            assertEquals(expected, scoreDoc.score, 1e-6f, "doc " + scoreDoc.doc);
+        }
+    }
+
+    @Test
+    @DisplayName("The family weight is taken from the term's family")
+    void testScore_FamilyWeight() throws IOException {
+        float truePositionScore = searcher.search(new TermQuery(new Term("terms", TRUE_POSITION_TERM)), 1).scoreDocs[0].score;
+        float attackScore = searcher.search(new TermQuery(new Term("terms", ATTACK_TERM)), 1).scoreDocs[0].score;
+
+        assertEquals(FAMILY_WEIGHTS[TermCodes.FAMILY_ATTACK] * idf(3, 4), attackScore, 1e-6f);
+        assertEquals(FAMILY_WEIGHTS[TermCodes.FAMILY_ATTACK] / FAMILY_WEIGHTS[TermCodes.FAMILY_TRUE_POSITION],
+                attackScore / truePositionScore, 1e-6f);
+    }
+
+    @Test
+    @DisplayName("Rarer terms score higher through their idf")
+    void testScore_Idf() throws IOException {
+        float otherScore = searcher.search(new TermQuery(new Term("terms", OTHER_TERM)), 1).scoreDocs[0].score;
+
+        assertEquals(FAMILY_WEIGHTS[TermCodes.FAMILY_TRUE_POSITION] * idf(2, 4), otherScore, 1e-6f);
+    }
+
+    @Test
+    @DisplayName("Norms are the constant 1")
+    void testComputeNorm_Constant() {
+        assertEquals(1, similarity.computeNorm(null));
+    }
+
+    @Test
+    @DisplayName("Invalid family weights are rejected")
+    void testConstructor_InvalidWeights() {
+        assertThrows(IllegalArgumentException.class, () -> new ChessSimilarity(new float[]{1f, 1f, 1f, 1f}));
+        assertThrows(IllegalArgumentException.class, () -> new ChessSimilarity(new float[]{1f, -1f, 1f, 1f, 1f}));
+        assertThrows(IllegalArgumentException.class, () -> new ChessSimilarity(new float[]{1f, 1f, Float.NaN, 1f, 1f}));
+        assertThrows(IllegalArgumentException.class, () -> new ChessSimilarity(new float[]{1f, 1f, 1f, Float.POSITIVE_INFINITY, 1f}));
+    }
+
+    private static Document document(String id, String terms) {
+        Document doc = new Document();
+        doc.add(new StringField("id", id, Field.Store.YES));
+        doc.add(new TextField("terms", terms, Field.Store.NO));
+        return doc;
+    }
+
+    private static float idf(long docFreq, long docCount) {
+        return (float) Math.log(1 + (docCount - docFreq + 0.5D) / (docFreq + 0.5D));
+    }
+}
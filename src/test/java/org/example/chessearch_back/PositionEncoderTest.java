@@ -1,12 +1,24 @@
 package org.example.chessearch_back;
 
+import org.example.chessearch_back.parser.EncodingCache;
+import org.example.chessearch_back.parser.GameTermEncoder;
 import org.example.chessearch_back.parser.PositionEncoder;
+import org.example.chessearch_back.parser.TermBuffer;
+import org.example.chessearch_back.parser.TermCodes;
+import org.example.chessearch_back.parser.TermSignature;
+import org.example.chessearch_back.service.PgnParserService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import java.util.List;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -16,6 +28,23 @@ class PositionEncoderTest {
 
     private static final String STARTING_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
 
+    private static final List<String> ENGINE_COMPARISON_FENS = Arrays.asList(
+            STARTING_FEN,
+            "8/7Q/1k6/8/8/8/8/7K w - - 0 1",
+            "7K/8/k7/2P5/5b2/3N4/5N1p/8 w - - 0 1",
+            "8/8/1kp5/1p6/5N2/3b4/8/2RR3K w - - 0 1",
+            "7K/8/k7/2P2p2/5b2/3N4/3P1N1p/2Q2R2 w - - 0 1",
+            "r3k2r/pppppppp/8/8/8/8/PPPPPPPP/R3K2R w KQkq - 0 1",
+            "4k3/8/8/8/8/3q4/4P3/R3R1K1 w Q - 0 1",
+            "rnb1kbnr/pp1p1ppp/8/q1p1p3/3PPP2/2N5/PPP3PP/R1BQKBNR w KQkq - 0 1",
+            "k7/4P3/8/8/8/8/8/K7 w - - 0 1",
+            "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+            "1k1r4/pp1b1pbp/2p1p1p1/4P3/2P2P2/1P4P1/PB4BP/3R2K1 w - - 0 1",
+            "7k/5Q2/8/8/8/8/6P1/7K b - - 0 1",
+            "r1bqkb1r/pppp1ppp/2n2n2/4p2Q/2B1P3/8/PPPP1PPP/RNB1K1NR w KQkq - 4 4",
+            "4k3/8/8/8/4r3/8/4N3/4K3 w - - 0 1"
+    );
+
     @BeforeEach
     void setUp() {
         positionEncoder = new PositionEncoder();
@@ -81,5 +110,225 @@ class PositionEncoderTest {
         }, "Should throw IllegalArgumentException for wrong number of FEN fields");
     }
 
+    @Test
+    @DisplayName("Bitboard engine should generate the same terms as the legal-move engine")
+    void testBitboardEngine_MatchesLegalMoveEngine() {
+        PositionEncoder bitboardEncoder = new PositionEncoder(PositionEncoder.Engine.BITBOARD);
+        for (String fen : ENGINE_COMPARISON_FENS) {
+            List<String> expected = new ArrayList<>(positionEncoder.transformFenToDocument(fen));
+            List<String> actual = new ArrayList<>(bitboardEncoder.transformFenToDocument(fen));
+            Collections.sort(expected);
+            Collections.sort(actual);
+            assertEquals(expected, actual, "Term multisets differ for FEN: " + fen);
+        }
+    }
+
+    @Test
+    @DisplayName("Term codes should render to the same terms as transformFenToDocument for both engines")
+    void testEncodeFen_MatchesStringTerms() {
+        TermBuffer buffer = new TermBuffer();
+        for (PositionEncoder.Engine engine : PositionEncoder.Engine.values()) {
+            PositionEncoder encoder = new PositionEncoder(engine);
+            for (String fen : ENGINE_COMPARISON_FENS) {
+                List<String> expected = encoder.transformFenToDocument(fen);
+                encoder.encodeFen(fen, buffer);
+                List<String> actual = new ArrayList<>();
+                for (int i = 0; i < buffer.size(); i++) {
+                    actual.add(TermCodes.toTerm(buffer.get(i)));
+                    assertEquals(buffer.get(i), TermCodes.parse(actual.get(i)), "Code should survive a parse round trip");
+                }
+                assertEquals(expected, actual, engine + " term codes differ for FEN: " + fen);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Incremental game encoding should match encoding every position from scratch")
+    void testGameEncoder_MatchesFullEncoding() throws Exception {
+        String pgn = """
+                [Event "F/S Return Match"]
+                [White "Fischer, Robert J."]
+                [Black "Spassky, Boris V."]
+                [Result "*"]
+
+                1. e4 e5 2. Nf3 Nc6 3. Bb5 a6 4. Ba4 Nf6 5. O-O Be7 6. Re1 b5 7. Bb3 d6 8. c3 O-O
+                9. h3 Nb8 10. d4 Nbd7 11. c4 c6 12. cxb5 axb5 13. Nc3 Bb7 14. Bg5 b4 15. Nb1 h6
+                16. Bh4 c5 17. dxe5 Nxe4 18. Bxe7 Qxe7 19. exd6 Qf6 20. Nbd2 Nxd6 21. Nc4 Nxc4
+                22. Bxc4 Nb6 23. Ne5 Rae8 24. Bxf7+ Rxf7 25. Nxf7 Rxe1+ 26. Qxe1 Kxf7 *
+                """;
+        List<String> fens = new PgnParserService().parsePgnToFens(pgn);
+
+        PositionEncoder bitboardEncoder = new PositionEncoder(PositionEncoder.Engine.BITBOARD);
+        GameTermEncoder gameEncoder = bitboardEncoder.newGameEncoder();
+        TermBuffer incremental = new TermBuffer();
+        TermBuffer full = new TermBuffer();
+        for (String fen : fens) {
+            gameEncoder.encodeNext(fen, incremental);
+            bitboardEncoder.encodeFen(fen, full);
+            assertEquals(sortedCodes(full), sortedCodes(incremental), "Incremental terms differ for FEN: " + fen);
+        }
+        assertTrue(gameEncoder.getUnitsRegenerated() < 3L * 32 * fens.size(), "Game encoder should reuse unchanged units");
+    }
+
+    @Test
+    @DisplayName("Transpositions should be served from the encoding cache with unchanged codes")
+    void testEncodingCache_ServesTranspositions() throws Exception {
+        PgnParserService parser = new PgnParserService();
+        List<String> firstOrder = parser.parsePgnToFens("[Result \"*\"]\n\n1. Nf3 Nf6 2. c4 e6 3. Nc3 d5 *\n");
+        List<String> secondOrder = parser.parsePgnToFens("[Result \"*\"]\n\n1. c4 e6 2. Nc3 Nf6 3. Nf3 d5 *\n");
 
+        EncodingCache cache = new EncodingCache(1024);
+        PositionEncoder cachedEncoder = new PositionEncoder(PositionEncoder.Engine.BITBOARD, cache);
+        PositionEncoder plainEncoder = new PositionEncoder(PositionEncoder.Engine.BITBOARD);
+        TermBuffer cached = new TermBuffer();
+        TermBuffer plain = new TermBuffer();
+        for (List<String> fens : Arrays.asList(firstOrder, secondOrder)) {
+            GameTermEncoder gameEncoder = cachedEncoder.newGameEncoder();
+            for (String fen : fens) {
+                gameEncoder.encodeNext(fen, cached);
+                plainEncoder.encodeFen(fen, plain);
+                assertEquals(sortedCodes(plain), sortedCodes(cached), "Cached terms differ for FEN: " + fen);
+                cachedEncoder.encodeFen(fen, cached);
+                assertEquals(sortedCodes(plain), sortedCodes(cached), "Cached terms differ for FEN: " + fen);
+            }
+        }
+
+        Map<String, Object> stats = cache.getStats();
+        assertTrue((Long) stats.get("hits") >= firstOrder.size() + 1L, "Repeated and transposed positions should hit the cache");
+        assertEquals(firstOrder.get(firstOrder.size() - 1).split(" ")[0], secondOrder.get(secondOrder.size() - 1).split(" ")[0]);
+    }
+
+    @Test
+    @DisplayName("Term signatures should round-trip the distinct codes with one best reachable code per square")
+    void testTermSignature_RoundTrip() {
+        PositionEncoder bitboardEncoder = new PositionEncoder(PositionEncoder.Engine.BITBOARD);
+        TermBuffer codes = new TermBuffer();
+        TermBuffer decoded = new TermBuffer();
+        for (String fen : ENGINE_COMPARISON_FENS) {
+            bitboardEncoder.encodeFen(fen, codes);
+            TermSignature.decode(TermSignature.encode(codes), decoded);
+
+            Map<Integer, Float> bestReachable = new HashMap<>();
+            Set<Integer> structural = new TreeSet<>();
+            for (int i = 0; i < codes.size(); i++) {
+                int code = codes.get(i);
+                if (TermCodes.family(code) == TermCodes.FAMILY_REACHABLE) {
+                    bestReachable.merge(TermCodes.featureKey(code), TermCodes.reachableWeight(code), Math::max);
+                } else {
+                    structural.add(code);
+                }
+            }
+            List<Integer> decodedCodes = new ArrayList<>();
+            Map<Integer, Float> decodedReachable = new HashMap<>();
+            for (int i = 0; i < decoded.size(); i++) {
+                int code = decoded.get(i);
+                decodedCodes.add(code);
+                if (TermCodes.family(code) == TermCodes.FAMILY_REACHABLE) {
+                    assertNull(decodedReachable.put(TermCodes.featureKey(code), TermCodes.reachableWeight(code)),
+                            "One reachable code per square expected for FEN: " + fen);
+                }
+            }
+            assertEquals(sortedCodes(decoded), decodedCodes, "Signature codes should be ascending for FEN: " + fen);
+            assertEquals(bestReachable, decodedReachable, "Reachable weights differ for FEN: " + fen);
+            assertEquals(structural, decodedCodes.stream()
+                    .filter(code -> TermCodes.family(code) != TermCodes.FAMILY_REACHABLE)
+                    .collect(Collectors.toCollection(TreeSet::new)), "Structural codes differ for FEN: " + fen);
+        }
+    }
+
+    @Test
+    @DisplayName("Flipping colors reverses the ranks, swaps piece case and the side to move")
+    void testFlipColors_PlacementAndSideToMove() {
+        assertEquals("r3k2r/4p3/8/8/8/8/8/4K3 b kq - 0 1", PositionEncoder.flipColors("4k3/8/8/8/8/8/4P3/R3K2R w KQ - 0 1"));
+        assertEquals("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR b KQkq - 0 1", PositionEncoder.flipColors(STARTING_FEN));
+        for (String fen : ENGINE_COMPARISON_FENS) {
+            assertEquals(fen, PositionEncoder.flipColors(PositionEncoder.flipColors(fen)), "Flipping twice should restore FEN: " + fen);
+        }
+    }
+
+    @Test
+    @DisplayName("Flipping colors swaps the castling rights of both sides, in KQkq order")
+    void testFlipColors_CastlingRights() {
+        assertEquals("Qk", castling(PositionEncoder.flipColors("r3k2r/8/8/8/8/8/8/R3K2R w Kq - 0 1")));
+        assertEquals("KQ", castling(PositionEncoder.flipColors("r3k2r/8/8/8/8/8/8/R3K2R w kq - 0 1")));
+        assertEquals("KQkq", castling(PositionEncoder.flipColors("r3k2r/8/8/8/8/8/8/R3K2R w KQkq - 0 1")));
+        assertEquals("-", castling(PositionEncoder.flipColors("4k3/8/8/8/8/8/8/4K3 w - - 0 1")));
+    }
+
+    @Test
+    @DisplayName("Flipping colors moves the en passant square between ranks 3 and 6 on the same file")
+    void testFlipColors_EnPassant() {
+        String fen = "rnbqkbnr/pppp1ppp/8/8/4pP2/8/PPPPP1PP/RNBQKBNR b KQkq f3 0 3";
+        String flipped = PositionEncoder.flipColors(fen);
+
+        assertEquals("f6", flipped.split(" ")[3]);
+        assertEquals("c3", PositionEncoder.flipColors("rnbqkbnr/pp1ppppp/8/2pP4/8/8/PPP1PPPP/RNBQKBNR w KQkq c6 0 2").split(" ")[3]);
+        // the flipped position keeps its capturable en passant square, so it hashes differently from the one without
+        assertNotEquals(positionEncoder.positionKey(flipped.replace(" f6 ", " - ")), positionEncoder.positionKey(flipped));
+    }
+
+    @Test
+    @DisplayName("A color-flipped position encodes to the color-swapped, rank-mirrored true position terms")
+    void testFlipColors_TruePositionTerms() {
+        for (String fen : ENGINE_COMPARISON_FENS) {
+            Set<String> expected = new HashSet<>();
+            for (String term : positionEncoder.transformFenToDocument(fen)) {
+                if (term.length() == 3) {
+                    char piece = term.charAt(0);
+                    expected.add("" + (Character.isUpperCase(piece) ? Character.toLowerCase(piece) : Character.toUpperCase(piece))
+                            + term.charAt(1) + (char) ('1' + '8' - term.charAt(2)));
+                }
+            }
+            Set<String> actual = positionEncoder.transformFenToDocument(PositionEncoder.flipColors(fen)).stream()
+                    .filter(term -> term.length() == 3)
+                    .collect(Collectors.toSet());
+            assertEquals(expected, actual, "True position terms differ for flipped FEN: " + fen);
+        }
+    }
+
+    @Test
+    @DisplayName("Mirroring reverses every rank, mirrors the en passant file and drops castling rights")
+    void testMirrorFiles() {
+        assertEquals("3k4/8/8/8/8/8/3P4/R2K3R w - - 0 1", PositionEncoder.mirrorFiles("4k3/8/8/8/8/8/4P3/R3K2R w KQ - 0 1"));
+        assertEquals("c3", PositionEncoder.mirrorFiles("rnbqkbnr/pppp1ppp/8/8/4pP2/8/PPPPP1PP/RNBQKBNR b KQkq f3 0 3").split(" ")[3]);
+        assertEquals("h6", PositionEncoder.mirrorFiles("rnbqkbnr/1ppppppp/8/pP6/8/8/P1PPPPPP/RNBQKBNR w KQkq a6 0 3").split(" ")[3]);
+        String noCastling = "1k1r4/pp1b1pbp/2p1p1p1/4P3/2P2P2/1P4P1/PB4BP/3R2K1 w - - 0 1";
+        assertEquals(noCastling, PositionEncoder.mirrorFiles(PositionEncoder.mirrorFiles(noCastling)));
+    }
+
+    @Test
+    @DisplayName("Symmetric FENs list the position, its flip, mirror and flipped mirror, the query first")
+    void testSymmetricFens_AllVariants() {
+        String fen = "4k3/8/8/8/8/8/4P3/R3K2R w KQ - 0 1";
+
+        List<String> fens = positionEncoder.symmetricFens(fen);
+
+        assertEquals(List.of(fen, PositionEncoder.flipColors(fen), PositionEncoder.mirrorFiles(fen),
+                PositionEncoder.mirrorFiles(PositionEncoder.flipColors(fen))), fens);
+    }
+
+    @Test
+    @DisplayName("Symmetric FENs leave out variants with the same position key as an earlier one")
+    void testSymmetricFens_Deduplicated() {
+        // mirroring a file-symmetric position gives the same position
+        String fen = "8/8/8/8/8/8/PPPPPPPP/8 w - - 0 1";
+
+        List<String> fens = positionEncoder.symmetricFens(fen);
+
+        assertEquals(List.of(fen, PositionEncoder.flipColors(fen)), fens);
+        assertEquals(1, positionEncoder.symmetricFens("  " + fen + " ").stream().filter(variant -> variant.equals(fen)).count());
+    }
+
+    private static String castling(String fen) {
+        return fen.split(" ")[2];
+    }
+
+    private static List<Integer> sortedCodes(TermBuffer buffer) {
+        List<Integer> codes = new ArrayList<>();
+        for (int i = 0; i < buffer.size(); i++) {
+            codes.add(buffer.get(i));
+        }
+        Collections.sort(codes);
+        return codes;
+    }
 }
@@ -0,0 +1,27 @@
+package org.example.chessearch_back.controller;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchControllerTest {
+
+    @Test
+    @DisplayName("Pattern terms are split on commas and whitespace, relation symbols are kept")
+    void testSplitTerms() {
+        assertEquals(List.of("N>qd5", "P<Nd5", "R=qd8"), SearchController.splitTerms("N>qd5,P<Nd5 R=qd8"));
+        assertEquals(List.of("Nd5", "N>qd8"), SearchController.splitTerms("  Nd5 ,\tN>qd8  "));
+        assertEquals(List.of("Nd5"), SearchController.splitTerms("Nd5"));
+    }
+
+    @Test
+    @DisplayName("A missing or blank parameter gives no terms")
+    void testSplitTerms_Empty() {
+        assertEquals(List.of(), SearchController.splitTerms(null));
+        assertEquals(List.of(), SearchController.splitTerms(""));
+        assertEquals(List.of(), SearchController.splitTerms(" \t "));
+    }
+}
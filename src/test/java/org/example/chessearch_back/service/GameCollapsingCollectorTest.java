@@ -0,0 +1,296 @@
+package org.example.chessearch_back.service;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GameCollapsingCollectorTest {
+
+    private static final String FIELD_SCORE = "score";
+    private static final int MAX_SCORE = 20;
+    private static final int TOTAL_HITS_THRESHOLD = 1000;
+
+    private Directory directory;
+    private IndexWriter writer;
+    private DirectoryReader reader;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = new ByteBuffersDirectory();
+        // one segment per commit, so every commit becomes a leaf of its own
+        writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+        writer.close();
+        directory.close();
+    }
+
+    @Test
+    @DisplayName("Keeps the best hit of each game and returns the top games by descending score")
+    void testTopGames_BestHitPerGame() throws IOException {
+        add(hit(1, 30, 5), hit(1, 40, 2), hit(2, 30, 4), hit(3, 30, 3), hit(4, 30, 1));
+
+        GameCollapsingCollector collector = new GameCollapsingCollector(3, TOTAL_HITS_THRESHOLD);
+        searcher().search(byScore(), collector);
+
+        assertGames(collector.topGames(), 1, 2, 3);
+        assertEquals(30, collector.topGames()[0].moveNumber);
+        assertEquals(5f, collector.topGames()[0].score);
+        assertEquals(5, collector.getTotalHits());
+        assertTrue(collector.isTotalHitsExact());
+    }
+
+    @Test
+    @DisplayName("A better game evicts the weakest held game, a better hit of a held game replaces it")
+    void testTopGames_Eviction() throws IOException {
+        add(hit(1, 30, 2), hit(2, 30, 3), hit(1, 50, 7), hit(3, 30, 6), hit(4, 30, 1));
+
+        GameCollapsingCollector collector = new GameCollapsingCollector(2, TOTAL_HITS_THRESHOLD);
+        searcher().search(byScore(), collector);
+
+        GameCollapsingCollector.GameHit[] games = collector.topGames();
+        assertGames(games, 1, 3);
+        assertEquals(50, games[0].moveNumber);
+        assertEquals(7f, games[0].score);
+    }
+
+    @Test
+    @DisplayName("Equal scores are ordered by doc id")
+    void testTopGames_TieBreakByDoc() throws IOException {
+        add(hit(7, 30, 4), hit(3, 30, 4), hit(5, 30, 4));
+
+        GameCollapsingCollector collector = new GameCollapsingCollector(2, TOTAL_HITS_THRESHOLD);
+        searcher().search(byScore(), collector);
+
+        assertGames(collector.topGames(), 7, 3);
+    }
+
+    @Test
+    @DisplayName("Pages after a cursor skip games that had a hit up to the cursor")
+    void testCursor_ExcludesEarlierGames() throws IOException {
+        add(hit(1, 30, 9), hit(2, 30, 8), hit(3, 30, 7), hit(1, 40, 6), hit(4, 30, 5), hit(2, 40, 4), hit(5, 30, 3));
+        IndexSearcher searcher = searcher();
+
+        List<Integer> seen = new ArrayList<>();
+        GameCollapsingCollector.GameHit[] page = firstPage(searcher, 2);
+        assertGames(page, 1, 2);
+        int gamesBefore = collectIds(page, seen);
+
+        page = nextPage(searcher, 2, page[page.length - 1], gamesBefore);
+        assertGames(page, 3, 4);
+        gamesBefore += collectIds(page, seen);
+
+        page = nextPage(searcher, 2, page[page.length - 1], gamesBefore);
+        assertGames(page, 5);
+        assertEquals(List.of(1, 2, 3, 4), seen);
+    }
+
+    @Test
+    @DisplayName("A page ending inside a deduplicated document continues with its remaining games")
+    void testCursor_DeduplicatedDocumentBoundary() throws IOException {
+        add(hit(1, 30, 9), deduplicatedHit(5, 10, 11, 12, 13), hit(14, 30, 2));
+        IndexSearcher searcher = searcher();
+
+        GameCollapsingCollector.GameHit[] page = firstPage(searcher, 2);
+        assertGames(page, 1, 10);
+
+        page = nextPage(searcher, 2, page[1], 2);
+        assertGames(page, 11, 12);
+        assertEquals(page[0].docId, page[1].docId);
+
+        page = nextPage(searcher, 2, page[1], 4);
+        assertGames(page, 13, 14);
+    }
+
+    @Test
+    @DisplayName("Pages over games with many hits each reach every game once, in the order of a single collection")
+    void testCursor_ManyHitsPerGame() throws IOException {
+        int numGames = 8;
+        int hitsPerGame = 15;
+        for (int gameId = 1; gameId <= numGames; gameId++) {
+            for (int move = 0; move < hitsPerGame; move++) {
+                add(hit(gameId, move, (gameId * 7 + move * 3) % MAX_SCORE + 1));
+            }
+        }
+        IndexSearcher searcher = searcher();
+        int[] expected = gameIds(firstPage(searcher, numGames));
+        assertEquals(numGames, expected.length);
+
+        // a low threshold lets the scorer skip non-competitive hits on every page
+        int threshold = 5;
+        List<Integer> seen = new ArrayList<>();
+        GameCollapsingCollector.GameHit last = null;
+        int pages = 0;
+        while (true) {
+            GameCollapsingCollector collector = last == null ? new GameCollapsingCollector(3, threshold)
+                    : new GameCollapsingCollector(3, threshold, new ScoreDoc(last.docId, last.score), last.gameId, seen.size());
+            searcher.search(byScore(), collector);
+            GameCollapsingCollector.GameHit[] page = collector.topGames();
+            if (page.length == 0) {
+                break;
+            }
+            collectIds(page, seen);
+            last = page[page.length - 1];
+            pages++;
+        }
+
+        assertEquals(3, pages);
+        assertArrayEquals(expected, seen.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    @Test
+    @DisplayName("Manager merges the best hit per game over all slices and drops games any slice excluded")
+    void testManager_ReduceAcrossSlices() throws IOException {
+        add(hit(1, 30, 9), hit(2, 30, 3));
+        writer.commit();
+        add(hit(1, 40, 2), hit(2, 40, 8), hit(3, 30, 5));
+        IndexSearcher searcher = slicedSearcher();
+        assertEquals(2, searcher.getSlices().length);
+
+        GameCollapsingCollector.Manager manager = new GameCollapsingCollector.Manager(3, TOTAL_HITS_THRESHOLD);
+        GameCollapsingCollector.GameHit[] games = searcher.search(byScore(), manager);
+        assertGames(games, 1, 2, 3);
+        assertEquals(40, games[1].moveNumber);
+        assertSame(games, manager.topGames());
+        assertEquals(5, manager.getTotalHits());
+        assertTrue(manager.isTotalHitsExact());
+
+        // game 2 reaches the cursor in the second slice only, its hit in the first slice must not bring it back
+        GameCollapsingCollector.GameHit cursor = games[1];
+        manager = new GameCollapsingCollector.Manager(3, TOTAL_HITS_THRESHOLD, new ScoreDoc(cursor.docId, cursor.score), cursor.gameId, 2);
+        assertGames(searcher.search(byScore(), manager), 3);
+    }
+
+    @Test
+    @DisplayName("Invalid sizes are rejected")
+    void testConstructor_Invalid() {
+        assertThrows(IllegalArgumentException.class, () -> new GameCollapsingCollector(0, TOTAL_HITS_THRESHOLD));
+        assertThrows(IllegalArgumentException.class, () -> new GameCollapsingCollector(1, TOTAL_HITS_THRESHOLD, null, 0, -1));
+    }
+
+    private GameCollapsingCollector.GameHit[] firstPage(IndexSearcher searcher, int numGames) throws IOException {
+        GameCollapsingCollector collector = new GameCollapsingCollector(numGames, TOTAL_HITS_THRESHOLD);
+        searcher.search(byScore(), collector);
+        return collector.topGames();
+    }
+
+    private GameCollapsingCollector.GameHit[] nextPage(IndexSearcher searcher, int numGames, GameCollapsingCollector.GameHit last,
+                                                       int gamesBefore) throws IOException {
+        GameCollapsingCollector collector = new GameCollapsingCollector(numGames, TOTAL_HITS_THRESHOLD,
+                new ScoreDoc(last.docId, last.score), last.gameId, gamesBefore);
+        searcher.search(byScore(), collector);
+        return collector.topGames();
+    }
+
+    private static int collectIds(GameCollapsingCollector.GameHit[] page, List<Integer> seen) {
+        for (GameCollapsingCollector.GameHit hit : page) {
+            seen.add(hit.gameId);
+        }
+        return page.length;
+    }
+
+    private static void assertGames(GameCollapsingCollector.GameHit[] games, int... expectedGameIds) {
+        assertArrayEquals(expectedGameIds, gameIds(games));
+    }
+
+    private static int[] gameIds(GameCollapsingCollector.GameHit[] games) {
+        int[] gameIds = new int[games.length];
+        for (int i = 0; i < games.length; i++) {
+            gameIds[i] = games[i].gameId;
+        }
+        return gameIds;
+    }
+
+    private void add(Document... docs) throws IOException {
+        for (Document doc : docs) {
+            writer.addDocument(doc);
+        }
+    }
+
+    private IndexSearcher searcher() throws IOException {
+        reader = DirectoryReader.open(writer);
+        return new IndexSearcher(reader);
+    }
+
+    /**
+     * Searcher with one slice per segment, run on the calling thread
+     */
+    private IndexSearcher slicedSearcher() throws IOException {
+        reader = DirectoryReader.open(writer);
+        return new IndexSearcher(reader, Runnable::run) {
+            @Override
+            protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+                LeafSlice[] slices = new LeafSlice[leaves.size()];
+                for (int i = 0; i < slices.length; i++) {
+                    slices[i] = new LeafSlice(List.of(leaves.get(i)));
+                }
+                return slices;
+            }
+        };
+    }
+
+    /**
+     * Scores every document with the value of its score field
+     */
+    private static Query byScore() {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (int score = 1; score <= MAX_SCORE; score++) {
+            builder.add(new BoostQuery(new ConstantScoreQuery(new TermQuery(new Term(FIELD_SCORE, Integer.toString(score)))), score),
+                    BooleanClause.Occur.SHOULD);
+        }
+        return builder.build();
+    }
+
+    private static Document hit(int gameId, int moveNumber, int score) {
+        Document doc = new Document();
+        doc.add(new StringField(FIELD_SCORE, Integer.toString(score), Field.Store.NO));
+        doc.add(new NumericDocValuesField(IndexingService.FIELD_GAME_ID, gameId));
+        doc.add(new NumericDocValuesField(IndexingService.FIELD_MOVE_NUMBER, moveNumber));
+        return doc;
+    }
+
+    private static Document deduplicatedHit(int score, int... gameIds) {
+        PositionOccurrences occurrences = new PositionOccurrences();
+        for (int gameId : gameIds) {
+            occurrences.add(gameId, 30);
+        }
+        Document doc = new Document();
+        doc.add(new StringField(FIELD_SCORE, Integer.toString(score), Field.Store.NO));
+        doc.add(new BinaryDocValuesField(IndexingService.FIELD_OCCURRENCES, occurrences.toBytesRef()));
+        return doc;
+    }
+}
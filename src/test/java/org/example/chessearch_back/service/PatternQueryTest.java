@@ -0,0 +1,69 @@
+package org.example.chessearch_back.service;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatternQueryTest {
+
+    @Test
+    @DisplayName("Required terms become MUST clauses, optional terms SHOULD clauses")
+    void testBuildPatternQuery_Occur() {
+        BooleanQuery query = PositionSearchService.buildPatternQuery(List.of("Nd5", "P<Nd5"), List.of("N>qd8", "R=qd8"));
+
+        List<BooleanClause> clauses = query.clauses();
+        assertEquals(4, clauses.size());
+        assertClause(clauses.get(0), "Nd5", BooleanClause.Occur.MUST);
+        assertClause(clauses.get(1), "P<Nd5", BooleanClause.Occur.MUST);
+        assertClause(clauses.get(2), "N>qd8", BooleanClause.Occur.SHOULD);
+        assertClause(clauses.get(3), "R=qd8", BooleanClause.Occur.SHOULD);
+    }
+
+    @Test
+    @DisplayName("Surrounding whitespace is trimmed, blank terms and missing lists are skipped")
+    void testBuildPatternQuery_BlankTerms() {
+        BooleanQuery query = PositionSearchService.buildPatternQuery(Arrays.asList(" Nd5 ", "", null, "  "), null);
+
+        assertEquals(1, query.clauses().size());
+        assertClause(query.clauses().get(0), "Nd5", BooleanClause.Occur.MUST);
+    }
+
+    @Test
+    @DisplayName("Reachable terms are rejected")
+    void testBuildPatternQuery_ReachableTerm() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> PositionSearchService.buildPatternQuery(List.of("Nd5"), List.of("Qe4|0.89")));
+        assertTrue(e.getMessage().contains("Qe4|0.89"), e.getMessage());
+    }
+
+    @Test
+    @DisplayName("Terms outside the encoder vocabulary are rejected")
+    void testBuildPatternQuery_InvalidTerm() {
+        assertThrows(IllegalArgumentException.class, () -> PositionSearchService.buildPatternQuery(List.of("Xz9"), List.of()));
+        assertThrows(IllegalArgumentException.class, () -> PositionSearchService.buildPatternQuery(List.of("N?qd5"), List.of()));
+        assertThrows(IllegalArgumentException.class, () -> PositionSearchService.buildPatternQuery(List.of(), List.of("d5")));
+    }
+
+    @Test
+    @DisplayName("A pattern without terms is rejected")
+    void testBuildPatternQuery_Empty() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> PositionSearchService.buildPatternQuery(List.of(), List.of()));
+        assertEquals("Pattern has no terms", e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> PositionSearchService.buildPatternQuery(null, null));
+        assertThrows(IllegalArgumentException.class, () -> PositionSearchService.buildPatternQuery(List.of(" "), List.of("")));
+    }
+
+    private static void assertClause(BooleanClause clause, String term, BooleanClause.Occur occur) {
+        assertEquals(occur, clause.getOccur());
+        assertEquals(new TermQuery(new Term(PositionSearchService.FIELD_TERMS, term)), clause.getQuery());
+    }
+}
@@ -0,0 +1,78 @@
+package org.example.chessearch_back.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchCursorTest {
+
+    private static final String QUERY = "rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq e3|";
+
+    @Test
+    @DisplayName("A cursor survives encode and decode unchanged")
+    void testEncodeDecode_RoundTrip() {
+        SearchCursor cursor = new SearchCursor("index-1700000000000", 42L, 3.75f, 1234, 567, 20, SearchCursor.queryDigest(QUERY));
+
+        String encoded = cursor.encode();
+        SearchCursor decoded = SearchCursor.decode(encoded);
+
+        assertTrue(encoded.matches("[A-Za-z0-9_-]+"), "cursor must be URL safe: " + encoded);
+        assertEquals("index-1700000000000", decoded.generationName);
+        assertEquals(42L, decoded.readerVersion);
+        assertEquals(3.75f, decoded.score);
+        assertEquals(1234, decoded.doc);
+        assertEquals(567, decoded.gameId);
+        assertEquals(20, decoded.gamesBefore);
+        assertEquals(cursor.queryDigest, decoded.queryDigest);
+    }
+
+    @Test
+    @DisplayName("The score is kept bit for bit, so the next page resumes exactly at the boundary")
+    void testEncodeDecode_ExactScore() {
+        float score = Math.nextUp(1.1f);
+        SearchCursor decoded = SearchCursor.decode(new SearchCursor("", 1L, score, 0, 0, 0, SearchCursor.queryDigest(QUERY)).encode());
+
+        assertEquals(Float.floatToIntBits(score), Float.floatToIntBits(decoded.score));
+        assertEquals("", decoded.generationName);
+    }
+
+    @Test
+    @DisplayName("A cursor belongs only to the query it was issued for")
+    void testBelongsTo() {
+        SearchCursor cursor = SearchCursor.decode(new SearchCursor("g", 1L, 1f, 0, 0, 10, SearchCursor.queryDigest(QUERY)).encode());
+
+        assertTrue(cursor.belongsTo(QUERY));
+        assertFalse(cursor.belongsTo(QUERY + "minElo=2200"));
+        assertFalse(cursor.belongsTo("8/8/8/8/8/8/8/8 w - -|"));
+    }
+
+    @Test
+    @DisplayName("The query digest is a truncated SHA-256, stable for equal queries")
+    void testQueryDigest() {
+        String digest = SearchCursor.queryDigest(QUERY);
+
+        assertEquals(digest, SearchCursor.queryDigest(QUERY));
+        assertNotEquals(digest, SearchCursor.queryDigest(QUERY + " "));
+        assertEquals(16, Base64.getUrlDecoder().decode(digest).length);
+    }
+
+    @Test
+    @DisplayName("Malformed cursors are rejected with IllegalArgumentException")
+    void testDecode_Invalid() {
+        assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode("not a cursor!"));
+        assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode(encode("3:g:1:0:0:0")));
+        assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode(encode("1:g:1:0:0:0:0")));
+        assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode(encode("3:g:x:0:0:0:0:abc")));
+        assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode(encode("3:g:1:0:-1:0:0:abc")));
+        assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode(encode("3:g:1:0:0:0:-5:abc")));
+        assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode(encode("3:g:1:0:0:0:0:")));
+    }
+
+    private static String encode(String value) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
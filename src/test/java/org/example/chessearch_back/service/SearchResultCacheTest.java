@@ -0,0 +1,100 @@
+package org.example.chessearch_back.service;
+
+import org.example.chessearch_back.dto.SearchResultDto;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchResultCacheTest {
+
+    private static final String FEN = "rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq e3";
+    private static final String OTHER_FEN = "8/8/8/8/8/8/8/K6k w - -";
+
+    private final Object generation = new Object();
+    private final Object nextGeneration = new Object();
+
+    @Test
+    @DisplayName("Move counters and extra whitespace do not change the cache key")
+    void testNormalizeFen() {
+        assertEquals(FEN, SearchResultCache.normalizeFen("  " + FEN + " 0 1 "));
+        assertEquals(FEN, SearchResultCache.normalizeFen(FEN.replace(" ", "   ")));
+        assertEquals("8/8/8/8/8/8/8/K6k w", SearchResultCache.normalizeFen("8/8/8/8/8/8/8/K6k w"));
+    }
+
+    @Test
+    @DisplayName("Stored results are returned per FEN and limit, as copies")
+    void testPutGet() {
+        SearchResultCache cache = new SearchResultCache(4);
+        assertNull(cache.get(generation, FEN, 10));
+
+        List<SearchResultDto> results = new ArrayList<>(List.of(new SearchResultDto(1, 30, FEN)));
+        cache.put(generation, FEN, 10, results);
+        results.clear();
+
+        List<SearchResultDto> cached = cache.get(generation, FEN, 10);
+        assertEquals(1, cached.size());
+        assertEquals(1, cached.get(0).getGameId());
+        assertEquals(30, cached.get(0).getMoveNumber());
+        assertEquals(FEN, cached.get(0).getPositionFen());
+        assertNotSame(cached.get(0), cache.get(generation, FEN, 10).get(0));
+        assertNull(cache.get(generation, FEN, 20));
+        assertNull(cache.get(generation, OTHER_FEN, 10));
+    }
+
+    @Test
+    @DisplayName("A lookup on another index generation drops every cached result")
+    void testInvalidation_GenerationSwitch() {
+        SearchResultCache cache = new SearchResultCache(4);
+        assertNull(cache.get(generation, FEN, 10));
+        cache.put(generation, FEN, 10, List.of(new SearchResultDto(1, 30, FEN)));
+        assertNotNull(cache.get(generation, FEN, 10));
+
+        assertNull(cache.get(nextGeneration, FEN, 10));
+        assertNull(cache.get(generation, FEN, 10));
+        assertEquals(1L, cache.getStats().get("invalidations"));
+    }
+
+    @Test
+    @DisplayName("Results computed on a generation the cache moved past are not stored")
+    void testPut_StaleGeneration() {
+        SearchResultCache cache = new SearchResultCache(4);
+        cache.get(generation, FEN, 10);
+        cache.get(nextGeneration, FEN, 10);
+
+        cache.put(generation, FEN, 10, List.of(new SearchResultDto(1, 30, FEN)));
+
+        assertNull(cache.get(nextGeneration, FEN, 10));
+        assertEquals(0, cache.getStats().get("size"));
+    }
+
+    @Test
+    @DisplayName("The least recently used entry is evicted at capacity")
+    void testEviction_Lru() {
+        SearchResultCache cache = new SearchResultCache(2);
+        cache.get(generation, FEN, 1);
+        cache.put(generation, FEN, 1, List.of());
+        cache.put(generation, FEN, 2, List.of());
+        assertNotNull(cache.get(generation, FEN, 1));
+
+        cache.put(generation, FEN, 3, List.of());
+
+        assertNotNull(cache.get(generation, FEN, 1));
+        assertNull(cache.get(generation, FEN, 2));
+        assertNotNull(cache.get(generation, FEN, 3));
+    }
+
+    @Test
+    @DisplayName("A cache of 0 entries stores nothing, a negative size is rejected")
+    void testDisabled() {
+        SearchResultCache cache = new SearchResultCache(0);
+        cache.put(generation, FEN, 10, List.of(new SearchResultDto(1, 30, FEN)));
+
+        assertFalse(cache.isEnabled());
+        assertNull(cache.get(generation, FEN, 10));
+        assertThrows(IllegalArgumentException.class, () -> new SearchResultCache(-1));
+    }
+}
@@ -0,0 +1,339 @@
+package org.example.chessearch_back.service;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.move.Move;
+import com.github.bhlangonijr.chesslib.pgn.PgnHolder;
+import com.github.bhlangonijr.chesslib.game.Game;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FeatureField;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.KnnFloatVectorField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.example.chessearch_back.config.ChessSimilarity;
+import org.example.chessearch_back.parser.GameTermEncoder;
+import org.example.chessearch_back.parser.PositionEncoder;
+import org.example.chessearch_back.parser.PositionVector;
+import org.example.chessearch_back.parser.TermBuffer;
+import org.example.chessearch_back.parser.TermCodeTokenStream;
+import org.example.chessearch_back.parser.TermCodes;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Search latency of BM25 with exact hit counting and stored-field dedup (the previous search path) against
+ * the game-collapsing collector on BM25 and on ChessSimilarity, over an in-memory index.
+ * Run with CHESS_BENCHMARK=true ./gradlew test --tests '*SimilarityBenchmark'. For a realistic index point
+ * CHESS_BENCHMARK_PGN at a PGN file (e.g. a Lichess dump), otherwise random playouts are indexed.
+ * CHESS_BENCHMARK_GAMES sets the number of games (default 3000).
+ * comparePruning measures docFreq term pruning and minimum-should-match against the full query: latency and
+ * recall of the top games, with CHESS_BENCHMARK_MAX_DF_RATIO (default 0.5) and CHESS_BENCHMARK_MIN_SHOULD_MATCH
+ * (default 0.1).
+ * compareKnn measures HNSW search over position vectors (top KNN_K vectors, collapsed per game) against
+ * the BooleanQuery engine: latency and recall of its top games.
+ */
+@EnabledIfEnvironmentVariable(named = "CHESS_BENCHMARK", matches = "true")
+class SimilarityBenchmark {
+
+    private static final int NUM_RESULTS = 10;
+    private static final int NUM_QUERIES = 200;
+    private static final int TOTAL_HITS_THRESHOLD = 1000;
+    private static final int ROUNDS = 5;
+    private static final int KNN_CANDIDATES = 100;
+    private static final int KNN_OVERSAMPLE = 10;
+    /** k of the KNN search as the service sets it from search.knn.candidates and search.knn.oversample */
+    private static final int KNN_K = Math.max(KNN_CANDIDATES, NUM_RESULTS * KNN_OVERSAMPLE);
+
+    private final PositionEncoder encoder = new PositionEncoder(PositionEncoder.Engine.BITBOARD);
+    private final ChessSimilarity chessSimilarity = new ChessSimilarity(new float[]{1f, 1f, 1f, 1f, 1f});
+    private final PositionSearchService queryBuilder = PositionSearchService.forQueryBuilding(encoder, chessSimilarity, 0, 0);
+
+    @Test
+    void compareSimilarityAndCollector() throws Exception {
+        int numGames = Integer.parseInt(System.getenv().getOrDefault("CHESS_BENCHMARK_GAMES", "3000"));
+        List<List<String>> games = loadGames(numGames);
+        List<String> queries = sampleQueries(games);
+
+        try (Directory bm25Directory = new ByteBuffersDirectory(); Directory chessDirectory = new ByteBuffersDirectory()) {
+            long positions = index(bm25Directory, new BM25Similarity(), games, false);
+            index(chessDirectory, chessSimilarity, games, false);
+            System.out.printf("Indexed %d games, %d positions, %d queries x %d rounds%n", games.size(), positions, NUM_QUERIES, ROUNDS);
+
+            try (DirectoryReader bm25Reader = DirectoryReader.open(bm25Directory);
+                 DirectoryReader chessReader = DirectoryReader.open(chessDirectory)) {
+                IndexSearcher bm25Searcher = searcher(bm25Reader, new BM25Similarity());
+                IndexSearcher chessSearcher = searcher(chessReader, chessSimilarity);
+
+                run("BM25, exact count, top 5K + stored-field dedup", queries, fen -> searchExact(bm25Searcher, fen));
+                run("BM25, game-collapsing collector", queries, fen -> searchCollapsing(bm25Searcher, fen));
+                run("ChessSimilarity, game-collapsing collector", queries, fen -> searchCollapsing(chessSearcher, fen));
+            }
+        }
+    }
+
+    @Test
+    void comparePruning() throws Exception {
+        int numGames = Integer.parseInt(System.getenv().getOrDefault("CHESS_BENCHMARK_GAMES", "3000"));
+        double maxDfRatio = Double.parseDouble(System.getenv().getOrDefault("CHESS_BENCHMARK_MAX_DF_RATIO", "0.5"));
+        double minShouldMatch = Double.parseDouble(System.getenv().getOrDefault("CHESS_BENCHMARK_MIN_SHOULD_MATCH", "0.1"));
+        PositionSearchService prunedBuilder = PositionSearchService.forQueryBuilding(encoder, chessSimilarity, maxDfRatio, minShouldMatch);
+        List<List<String>> games = loadGames(numGames);
+        List<String> queries = sampleQueries(games);
+
+        try (Directory directory = new ByteBuffersDirectory()) {
+            long positions = index(directory, chessSimilarity, games, false);
+            System.out.printf("Indexed %d games, %d positions, %d queries x %d rounds%n", games.size(), positions, NUM_QUERIES, ROUNDS);
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = searcher(reader, chessSimilarity);
+                QueryBuilder pruned = fen -> prunedBuilder.buildSimilarityQuery(codes(fen), reader);
+                run("All query terms", queries, fen -> searchCollapsing(searcher, query(fen)).length);
+                run(String.format("Pruned docFreq > %.2f, min should match %.2f", maxDfRatio, minShouldMatch), queries,
+                        fen -> searchCollapsing(searcher, pruned.build(fen)).length);
+                printRecall("pruning", searcher, queries, pruned);
+            }
+        }
+    }
+
+    @Test
+    void compareKnn() throws Exception {
+        int numGames = Integer.parseInt(System.getenv().getOrDefault("CHESS_BENCHMARK_GAMES", "3000"));
+        List<List<String>> games = loadGames(numGames);
+        List<String> queries = sampleQueries(games);
+
+        try (Directory directory = new ByteBuffersDirectory()) {
+            long positions = index(directory, chessSimilarity, games, true);
+            System.out.printf("Indexed %d games, %d positions with vectors, %d queries x %d rounds%n", games.size(), positions, NUM_QUERIES, ROUNDS);
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = searcher(reader, chessSimilarity);
+                QueryBuilder knn = fen -> new KnnFloatVectorQuery(IndexingService.FIELD_VECTOR, PositionVector.encode(codes(fen)), KNN_K);
+                run("BooleanQuery, game-collapsing collector", queries, fen -> searchCollapsing(searcher, query(fen)).length);
+                run("HNSW k=" + KNN_K + ", game-collapsing collector", queries, fen -> searchCollapsing(searcher, knn.build(fen)).length);
+                printRecall("HNSW", searcher, queries, knn);
+            }
+        }
+    }
+
+    private interface QueryBuilder {
+        Query build(String fen) throws Exception;
+    }
+
+    /**
+     * Prints the share of the top games of the full BooleanQuery that the candidate query finds too
+     */
+    private void printRecall(String label, IndexSearcher searcher, List<String> queries, QueryBuilder candidate) throws Exception {
+        double recall = 0;
+        for (String fen : queries) {
+            Set<Integer> expected = gameIds(searchCollapsing(searcher, query(fen)));
+            Set<Integer> found = gameIds(searchCollapsing(searcher, candidate.build(fen)));
+            found.retainAll(expected);
+            recall += expected.isEmpty() ? 1 : (double) found.size() / expected.size();
+        }
+        System.out.printf("Recall of the top %d games with %s: %.3f%n", NUM_RESULTS, label, recall / queries.size());
+    }
+
+    private static Set<Integer> gameIds(GameCollapsingCollector.GameHit[] hits) {
+        Set<Integer> gameIds = new HashSet<>();
+        for (GameCollapsingCollector.GameHit hit : hits) {
+            gameIds.add(hit.gameId);
+        }
+        return gameIds;
+    }
+
+    private interface Search {
+        int run(String fen) throws Exception;
+    }
+
+    private void run(String label, List<String> queries, Search search) throws Exception {
+        for (String fen : queries) {
+            search.run(fen);
+        }
+        long[] nanos = new long[queries.size() * ROUNDS];
+        int n = 0;
+        long results = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (String fen : queries) {
+                long start = System.nanoTime();
+                results += search.run(fen);
+                nanos[n++] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(nanos);
+        System.out.printf("%-50s mean %7.1f us  p50 %7.1f us  p99 %7.1f us  avg results %.1f%n", label,
+                Arrays.stream(nanos).average().orElse(0) / 1000.0, nanos[nanos.length / 2] / 1000.0,
+                nanos[(int) (nanos.length * 0.99)] / 1000.0, (double) results / nanos.length);
+        assertFalse(results == 0, label + " returned no results");
+    }
+
+    private int searchExact(IndexSearcher searcher, String fen) throws Exception {
+        BooleanQuery query = query(fen);
+        TopScoreDocCollector collector = TopScoreDocCollector.create(NUM_RESULTS * 5, Integer.MAX_VALUE);
+        searcher.search(query, collector);
+        Set<Integer> gameIds = new HashSet<>();
+        for (ScoreDoc scoreDoc : collector.topDocs().scoreDocs) {
+            if (gameIds.size() >= NUM_RESULTS) {
+                break;
+            }
+            Document doc = searcher.storedFields().document(scoreDoc.doc,
+                    Set.of(IndexingService.FIELD_GAME_ID, IndexingService.FIELD_FEN_STRING, IndexingService.FIELD_MOVE_NUMBER));
+            gameIds.add(Integer.parseInt(doc.get(IndexingService.FIELD_GAME_ID)));
+        }
+        return gameIds.size();
+    }
+
+    private int searchCollapsing(IndexSearcher searcher, String fen) throws Exception {
+        return searchCollapsing(searcher, query(fen)).length;
+    }
+
+    private GameCollapsingCollector.GameHit[] searchCollapsing(IndexSearcher searcher, Query query) throws Exception {
+        GameCollapsingCollector collector = new GameCollapsingCollector(NUM_RESULTS, TOTAL_HITS_THRESHOLD);
+        searcher.search(query, collector);
+        GameCollapsingCollector.GameHit[] hits = collector.topGames();
+        for (GameCollapsingCollector.GameHit hit : hits) {
+            searcher.storedFields().document(hit.docId, Set.of(IndexingService.FIELD_FEN_STRING));
+        }
+        return hits;
+    }
+
+    private BooleanQuery query(String fen) {
+        return queryBuilder.buildSimilarityQuery(codes(fen));
+    }
+
+    private TermBuffer codes(String fen) {
+        TermBuffer codes = new TermBuffer();
+        encoder.encodeFen(fen, codes);
+        return codes;
+    }
+
+    private static IndexSearcher searcher(DirectoryReader reader, Similarity similarity) {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(similarity);
+        return searcher;
+    }
+
+    /**
+     * Writes the same fields as IndexingService in PER_PLY mode, with the position vector if vectors is set
+     */
+    private long index(Directory directory, Similarity similarity, List<List<String>> games, boolean vectors) throws Exception {
+        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer());
+        config.setSimilarity(similarity);
+        config.setRAMBufferSizeMB(128);
+        long positions = 0;
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            TermCodeTokenStream termStream = new TermCodeTokenStream();
+            for (int gameId = 0; gameId < games.size(); gameId++) {
+                GameTermEncoder gameEncoder = encoder.newGameEncoder();
+                List<String> fens = games.get(gameId);
+                for (int move = 0; move < fens.size(); move++) {
+                    gameEncoder.encodeNext(fens.get(move), termStream.getBuffer());
+                    Document doc = new Document();
+                    doc.add(new TextField(IndexingService.FIELD_TERMS, termStream));
+                    addReachableFeatures(doc, termStream.getBuffer());
+                    if (vectors) {
+                        doc.add(new KnnFloatVectorField(IndexingService.FIELD_VECTOR, PositionVector.encode(termStream.getBuffer()),
+                                VectorSimilarityFunction.DOT_PRODUCT));
+                    }
+                    doc.add(new StringField(IndexingService.FIELD_GAME_ID, String.valueOf(gameId), Field.Store.YES));
+                    doc.add(new NumericDocValuesField(IndexingService.FIELD_GAME_ID, gameId));
+                    doc.add(new StoredField(IndexingService.FIELD_MOVE_NUMBER, move));
+                    doc.add(new NumericDocValuesField(IndexingService.FIELD_MOVE_NUMBER, move));
+                    doc.add(new StoredField(IndexingService.FIELD_FEN_STRING, fens.get(move)));
+                    writer.addDocument(doc);
+                    positions++;
+                }
+            }
+            writer.forceMerge(4);
+        }
+        return positions;
+    }
+
+    private static void addReachableFeatures(Document doc, TermBuffer buffer) {
+        float[] weights = new float[TermCodes.FEATURE_KEYS];
+        for (int i = 0; i < buffer.size(); i++) {
+            int code = buffer.get(i);
+            if (TermCodes.family(code) == TermCodes.FAMILY_REACHABLE) {
+                int key = TermCodes.featureKey(code);
+                weights[key] = Math.max(weights[key], TermCodes.reachableWeight(code));
+            }
+        }
+        for (int key = 0; key < weights.length; key++) {
+            if (weights[key] > 0) {
+                doc.add(new FeatureField(IndexingService.FIELD_REACHABLE, TermCodes.featureName(key), weights[key]));
+            }
+        }
+    }
+
+    private static List<List<String>> loadGames(int numGames) throws Exception {
+        List<List<String>> games = new ArrayList<>();
+        String pgnPath = System.getenv("CHESS_BENCHMARK_PGN");
+        if (pgnPath != null) {
+            PgnHolder holder = new PgnHolder(pgnPath);
+            holder.loadPgn();
+            for (Game game : holder.getGames()) {
+                if (games.size() >= numGames) {
+                    break;
+                }
+                game.loadMoveText();
+                Board board = new Board();
+                List<String> fens = new ArrayList<>();
+                for (Move move : game.getHalfMoves()) {
+                    board.doMove(move);
+                    fens.add(board.getFen());
+                }
+                games.add(fens);
+            }
+            return games;
+        }
+        Random random = new Random(42);
+        for (int g = 0; g < numGames; g++) {
+            Board board = new Board();
+            List<String> fens = new ArrayList<>();
+            for (int ply = 0; ply < 80 && !board.isMated() && !board.isDraw(); ply++) {
+                List<Move> moves = board.legalMoves();
+                board.doMove(moves.get(random.nextInt(moves.size())));
+                fens.add(board.getFen());
+            }
+            games.add(fens);
+        }
+        return games;
+    }
+
+    private static List<String> sampleQueries(List<List<String>> games) {
+        Random random = new Random(7);
+        List<String> queries = new ArrayList<>();
+        while (queries.size() < NUM_QUERIES) {
+            List<String> fens = games.get(random.nextInt(games.size()));
+            if (fens.size() > 12) {
+                queries.add(fens.get(10 + random.nextInt(fens.size() - 10)));
+            }
+        }
+        return queries;
+    }
+}